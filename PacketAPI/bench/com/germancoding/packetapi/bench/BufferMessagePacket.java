@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.germancoding.packetapi.PacketBuffers;
+
+/**
+ * The same packet as {@link LegacyMessagePacket}, with hand-written <code>encode()</code> and <code>decode()</code>.
+ */
+public class BufferMessagePacket extends LegacyMessagePacket {
+
+	public static final short ID = 101;
+
+	public BufferMessagePacket() {
+	}
+
+	public BufferMessagePacket(int sequence, String text, int payloadSize) {
+		super(sequence, text, payloadSize);
+	}
+
+	@Override
+	public short getId() {
+		return ID;
+	}
+
+	@Override
+	public void decode(ByteBuffer in) throws IOException {
+		sequence = in.getInt();
+		timestamp = in.getLong();
+		text = PacketBuffers.getUTF(in);
+		payload = new byte[in.getInt()];
+		in.get(payload);
+	}
+
+	@Override
+	public void encode(ByteBuffer out) throws IOException {
+		out.putInt(sequence);
+		out.putLong(timestamp);
+		PacketBuffers.putUTF(out, text);
+		out.putInt(payload.length);
+		out.put(payload);
+	}
+
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * Encoding and decoding of the same packet with <code>prepare()/handle()</code>, hand-written <code>encode()/decode()</code> and a generated codec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+	@Param({ "16", "1024" })
+	int payloadSize;
+
+	LegacyMessagePacket legacy;
+	BufferMessagePacket buffer;
+	GeneratedMessagePacket generated;
+	ByteBuffer out;
+	byte[] legacyData;
+	ByteBuffer bufferData;
+	ByteBuffer generatedData;
+
+	@Setup
+	public void setup() throws IOException {
+		legacy = new LegacyMessagePacket(1, "Hello world", payloadSize);
+		buffer = new BufferMessagePacket(1, "Hello world", payloadSize);
+		generated = new GeneratedMessagePacket(1, "Hello world", payloadSize);
+		out = ByteBuffer.allocate(payloadSize + 1024);
+
+		byte[] data = legacy.prepare().toByteArray();
+		legacyData = new byte[data.length - 2]; // Without the id, like the DataReader passes it
+		System.arraycopy(data, 2, legacyData, 0, legacyData.length);
+		bufferData = encoded(buffer);
+		generatedData = encoded(generated);
+	}
+
+	private ByteBuffer encoded(com.germancoding.packetapi.Packet packet) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(payloadSize + 1024);
+		packet.encode(data);
+		data.flip();
+		return data;
+	}
+
+	@Benchmark
+	public PacketWriter prepareLegacy() throws IOException {
+		return legacy.prepare();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeLegacyBridge() throws IOException {
+		out.clear();
+		legacy.encode(out);
+		return out;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeBuffer() throws IOException {
+		out.clear();
+		buffer.encode(out);
+		return out;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeGenerated() throws IOException {
+		out.clear();
+		generated.encode(out);
+		return out;
+	}
+
+	@Benchmark
+	public LegacyMessagePacket handleLegacy() throws IOException {
+		LegacyMessagePacket packet = new LegacyMessagePacket();
+		packet.handle(new DataInputStream(new ByteArrayInputStream(legacyData)));
+		return packet;
+	}
+
+	@Benchmark
+	public BufferMessagePacket decodeBuffer() throws IOException {
+		BufferMessagePacket packet = new BufferMessagePacket();
+		packet.decode(bufferData.duplicate());
+		return packet;
+	}
+
+	@Benchmark
+	public GeneratedMessagePacket decodeGenerated() throws IOException {
+		GeneratedMessagePacket packet = new GeneratedMessagePacket();
+		packet.decode(generatedData.duplicate());
+		return packet;
+	}
+
+}
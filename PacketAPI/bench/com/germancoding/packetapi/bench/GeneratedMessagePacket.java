@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.bench;
+
+import com.germancoding.packetapi.annotation.AnnotatedPacket;
+import com.germancoding.packetapi.annotation.PacketField;
+import com.germancoding.packetapi.annotation.SerializedPacket;
+
+/**
+ * The same packet as {@link LegacyMessagePacket}, serialized by a generated codec.
+ */
+@SerializedPacket(id = GeneratedMessagePacket.ID)
+public class GeneratedMessagePacket extends AnnotatedPacket {
+
+	public static final short ID = 102;
+
+	@PacketField
+	int sequence;
+	@PacketField
+	long timestamp;
+	@PacketField
+	String text;
+	@PacketField
+	byte[] payload;
+
+	public GeneratedMessagePacket() {
+	}
+
+	public GeneratedMessagePacket(int sequence, String text, int payloadSize) {
+		this.sequence = sequence;
+		this.timestamp = System.nanoTime();
+		this.text = text;
+		this.payload = new byte[payloadSize];
+	}
+
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.bench;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketHandler;
+import com.germancoding.packetapi.PacketListener;
+import com.germancoding.packetapi.udp.UnreliableSocket;
+
+/**
+ * End-to-end benchmarks between two handlers in the same JVM, over loopback TCP, an {@link UnreliableSocket} (UDP) and piped streams.<br>
+ * <code>throughput</code> measures packets per second from one side to the other, <code>roundTrip</code> samples the time for a packet to be echoed back
+ * (JMH reports the percentiles). Lost UDP packets are not retransmitted; a batch waits at most one second, so losses show up as lower throughput.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+	private static final int BATCH = 1000;
+	private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+	@Param({ "tcp", "udp", "piped" })
+	String transport;
+
+	@Param({ "64" })
+	int payloadSize;
+
+	PacketHandler client;
+	PacketHandler server;
+	ServerSocket serverSocket;
+	UnreliableSocket[] udpSockets;
+	BufferMessagePacket packet;
+	final AtomicLong received = new AtomicLong();
+	volatile int lastEcho;
+	int nextEcho;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		PacketListener serverListener = new Listener() {
+
+			@Override
+			public void onPacketReceived(PacketHandler handler, Packet packet) {
+				received.incrementAndGet();
+				if (((BufferMessagePacket) packet).getSequence() < 0)
+					handler.sendPacket(packet); // Echo requests
+			}
+		};
+		PacketListener clientListener = new Listener() {
+
+			@Override
+			public void onPacketReceived(PacketHandler handler, Packet packet) {
+				lastEcho = -((BufferMessagePacket) packet).getSequence();
+			}
+		};
+
+		if (transport.equals("tcp")) {
+			serverSocket = new ServerSocket(0, 1, loopback);
+			Socket clientSocket = new Socket(loopback, serverSocket.getLocalPort());
+			Socket accepted = serverSocket.accept();
+			clientSocket.setTcpNoDelay(true);
+			accepted.setTcpNoDelay(true);
+			client = new PacketHandler(clientSocket.getInputStream(), clientSocket.getOutputStream(), "client", clientListener);
+			server = new PacketHandler(accepted.getInputStream(), accepted.getOutputStream(), "server", serverListener);
+		} else if (transport.equals("udp")) {
+			udpSockets = new UnreliableSocket[] { new UnreliableSocket(new DatagramSocket(0, loopback)), new UnreliableSocket(new DatagramSocket(0, loopback)) };
+			udpSockets[0].connect(loopback, udpSockets[1].getSocket().getLocalPort());
+			udpSockets[1].connect(loopback, udpSockets[0].getSocket().getLocalPort());
+			client = new PacketHandler(udpSockets[0].getInputStream(), udpSockets[0].getOutputStream(), "client", clientListener);
+			server = new PacketHandler(udpSockets[1].getInputStream(), udpSockets[1].getOutputStream(), "server", serverListener);
+		} else if (transport.equals("piped")) {
+			// Connect both pipes before the readers start
+			PipedInputStream clientIn = new PipedInputStream(64 * 1024);
+			PipedInputStream serverIn = new PipedInputStream(64 * 1024);
+			PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+			PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+			client = new PacketHandler(clientIn, clientOut, "client", clientListener);
+			server = new PacketHandler(serverIn, serverOut, "server", serverListener);
+		} else {
+			throw new IllegalArgumentException("Unknown transport: " + transport);
+		}
+		for (PacketHandler handler : new PacketHandler[] { client, server }) {
+			handler.registerPacket(BufferMessagePacket.class);
+			handler.setInstantFlush(true); // Piped streams only wake up the reader on flush
+		}
+		packet = new BufferMessagePacket(1, "Hello world", payloadSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+		if (serverSocket != null)
+			serverSocket.close();
+		if (udpSockets != null) {
+			udpSockets[0].close();
+			udpSockets[1].close();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public long throughput() {
+		long start = received.get();
+		for (int i = 0; i < BATCH; i++) {
+			while (!client.sendPacket(packet)) {
+				Thread.onSpinWait();
+			}
+		}
+		long deadline = System.nanoTime() + TIMEOUT;
+		while (received.get() - start < BATCH && System.nanoTime() < deadline) {
+			Thread.onSpinWait();
+		}
+		return received.get() - start;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int roundTrip() {
+		int echo = ++nextEcho;
+		if (echo == Integer.MAX_VALUE)
+			nextEcho = 0;
+		client.sendPacket(new BufferMessagePacket(-echo, "ping", payloadSize));
+		long deadline = System.nanoTime() + TIMEOUT;
+		while (lastEcho != echo && System.nanoTime() < deadline) {
+			Thread.onSpinWait();
+		}
+		return lastEcho;
+	}
+
+	private static abstract class Listener implements PacketListener {
+
+		@Override
+		public void onUnknownPacketReceived(PacketHandler handler, short id) {
+		}
+
+		@Override
+		public void onConnectionClosed(PacketHandler handler, String message, boolean expected) {
+		}
+
+		@Override
+		public void onConnectionFailed(PacketHandler handler, Throwable exception) {
+		}
+	}
+
+}
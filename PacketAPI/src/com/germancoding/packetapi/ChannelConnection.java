@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.germancoding.packetapi.jfr.BackpressureEvent;
+import com.germancoding.packetapi.jfr.PacketReceivedEvent;
+
+/**
+ * A nonblocking socket connection served by an {@link EventLoop}. Frames are read into a buffer and handed to the {@link PacketHandler} like the
+ * {@link DataReader} does, queued packets are encoded by the {@link LoopSender} into a write buffer which is written to the socket whenever it accepts
+ * data.<br>
+ * <br>
+ * Everything except {@link #requestWrite()} and {@link #requestClose()} runs on the event loop.
+ */
+final class ChannelConnection {
+
+	/** Initial size of the read and write buffers. Larger frames grow them, they shrink again once they are empty **/
+	static final int BUFFER_SIZE = 8192;
+	/** Encoded bytes buffered before they are written to the socket **/
+	static final int FLUSH_THRESHOLD = 64 * 1024;
+	/** Flushes per write request, other connections are served before the rest of a long queue is written **/
+	static final int MAX_WRITE_ROUNDS = 16;
+
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private SelectionKey key;
+	private PacketHandler handler;
+	private LoopSender sender;
+	private MemoryBudget budget;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE); // Only written by the loop, the sender encodes into it while flushing
+	private boolean readPaused;
+	private boolean rateLimited; // Reading is paused by a rate limit
+	private volatile boolean closed;
+	private volatile boolean closeRequested;
+	private HashedWheelTimer.Timeout closeDeadline; // Guarded by this
+	final AtomicBoolean writeRequested = new AtomicBoolean();
+
+	private final OutputStream output = new OutputStream() {
+
+		@Override
+		public void write(int b) throws IOException {
+			ensureWritable(1);
+			writeBuffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensureWritable(len);
+			writeBuffer.put(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			requestClose();
+		}
+	};
+
+	ChannelConnection(SocketChannel channel, EventLoop loop) {
+		this.channel = channel;
+		this.loop = loop;
+		loop.onConnectionAssigned();
+	}
+
+	/**
+	 * Sets the handler of this connection, called once before the connection is registered with its loop.
+	 */
+	void setHandler(PacketHandler handler) {
+		this.handler = handler;
+		this.sender = (LoopSender) handler.getSender();
+		this.budget = handler.getMemoryBudget();
+	}
+
+	/**
+	 * Registers the channel with the selector of the loop and starts reading.
+	 */
+	void register() {
+		if (closed)
+			return;
+		try {
+			key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		} catch (ClosedChannelException e) {
+			failRead(e);
+			return;
+		}
+		if (closeRequested || sender.hasSendable())
+			flush();
+	}
+
+	/**
+	 * Reads from the channel and dispatches all complete frames.
+	 */
+	void onReadable() {
+		try {
+			if (handler.isClosed())
+				readBuffer.clear(); // Nothing is dispatched anymore, only wait for the end of the stream
+			if (channel.read(readBuffer) < 0) {
+				onEndOfStream();
+				return;
+			}
+			dispatchFrames();
+		} catch (Exception e) {
+			failRead(e);
+		}
+	}
+
+	/**
+	 * Retries dispatching the frame that didn't fit into the memory budget, exceeded a rate limit or arrived while a transfer buffer was full.
+	 * 
+	 * @return Whether reading is still paused.
+	 */
+	boolean retryRead() {
+		if (closed)
+			return false;
+		readPaused = false;
+		try {
+			dispatchFrames();
+		} catch (Exception e) {
+			failRead(e);
+			return false;
+		}
+		if (!readPaused && !closed)
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		return readPaused;
+	}
+
+	private void dispatchFrames() throws IOException {
+		int growTo = 0;
+		readBuffer.flip();
+		try {
+			while (!handler.isClosed() && readBuffer.remaining() >= 4) {
+				DefaultPacketListener defaults = handler.getDefaultPacketListener();
+				if (defaults != null && defaults.hasFullTransfer()) {
+					pauseReading("Transfer buffer full, reading paused"); // Until the application read some chunks
+					break;
+				}
+				int length = readBuffer.getInt(readBuffer.position());
+				DataReader.checkLength(handler, length);
+				if (readBuffer.remaining() - 4 < length) {
+					if (readBuffer.capacity() - 4 < length)
+						growTo = length + 4;
+					break; // Wait for the rest of the frame
+				}
+				if (!budget.tryReserve(length)) {
+					if (!handler.continuesStreamPacket(readBuffer, readBuffer.position() + 4, length)) {
+						pauseReading("Memory budget exhausted, reading paused");
+						break;
+					}
+					budget.forceReserve(length); // Only the next chunks release the partly received packet
+				}
+				long delay = DataReader.admit(handler, readBuffer.getShort(readBuffer.position() + 4), length);
+				if (delay > 0) {
+					budget.release(length); // Reserved again when retrying
+					if (!rateLimited) {
+						rateLimited = true;
+						handler.getMetrics().onRateLimited();
+					}
+					pauseReading("Rate limit exceeded, reading paused");
+					break;
+				}
+				rateLimited = false;
+				if (delay < 0) {
+					readBuffer.position(readBuffer.position() + 4 + length); // Dropped, the bytes were released
+					continue;
+				}
+				PacketReceivedEvent event = new PacketReceivedEvent();
+				event.begin();
+				boolean handedOver = false;
+				try {
+					readBuffer.position(readBuffer.position() + 4);
+					byte[] data = new byte[length];
+					readBuffer.get(data);
+					DataReader.dispatch(handler, data, event);
+					handedOver = true;
+				} finally {
+					if (!handedOver)
+						budget.release(length);
+				}
+			}
+		} finally {
+			readBuffer.compact();
+		}
+		if (growTo > 0) {
+			ByteBuffer grown = ByteBuffer.allocate(growTo); // Exactly one frame, large frames are rare
+			readBuffer.flip();
+			grown.put(readBuffer);
+			readBuffer = grown;
+		} else if (readBuffer.position() == 0 && readBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			readBuffer = ByteBuffer.allocate(BUFFER_SIZE); // Shrink after a large frame
+		}
+	}
+
+	private void pauseReading(String reason) {
+		readPaused = true;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ); // Stop reading, the other side is slowed down by TCP
+		loop.pauseReading(this);
+		BackpressureEvent event = new BackpressureEvent();
+		if (event.shouldCommit()) {
+			event.set(handler.getConnectionName(), reason);
+			event.commit();
+		}
+	}
+
+	private void onEndOfStream() {
+		closeChannel();
+		if (handler.isClosed())
+			handler.finishClose(false); // The other side didn't wait for our ClosePacket
+		else
+			handler.onConnectionClosed("End of stream reached", false);
+	}
+
+	/**
+	 * Encodes queued packets into the write buffer and writes it to the channel until the socket doesn't accept more data, the queue is empty or the
+	 * connection was served {@link #MAX_WRITE_ROUNDS} times.
+	 */
+	void flush() {
+		if (closed || key == null)
+			return; // Not registered yet, flushed once it is
+		QueuedPacket inFlight = null;
+		try {
+			for (int round = 0; round < MAX_WRITE_ROUNDS; round++) {
+				while (!closeRequested && writeBuffer.position() < FLUSH_THRESHOLD) {
+					inFlight = sender.poll();
+					if (inFlight == null)
+						break;
+					boolean more = sender.write(inFlight);
+					inFlight = null;
+					if (!more)
+						break; // ClosePacket written, the handler requested closing
+				}
+				if (writeBuffer.position() == 0)
+					break;
+				writeBuffer.flip();
+				channel.write(writeBuffer);
+				writeBuffer.compact();
+				if (writeBuffer.position() > 0 || closeRequested || !sender.hasSendable())
+					break; // Socket buffer full or nothing left
+			}
+		} catch (IOException e) {
+			fail(inFlight, e);
+			return;
+		} catch (RuntimeException e) {
+			fail(inFlight, new IOException("Sending packet failed: " + e, e));
+			return;
+		}
+		if (writeBuffer.position() > 0) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); // Continue once the socket accepts data
+			return;
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		if (writeBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE)
+			writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		if (closeRequested)
+			closeChannel();
+		else if (sender.hasSendable())
+			loop.requestWrite(this); // Rounds exhausted
+		else if (sender.isRateLimited())
+			loop.delayWrite(this); // Retried once the rate limits may allow the next packet
+	}
+
+	private void ensureWritable(int bytes) throws IOException {
+		if (writeBuffer.remaining() >= bytes)
+			return;
+		long required = (long) writeBuffer.position() + bytes;
+		if (required > Integer.MAX_VALUE - 8)
+			throw new IOException("Write buffer overflow");
+		ByteBuffer grown = ByteBuffer.allocate((int) Math.min(Math.max(required, (long) writeBuffer.capacity() * 2), Integer.MAX_VALUE - 8));
+		writeBuffer.flip();
+		grown.put(writeBuffer);
+		writeBuffer = grown;
+	}
+
+	/**
+	 * Requests the queued packets to be written, can be called from any thread.
+	 */
+	void requestWrite() {
+		loop.requestWrite(this);
+	}
+
+	/**
+	 * Closes the channel once the write buffer is flushed, but at most after {@link PacketHandler#CLOSE_TIMEOUT} ms. Called when the handler closes its
+	 * output stream, can be called from any thread.
+	 */
+	void requestClose() {
+		synchronized (this) {
+			if (closeRequested || closed)
+				return;
+			closeRequested = true;
+			closeDeadline = HashedWheelTimer.getShared().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					loop.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							closeChannel();
+						}
+					});
+				}
+			}, PacketHandler.CLOSE_TIMEOUT);
+		}
+		loop.requestWrite(this);
+	}
+
+	/**
+	 * Fails the connection after a write error.
+	 */
+	private void fail(QueuedPacket inFlight, IOException e) {
+		sender.onWriteFailed(inFlight, e); // Notifies the handler
+		closeChannel();
+	}
+
+	/**
+	 * Fails the connection after a read error (or an exception thrown by a listener, like the {@link DataReader} does).
+	 */
+	private void failRead(Exception e) {
+		closeChannel();
+		if (handler.isClosed())
+			handler.finishClose(false);
+		else
+			handler.onConnectionFail(e);
+	}
+
+	/**
+	 * Closes the channel immediately, queued packets are dropped.
+	 */
+	void closeChannel() {
+		if (closed)
+			return;
+		closed = true;
+		synchronized (this) {
+			if (closeDeadline != null)
+				closeDeadline.cancel();
+			closeDeadline = null;
+		}
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			;
+		}
+		loop.onConnectionClosed(this, readPaused);
+		readPaused = false;
+		sender.stopSending(null);
+	}
+
+	/**
+	 * Called by the loop when it stops.
+	 */
+	void onLoopStopped() {
+		closeChannel();
+		if (!handler.isClosed())
+			handler.onConnectionClosed("Event loop stopped", true);
+	}
+
+	OutputStream getOutputStream() {
+		return output;
+	}
+
+	EventLoop getLoop() {
+		return loop;
+	}
+
+	PacketHandler getHandler() {
+		return handler;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+}
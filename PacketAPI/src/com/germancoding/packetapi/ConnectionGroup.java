@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A set of connections packets can be sent to at once, like the players of a room or the subscribers of a channel.<br>
+ * Members can be added and removed concurrently without locking. Closed connections leave all their groups automatically. The members are split
+ * into shards, large groups deliver the shards in parallel (using the executor of the group), so one send uses all cores instead of queueing
+ * thousands of packets on the calling thread.<br>
+ * <br>
+ * Packets are encoded only once per send, all members write the same {@link EncodedFrame}.
+ */
+public class ConnectionGroup {
+
+	/** Default number of shards of new groups. Default is the number of processors **/
+	public static int SHARDS = Runtime.getRuntime().availableProcessors();
+
+	/** Groups with less members deliver on the calling thread, the overhead of parallel delivery is not worth it. Default is 512 **/
+	public static int PARALLEL_THRESHOLD = 512;
+
+	private final String name;
+	private final Set<PacketHandler>[] shards;
+	private volatile Executor executor = ForkJoinPool.commonPool();
+
+	private final LongAdder size = new LongAdder();
+	private final LongAdder joined = new LongAdder();
+	private final LongAdder left = new LongAdder();
+	private final LongAdder sends = new LongAdder();
+	private final LongAdder packetsQueued = new LongAdder();
+	private final LongAdder bytesQueued = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	public ConnectionGroup(String name) {
+		this(name, SHARDS);
+	}
+
+	/**
+	 * @param name
+	 *            Name of the group, only used for monitoring.
+	 * @param shards
+	 *            Number of shards, the maximum number of threads delivering one send in parallel.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ConnectionGroup(String name, int shards) {
+		if (shards < 1)
+			throw new IllegalArgumentException("A group needs at least one shard");
+		this.name = name;
+		this.shards = new Set[shards];
+		for (int i = 0; i < shards; i++) {
+			this.shards[i] = ConcurrentHashMap.newKeySet();
+		}
+	}
+
+	private Set<PacketHandler> shardOf(PacketHandler handler) {
+		return shards[(System.identityHashCode(handler) & 0x7FFFFFFF) % shards.length];
+	}
+
+	/**
+	 * Adds a connection to this group. Closed connections are not added.
+	 * 
+	 * @return True if the connection was added, false if it is a member already or closed.
+	 */
+	public boolean add(PacketHandler handler) {
+		if (handler == null)
+			throw new IllegalArgumentException("handler can not be null");
+		if (handler.isClosed() || !shardOf(handler).add(handler))
+			return false;
+		size.increment();
+		joined.increment();
+		handler.joinedGroup(this);
+		if (handler.isClosed()) { // Closed concurrently, it may have left its groups before we were registered
+			remove(handler);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a connection from this group.
+	 * 
+	 * @return True if the connection was a member.
+	 */
+	public boolean remove(PacketHandler handler) {
+		if (handler == null || !shardOf(handler).remove(handler))
+			return false;
+		size.decrement();
+		left.increment();
+		handler.leftGroup(this);
+		return true;
+	}
+
+	public boolean contains(PacketHandler handler) {
+		return handler != null && shardOf(handler).contains(handler);
+	}
+
+	/**
+	 * @return The number of members.
+	 */
+	public int size() {
+		return (int) size.sum();
+	}
+
+	/**
+	 * @return A copy of the current members.
+	 */
+	public List<PacketHandler> getMembers() {
+		List<PacketHandler> members = new ArrayList<PacketHandler>(size());
+		for (Set<PacketHandler> shard : shards) {
+			members.addAll(shard);
+		}
+		return members;
+	}
+
+	/**
+	 * Sends a packet to all members.
+	 * 
+	 * @see #send(Packet, Predicate)
+	 */
+	public int send(Packet packet) throws IOException {
+		return send(packet, null);
+	}
+
+	/**
+	 * Sends a packet to all members accepted by the filter. The packet is encoded once, then the shards are delivered in parallel if the group is large.
+	 * Returns once the packet was queued on all members, not when it was written.
+	 * 
+	 * @param packet
+	 *            The packet to send. Must not be changed until all members sent it.
+	 * @param filter
+	 *            Decides which members get the packet (called concurrently for large groups) or <code>null</code> for all members.
+	 * @return The number of members the packet was queued on. Members with an exhausted memory budget (or closing members) are skipped.
+	 * @throws IOException
+	 *             If the packet could not be encoded.
+	 */
+	public int send(Packet packet, final Predicate<? super PacketHandler> filter) throws IOException {
+		final EncodedFrame frame = EncodedFrame.encode(packet);
+		sends.increment();
+		List<CompletableFuture<Integer>> futures = null;
+		try {
+			if (shards.length == 1 || size() < PARALLEL_THRESHOLD) {
+				int queued = 0;
+				for (Set<PacketHandler> shard : shards) {
+					queued += deliver(shard, frame, filter);
+				}
+				return queued;
+			}
+			futures = new ArrayList<CompletableFuture<Integer>>(shards.length - 1);
+			Executor executor = this.executor;
+			for (int i = 1; i < shards.length; i++) {
+				final Set<PacketHandler> shard = shards[i];
+				futures.add(CompletableFuture.supplyAsync(new Supplier<Integer>() {
+
+					@Override
+					public Integer get() {
+						return deliver(shard, frame, filter);
+					}
+				}, executor));
+			}
+			int queued = deliver(shards[0], frame, filter); // The calling thread takes a shard as well
+			for (CompletableFuture<Integer> future : futures) {
+				queued += future.join(); // Rethrows the failure of a shard, like an exception thrown by the filter
+			}
+			return queued;
+		} finally {
+			if (futures != null)
+				awaitShards(futures); // The other shards still use the frame if one of them failed
+			frame.release(); // The send queues hold their own references
+		}
+	}
+
+	private static void awaitShards(List<CompletableFuture<Integer>> futures) {
+		for (CompletableFuture<Integer> future : futures) {
+			try {
+				future.join();
+			} catch (CompletionException | CancellationException e) {
+				; // send() throws the first failure only
+			}
+		}
+	}
+
+	private int deliver(Set<PacketHandler> shard, EncodedFrame frame, Predicate<? super PacketHandler> filter) {
+		int queued = 0;
+		int skipped = 0;
+		for (PacketHandler handler : shard) {
+			if (filter != null && !filter.test(handler))
+				continue;
+			if (handler.sendFrame(frame))
+				queued++;
+			else
+				skipped++;
+		}
+		packetsQueued.add(queued);
+		bytesQueued.add((long) queued * frame.size());
+		dropped.add(skipped);
+		return queued;
+	}
+
+	/**
+	 * Closes all members in parallel.
+	 * 
+	 * @see PacketHandler#closeAll(java.util.Collection)
+	 */
+	public CompletableFuture<Void> closeAll() {
+		return PacketHandler.closeAll(getMembers());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The executor delivering shards of large groups in parallel. Default is the common <code>ForkJoinPool</code>.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(Executor executor) {
+		if (executor == null)
+			throw new IllegalArgumentException("executor can not be null");
+		this.executor = executor;
+	}
+
+	/**
+	 * @return The number of shards.
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * @return How often a packet was sent to this group.
+	 */
+	public long getSends() {
+		return sends.sum();
+	}
+
+	/**
+	 * @return The number of packets queued on members, one per member and send.
+	 */
+	public long getPacketsQueued() {
+		return packetsQueued.sum();
+	}
+
+	/**
+	 * @return The bytes queued on members, counted once per member.
+	 */
+	public long getBytesQueued() {
+		return bytesQueued.sum();
+	}
+
+	/**
+	 * @return The number of packets not queued because the member's memory budget was exhausted or the member was closing.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getJoined() {
+		return joined.sum();
+	}
+
+	public long getLeft() {
+		return left.sum();
+	}
+
+	/**
+	 * @return The number of packets waiting in the send queues of all members. Useful to spot slow members holding back a group.
+	 */
+	public long getQueuedPackets() {
+		long queued = 0;
+		for (Set<PacketHandler> shard : shards) {
+			for (PacketHandler handler : shard) {
+				queued += handler.getMetrics().getQueuedPackets();
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * @return All counters by name. The sums are not an atomic snapshot, counters may change while they are read.
+	 */
+	public Map<String, Long> snapshot() {
+		LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+		values.put("members", (long) size());
+		values.put("joined", getJoined());
+		values.put("left", getLeft());
+		values.put("sends", getSends());
+		values.put("packets_queued", getPacketsQueued());
+		values.put("bytes_queued", getBytesQueued());
+		values.put("dropped", getDropped());
+		values.put("queued_packets", getQueuedPackets());
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionGroup[" + name + " " + snapshot() + "]";
+	}
+
+}
@@ -1,93 +1,304 @@
-/*******************************************************************************
- * The MIT License (MIT)
- *
- * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
- *
- * Permission is hereby granted, free of charge, to any person obtaining a copy
- * of this software and associated documentation files (the "Software"), to deal
- * in the Software without restriction, including without limitation the rights
- * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
- * copies of the Software, and to permit persons to whom the Software is
- * furnished to do so, subject to the following conditions:
- *
- * The above copyright notice and this permission notice shall be included in all
- * copies or substantial portions of the Software.
- *
- * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
- * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
- * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
- * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
- * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
- * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
- * SOFTWARE.
- *******************************************************************************/
-package com.germancoding.packetapi;
-
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.EOFException;
-import java.io.IOException;
-
-public class DataReader extends Thread {
-
-	protected PacketHandler handler;
-
-	public DataReader(PacketHandler packetHandler) {
-		this.handler = packetHandler;
-		this.setName("DataReader - " + handler.getConnectionName());
-		this.start();
-	}
-
-	@Override
-	public void run() {
-		DataInputStream in = new DataInputStream(handler.in);
-		try {
-			while (!Thread.interrupted()) {
-				int length = in.readInt();
-				if (length <= 0) {
-					throw new IOException("Protocol violation: Illegal length received");
-				}
-				
-				byte[] data = new byte[length];
-				in.readFully(data); // Read the whole packet into the buffer
-				// Create a sub-inputstream which can only read this packet
-				DataInputStream packetIn = new DataInputStream(new ByteArrayInputStream(data));
-
-				short id = packetIn.readShort();
-
-				Packet packet = handler.getNewPacketInstance(id);
-				if (packet == null) {
-					handler.onUnknownPacketReceived(id);
-					continue;
-				}
-
-				try {
-					packet.handle(packetIn);
-				} catch (IOException e) {
-					if (packet.isCritical())
-						throw new IOException("Parsing packet with id " + id + " failed: " + e);
-					else
-						continue;
-				}
-
-				if (packetIn.available() > 0) {
-					System.out.println("[DEBUG] [" + this.getName() + "] Packet with id " + id + " was not fully read, " + packetIn.available() + " bytes left in the buffer.");
-					// TODO: Remove this debug message in release version
-				}
-				handler.onPacketReceived(packet);
-			}
-		} catch (Exception e) {
-			if (Thread.interrupted() || handler.isClosed() || e instanceof InterruptedException)
-				return; // Close silently
-			if (e instanceof EOFException) {
-				handler.onConnectionClosed("EOFException in DataReader", false);
-			} else {
-				handler.onConnectionFail(e);
-			}
-		} finally {
-			// Just to make sure we cleaned up here
-			handler = null;
-		}
-	}
-
-}
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.germancoding.packetapi.capture.PacketCapture;
+import com.germancoding.packetapi.defaultpackets.KeepAlivePacket;
+import com.germancoding.packetapi.jfr.BackpressureEvent;
+import com.germancoding.packetapi.jfr.PacketReceivedEvent;
+import com.germancoding.packetapi.metrics.ConnectionMetrics;
+
+public class DataReader extends Thread {
+
+	protected PacketHandler handler;
+
+	public DataReader(PacketHandler packetHandler) {
+		this(packetHandler, true);
+	}
+
+	/**
+	 * @param start
+	 *            Whether to start this thread. Subclasses receiving from somewhere else than the InputStream of the handler override {@link #run()} and
+	 *            may start the thread later.
+	 */
+	protected DataReader(PacketHandler packetHandler, boolean start) {
+		this.handler = packetHandler;
+		this.setName("DataReader - " + handler.getConnectionName());
+		if (start)
+			this.start();
+	}
+
+	@Override
+	public void run() {
+		InputStream stream = handler.in;
+		DataInputStream in = new DataInputStream(stream);
+		boolean reading = true; // False while a frame is checked and dispatched
+		try {
+			while (!Thread.interrupted() && handler.in == stream) { // Handed over to a resumed session otherwise
+				int length = in.readInt();
+				reading = false;
+				checkLength(handler, length);
+				reading = true;
+
+				MemoryBudget budget = handler.getMemoryBudget();
+				byte[] data = null;
+				if (!budget.tryReserve(length)) {
+					BackpressureEvent backpressure = new BackpressureEvent();
+					backpressure.begin();
+					if (handler.isAssemblingStreams()) {
+						// The budget may be held by packets partly received on streams, which only their next chunks release
+						data = new byte[length];
+						in.readFully(data);
+						awaitBudget(handler, budget, data);
+					} else {
+						budget.reserve(length); // Blocks (and stops reading) while the budget is exhausted
+					}
+					backpressure.end();
+					if (backpressure.shouldCommit()) {
+						backpressure.set(handler.getConnectionName(), "Memory budget exhausted, reading paused");
+						backpressure.commit();
+					}
+				}
+				boolean handedOver = false;
+				PacketReceivedEvent event = new PacketReceivedEvent();
+				event.begin();
+				try {
+					if (data == null) {
+						data = new byte[length];
+						in.readFully(data); // Read the whole packet into the buffer
+					}
+					reading = false;
+					if (!handler.onFrameReceived(stream, data))
+						budget.release(length); // Read from replaced streams, sent again
+					else if (awaitAdmission(handler, getId(data), length))
+						dispatch(handler, data, event);
+					handedOver = true;
+					reading = true;
+				} finally {
+					if (!handedOver)
+						budget.release(length);
+				}
+			}
+		} catch (Exception e) {
+			if (Thread.interrupted() || handler.isClosed() || e instanceof InterruptedException)
+				return; // Close silently
+			if (reading && e instanceof IOException && handler.onStreamFailed(stream, (IOException) e))
+				return; // Waiting to be resumed on new streams
+			if (e instanceof EOFException) {
+				handler.onConnectionClosed("EOFException in DataReader", false);
+			} else {
+				handler.onConnectionFail(e);
+			}
+		} finally {
+			// Just to make sure we cleaned up here
+			handler = null;
+		}
+	}
+
+	/**
+	 * Checks the length field of a frame.
+	 * 
+	 * @throws IOException
+	 *             If the length is a protocol violation.
+	 */
+	static void checkLength(PacketHandler handler, int length) throws IOException {
+		if (length <= 0) {
+			throw new IOException("Protocol violation: Illegal length received");
+		}
+
+		if (length < 2) {
+			throw new IOException("Protocol violation: Packet without id received");
+		}
+		if (length > handler.getMaxPacketSize()) {
+			throw new IOException("Protocol violation: Packet of " + length + " bytes exceeds the limit of " + handler.getMaxPacketSize() + " bytes");
+		}
+	}
+
+	/**
+	 * Reserves the size of a frame that was read already, waiting while the budget is exhausted. Chunks continuing a packet partly received on a stream
+	 * are admitted right away.
+	 */
+	private static void awaitBudget(PacketHandler handler, MemoryBudget budget, byte[] data) throws InterruptedException {
+		while (!budget.tryReserve(data.length)) {
+			if (handler.continuesStreamPacket(ByteBuffer.wrap(data), 0, data.length)) {
+				budget.forceReserve(data.length);
+				return;
+			}
+			synchronized (budget) {
+				budget.wait(50); // Chunks queued before may start a partly received packet meanwhile
+			}
+		}
+	}
+
+	/**
+	 * @return The packet id of a frame (id and data, without the length).
+	 */
+	static short getId(byte[] data) {
+		return (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+	}
+
+	/**
+	 * Applies the ingress rate limits of the handler to a received frame, whose size has to be reserved in the memory budget of the handler. Frames dropped
+	 * by a limit (or closing the connection) release the reserved bytes.
+	 * 
+	 * @param length
+	 *            The size of the frame (id and data).
+	 * @return 0 if the frame may be dispatched, -1 if it was dropped, otherwise the time (in nanoseconds) to wait before checking it again.
+	 */
+	static long admit(PacketHandler handler, short id, int length) {
+		RateLimits limits = handler.getIngressLimits();
+		long verdict = limits.check(id);
+		if (verdict == RateLimits.DROP && handler.isCritical(id))
+			verdict = limits.delay(id); // Critical packets are delayed instead
+		if (verdict > 0)
+			return verdict;
+		if (verdict == 0) {
+			limits.record(id, length + 4);
+			return 0;
+		}
+		handler.getMetrics().onRateLimited();
+		handler.releaseReceived(id, length); // Still grants credit, the other side counted it
+		if (verdict == RateLimits.CLOSE)
+			handler.onConnectionClosed(PacketHandler.RATE_LIMIT_MESSAGE, false);
+		return -1;
+	}
+
+	/**
+	 * Waits (without reading further frames) until a received frame passes the ingress rate limits of the handler, see
+	 * {@link #admit(PacketHandler, short, int)}.
+	 * 
+	 * @return False if the frame was dropped.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	static boolean awaitAdmission(PacketHandler handler, short id, int length) throws InterruptedException {
+		long delay = admit(handler, id, length);
+		if (delay <= 0)
+			return delay == 0;
+		handler.getMetrics().onRateLimited();
+		BackpressureEvent backpressure = new BackpressureEvent();
+		backpressure.begin();
+		do {
+			TimeUnit.NANOSECONDS.sleep(delay);
+		} while ((delay = admit(handler, id, length)) > 0);
+		backpressure.end();
+		if (backpressure.shouldCommit()) {
+			backpressure.set(handler.getConnectionName(), "Rate limit exceeded, reading delayed");
+			backpressure.commit();
+		}
+		return delay == 0;
+	}
+
+	/**
+	 * Decodes a received frame (id and data, without the length) and hands the packet to the handler. The size of the frame has to be reserved in the
+	 * memory budget of the handler.
+	 * 
+	 * The handler releases the reserved bytes once the packet is processed, or right away if it is dropped (unknown packets and non critical packets that
+	 * could not be decoded). Only if this method throws, the caller has to release them.
+	 * 
+	 * @param event
+	 *            Event started when the frame began to arrive.
+	 * @throws IOException
+	 *             If a critical packet could not be decoded.
+	 */
+	static void dispatch(PacketHandler handler, byte[] data, PacketReceivedEvent event) throws IOException {
+		int length = data.length;
+		ConnectionMetrics metrics = handler.getMetrics();
+		handler.setLastPacketReceived(System.currentTimeMillis());
+		PacketCapture capture = handler.getCapture();
+		if (capture != null)
+			capture.record(PacketCapture.RECEIVED, data, 0, length);
+		// The buffer can only read this packet
+		ByteBuffer packetIn = ByteBuffer.wrap(data);
+
+		short id = packetIn.getShort();
+		metrics.onPacketReceived(id, length + 4);
+
+		Packet packet = handler.getNewPacketInstance(id);
+		if (packet == null) {
+			metrics.onUnknownPacket();
+			handler.releaseReceived(id, length); // Still grants credit, the other side counted it
+			handler.onUnknownPacketReceived(id);
+			return;
+		}
+
+		try {
+			packet.decode(packetIn);
+		} catch (IOException | BufferUnderflowException e) {
+			metrics.onDecodeFailure();
+			if (packet.isCritical())
+				throw new IOException("Parsing packet with id " + id + " failed: " + e);
+			handler.releaseReceived(id, length);
+			return;
+		}
+
+		if (packetIn.hasRemaining()) {
+			System.out.println("[DEBUG] [" + Thread.currentThread().getName() + "] Packet with id " + id + " was not fully read, " + packetIn.remaining() + " bytes left in the buffer.");
+			// TODO: Remove this debug message in release version
+		}
+		if (packet instanceof KeepAlivePacket) {
+			((KeepAlivePacket) packet).setReceiveTime(System.nanoTime()); // Processing may be delayed, take the time now
+		}
+		deliver(handler, packet, length, event);
+	}
+
+	/**
+	 * Hands a packet received as an object (from a {@link LocalConnection}) to the handler, like {@link #dispatch(PacketHandler, byte[], PacketReceivedEvent)}
+	 * does after decoding. Packets of types not registered at the handler are treated as unknown packets.
+	 * 
+	 * @param length
+	 *            The bytes counted for the packet, reserved in the memory budget of the handler.
+	 */
+	static void dispatch(PacketHandler handler, Packet packet, int length, PacketReceivedEvent event) {
+		short id = packet.getId();
+		handler.setLastPacketReceived(System.currentTimeMillis());
+		handler.getMetrics().onPacketReceived(id, length + 4);
+		if (!handler.isRegistered(id)) {
+			handler.logger.warning("Packet with id=" + id + " not found");
+			handler.getMetrics().onUnknownPacket();
+			handler.releaseReceived(id, length);
+			handler.onUnknownPacketReceived(id);
+			return;
+		}
+		deliver(handler, packet, length, event);
+	}
+
+	private static void deliver(PacketHandler handler, Packet packet, int length, PacketReceivedEvent event) {
+		event.set(handler.getConnectionName(), packet.getId(), length + 4); // Set before processing, a ClosePacket disposes the handler
+		handler.onPacketReceived(packet, length); // The handler releases the reserved bytes once the packet is processed
+		event.end();
+		if (event.shouldCommit()) {
+			event.commit();
+		}
+	}
+
+}
@@ -1,109 +1,787 @@
-/*******************************************************************************
- * The MIT License (MIT)
- *
- * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
- *
- * Permission is hereby granted, free of charge, to any person obtaining a copy
- * of this software and associated documentation files (the "Software"), to deal
- * in the Software without restriction, including without limitation the rights
- * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
- * copies of the Software, and to permit persons to whom the Software is
- * furnished to do so, subject to the following conditions:
- *
- * The above copyright notice and this permission notice shall be included in all
- * copies or substantial portions of the Software.
- *
- * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
- * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
- * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
- * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
- * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
- * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
- * SOFTWARE.
- *******************************************************************************/
-package com.germancoding.packetapi;
-
-import java.io.DataOutputStream;
-import java.io.EOFException;
-import java.io.IOException;
-import java.util.LinkedList;
-
-import com.germancoding.packetapi.defaultpackets.KeepAlivePacket;
-
-public class DataSender extends Thread {
-
-	protected PacketHandler handler;
-	protected LinkedList<Packet> sendQueue = new LinkedList<Packet>();
-
-	public DataSender(PacketHandler handler) {
-		this.handler = handler;
-		this.setName("DataSender - " + handler.getConnectionName());
-		this.start();
-	}
-
-	public void sendPacket(Packet packet) {
-		synchronized (sendQueue) {
-			sendQueue.add(packet);
-		}
-		synchronized (this) {
-			this.notify();
-		}
-	}
-
-	public boolean queueEmpty() {
-		synchronized (sendQueue) {
-			return sendQueue.isEmpty();
-		}
-	}
-
-	@Override
-	public void run() {
-		try {
-			while (!Thread.interrupted()) {
-				Packet toSend = null;
-				synchronized (sendQueue) {
-					if (!sendQueue.isEmpty())
-						toSend = sendQueue.removeFirst();
-				}
-				if (toSend != null) {
-					// Create a new DOS every time to avoid buffer overflows (the written counter is an integer which will get stuck at Integer.MAX_VALUE at some point)
-					DataOutputStream dos = new DataOutputStream(handler.out);
-					PacketWriter writer = toSend.prepare();
-					dos.writeInt(writer.toByteArray().length); // Write packet length
-					dos.write(writer.toByteArray()); // Write packetID and content - The PacketWriter already prepared this data for us
-
-					if (handler.isInstantFlush()) {
-						dos.flush(); // Flush it, (R)UDP implementations will send at least one UDP packet with the written data
-					}
-					
-					handler.setLastPacketSend(System.currentTimeMillis());
-				} else if (handler.autoSendKeepAlive() && handler.shouldSendKeepAlive()) {
-					KeepAlivePacket autoKeepAlive = new KeepAlivePacket();
-					handler.sendPacket(autoKeepAlive); // We will send this packet in the next loop, right now it's in the queue
-				} else {
-					synchronized (this) {
-						try {
-							this.wait(PacketHandler.DATA_TIMEOUT); // Wakeup after some time to send KeepAlive's
-						} catch (InterruptedException e) {
-							return;
-						}
-					}
-				}
-			}
-		} catch (IOException e) {
-			if (Thread.interrupted() || handler.isClosed())
-				return; // Close silently
-			if (e instanceof EOFException) { // EOF = End of File (Though, we don't have a "file" here)
-				// Are EOF's possible in a SENDING stream??? But anyway, handling them is always good...
-				handler.onConnectionClosed("EOFException in DataSender", false);
-			} else {
-				handler.onConnectionFail(e);
-			}
-		} finally {
-			// Just to make sure we cleaned up here
-			handler = null;
-			sendQueue.clear();
-			// Do not set sendQueue to null, because close() may be running currently
-		}
-	}
-}
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.germancoding.packetapi.capture.PacketCapture;
+import com.germancoding.packetapi.defaultpackets.ClosePacket;
+import com.germancoding.packetapi.defaultpackets.CreditPacket;
+import com.germancoding.packetapi.defaultpackets.DefaultPacket;
+import com.germancoding.packetapi.defaultpackets.IDRegistry;
+import com.germancoding.packetapi.defaultpackets.KeepAlivePacket;
+import com.germancoding.packetapi.defaultpackets.RpcPacket;
+import com.germancoding.packetapi.defaultpackets.SessionPacket;
+import com.germancoding.packetapi.defaultpackets.StreamPacket;
+import com.germancoding.packetapi.defaultpackets.TransferPacket;
+import com.germancoding.packetapi.jfr.BackpressureEvent;
+import com.germancoding.packetapi.jfr.FlushEvent;
+import com.germancoding.packetapi.jfr.PacketSentEvent;
+import com.germancoding.packetapi.metrics.ConnectionMetrics;
+import com.germancoding.packetapi.metrics.LatencyTracker;
+import com.germancoding.packetapi.metrics.LatencyTracker.Stage;
+
+public class DataSender extends Thread {
+
+	protected PacketHandler handler;
+	// Holds queue entries (packet, enqueue time, future and frame) instead of packets. Subclasses use getQueuedPackets() instead of the queue itself.
+	final LinkedList<QueuedPacket> sendQueue = new LinkedList<QueuedPacket>();
+	protected MemoryBudget budget;
+	protected ConnectionMetrics metrics;
+	protected volatile LatencyTracker latency; // Null if latency tracking is disabled
+	protected OutputStream out;
+	private OutputStream target; // The stream of the handler out writes to
+	private final Session session; // Null if the connection can't be resumed
+	private volatile OutputStream resumeTarget; // New stream to continue on, guarded by this
+	private Packet resumeGreeting; // First packet written to the new stream, guarded by this
+	private long replayFrom = -1; // Frames the other side received, -1 until known. Guarded by this
+	private boolean stopped; // Guarded by sendQueue, set when sending stopped and nothing is send anymore
+	protected volatile boolean failed; // Set when writing failed
+	private volatile int remoteWindow; // Receive window of the other side, 0 if it doesn't grant credit
+	private volatile long remoteConsumed; // Bytes the other side processed, as reported by its last CreditPacket
+	private volatile long sentBytes; // Flow controlled bytes written, only changed by the sending thread
+	private boolean creditBlocked; // Guarded by sendQueue
+	private final RateLimits limits; // Egress rate limits of the handler
+	private volatile long limitDeadline; // System.nanoTime() until which the next packet waits for the rate limits, 0 if it doesn't. Written under sendQueue
+	private boolean limitBlocked; // Guarded by sendQueue
+	// Flush state, only used by the sending thread
+	private long unflushedBytes;
+	private long unflushedSince;
+	private long flushDeadline; // System.nanoTime() at which the buffered packets are flushed at the latest, 0 if none is pending
+	private long lastWrite;
+	private long averageGap; // Moving average of the nanoseconds between two written packets
+
+	/** Size (in bytes) of the buffer packets are written to before they are flushed, see {@link FlushPolicy}. Default is 8 KiB **/
+	public static int SEND_BUFFER_SIZE = 8192;
+
+	/** Estimated heap (in bytes) used by a packet waiting in the queue. The actual size is only known once the packet was encoded. Default is 64 **/
+	public static int QUEUED_PACKET_SIZE = 64;
+
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+	private ByteBuffer encodeBuffer = ByteBuffer.allocate(8192);
+
+	public DataSender(PacketHandler handler) {
+		this(handler, true);
+	}
+
+	/**
+	 * @param start
+	 *            Whether to start this thread. Subclasses sending on another thread (like an event loop) don't start it and use the methods called by
+	 *            {@link #run()} instead.
+	 */
+	protected DataSender(PacketHandler handler, boolean start) {
+		this.handler = handler;
+		// Cached, the handler unsets its streams when it is disposed. Senders of event loops write into the buffer of their connection.
+		this.out = start ? new BufferedOutputStream(handler.out, SEND_BUFFER_SIZE) : handler.out;
+		this.target = handler.out;
+		this.session = handler.getSession();
+		this.budget = handler.getMemoryBudget(); // Cached, the handler is unset when this thread ends
+		this.metrics = handler.getMetrics();
+		this.limits = handler.getEgressLimits();
+		this.setName("DataSender - " + handler.getConnectionName());
+		if (start)
+			this.start();
+	}
+
+	/**
+	 * Adds a packet to the sending queue.
+	 * 
+	 * @return False if the packet was rejected because the memory budget is exhausted (default packets are never rejected, except for requests and
+	 *         responses) or the connection is closed.
+	 */
+	public boolean sendPacket(Packet packet) {
+		return enqueue(packet, null, null);
+	}
+
+	/**
+	 * Adds a frame encoded in advance to the sending queue. The queue holds its own reference until the frame is written, the caller keeps its
+	 * reference.
+	 * 
+	 * @return False if the frame was rejected because the memory budget is exhausted or the connection is closed.
+	 */
+	public boolean sendFrame(EncodedFrame frame) {
+		Packet packet = frame.getPacket();
+		if (packet == null)
+			throw new IllegalStateException("Frame was released already");
+		return enqueue(packet, null, frame);
+	}
+
+	/**
+	 * Adds a packet to the sending queue and returns a future which is completed once the packet is written to the output stream (it may still be
+	 * buffered, see {@link FlushPolicy}). The future fails if the packet is rejected (see {@link #sendPacket(Packet)}), can not be encoded or written, or the
+	 * connection is closed before it was send.
+	 * 
+	 * @return A future completed when the packet was written.
+	 */
+	public CompletableFuture<Void> sendAsync(Packet packet) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		enqueue(packet, future, null);
+		return future;
+	}
+
+	private boolean enqueue(Packet packet, CompletableFuture<Void> future, EncodedFrame frame) {
+		if (respectsBudget(packet) && budget.isExhausted()) {
+			budget.onRejected();
+			metrics.onRejectedPacket();
+			BackpressureEvent event = new BackpressureEvent();
+			if (event.shouldCommit()) {
+				event.set(budget.getName(), "Memory budget exhausted, packet with id " + packet.getId() + " rejected");
+				event.commit();
+			}
+			if (future != null)
+				future.completeExceptionally(new IOException("Memory budget exhausted, packet with id " + packet.getId() + " rejected"));
+			return false;
+		}
+		QueuedPacket entry = new QueuedPacket(packet, latency != null ? System.nanoTime() : 0, future, frame);
+		synchronized (sendQueue) {
+			if (stopped) {
+				if (future != null)
+					future.completeExceptionally(new IOException("Connection closed"));
+				return false;
+			}
+			if (frame != null)
+				frame.retain(); // Released once written
+			budget.forceReserve(QUEUED_PACKET_SIZE);
+			if (packet instanceof CreditPacket || packet instanceof KeepAlivePacket || packet instanceof SessionPacket)
+				sendQueue.addFirst(entry); // Never wait behind packets that wait for credit, the other side may wait for this credit as well
+			else
+				sendQueue.add(entry);
+		}
+		metrics.onQueued(1);
+		onPacketQueued();
+		return true;
+	}
+
+	/**
+	 * @return Whether the packet is rejected while the memory budget is exhausted. Default packets are always accepted, except for requests and
+	 *         responses of remote calls: They carry application packets.
+	 */
+	static boolean respectsBudget(Packet packet) {
+		if (packet instanceof RpcPacket)
+			return ((RpcPacket) packet).getType() != RpcPacket.TYPE_ERROR;
+		return !(packet instanceof DefaultPacket);
+	}
+
+	/**
+	 * Encodes a packet that overrides <code>Packet.encode(ByteBuffer)</code> into a reused buffer. The buffer grows if the packet doesn't fit.
+	 * 
+	 * @return A buffer (big endian) containing the whole frame (length, id and data), ready to be written. Only valid until the next call.
+	 */
+	protected ByteBuffer encode(Packet packet) throws IOException {
+		ByteBuffer buffer = encodeBuffer;
+		while (true) {
+			buffer.clear();
+			buffer.putInt(0); // Placeholder for the length
+			buffer.putShort(packet.getId());
+			try {
+				packet.encode(buffer);
+				break;
+			} catch (BufferOverflowException e) {
+				if (buffer.capacity() >= MAX_BUFFER_SIZE)
+					throw new IOException("Packet with id " + packet.getId() + " is too large to be encoded");
+				buffer = ByteBuffer.allocate((int) Math.min((long) buffer.capacity() * 2, MAX_BUFFER_SIZE));
+			}
+		}
+		buffer.putInt(0, buffer.position() - 4); // Length of id and data
+		buffer.flip();
+		if (buffer.capacity() <= MAX_RETAINED_BUFFER_SIZE) {
+			encodeBuffer = buffer; // Keep grown buffers, unless they are really big
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return A snapshot of the packets waiting in the send queue, in the order they are sent. Replaces the protected <code>sendQueue</code> of older
+	 *         versions, packets are queued with {@link #sendPacket(Packet)} or {@link #sendAsync(Packet)}.
+	 */
+	protected List<Packet> getQueuedPackets() {
+		synchronized (sendQueue) {
+			ArrayList<Packet> packets = new ArrayList<Packet>(sendQueue.size());
+			for (QueuedPacket queued : sendQueue) {
+				packets.add(queued.packet);
+			}
+			return packets;
+		}
+	}
+
+	public boolean queueEmpty() {
+		synchronized (sendQueue) {
+			return sendQueue.isEmpty();
+		}
+	}
+
+	@Override
+	public void run() {
+		QueuedPacket entry = null;
+		try {
+			while (!Thread.interrupted()) {
+				if (resumeTarget != null)
+					awaitResume(); // Continue on the new streams first
+				entry = poll();
+				if (entry != null) {
+					if (!write(entry))
+						return; // Closed
+				} else {
+					onIdle();
+					synchronized (this) {
+						try {
+							// Keep-alives are scheduled by the handler's timer, nothing to do until a packet is queued (or credit is granted)
+							// or buffered packets have to be flushed. Check again while holding the lock, sendPacket() notifies after adding the packet.
+							if (!hasSendable() && resumeTarget == null) {
+								long deadline = flushDeadline;
+								long limited = limitDeadline;
+								if (limited != 0 && (deadline == 0 || limited - deadline < 0))
+									deadline = limited; // Wake up once the rate limits allow the next packet
+								if (deadline == 0)
+									this.wait();
+								else
+									TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+							}
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (flushDeadline != 0 && System.nanoTime() - flushDeadline >= 0)
+						flush();
+				}
+			}
+		} catch (IOException e) {
+			onWriteFailed(entry, e);
+		} catch (InterruptedException e) {
+			; // Closed while waiting to be resumed
+		} finally {
+			stopSending(entry);
+		}
+	}
+
+	/**
+	 * Removes the next packet from the queue. Packets dropped by the egress rate limits are removed and failed on the way.
+	 * 
+	 * @return The next entry or <code>null</code> if the queue is empty or the next packet has to wait for flow control credit or the rate limits.
+	 */
+	QueuedPacket poll() {
+		while (true) {
+			QueuedPacket dropped;
+			long verdict;
+			synchronized (sendQueue) {
+				limitDeadline = 0;
+				if (sendQueue.isEmpty())
+					return null;
+				QueuedPacket first = sendQueue.getFirst();
+				if (!hasCredit(first)) {
+					if (!creditBlocked) {
+						creditBlocked = true;
+						metrics.onCreditBlocked();
+						BackpressureEvent event = new BackpressureEvent();
+						if (event.shouldCommit()) {
+							event.set(budget.getName(), "Flow control: Waiting for credit of the other side");
+							event.commit();
+						}
+					}
+					return null;
+				}
+				creditBlocked = false;
+				verdict = checkLimits(first);
+				if (verdict == 0) {
+					limitBlocked = false;
+					return sendQueue.removeFirst();
+				}
+				if (verdict > 0) {
+					limitDeadline = System.nanoTime() + verdict;
+					if (!limitBlocked) {
+						limitBlocked = true;
+						metrics.onRateLimited();
+						BackpressureEvent event = new BackpressureEvent();
+						if (event.shouldCommit()) {
+							event.set(budget.getName(), "Rate limit exceeded, sending delayed");
+							event.commit();
+						}
+					}
+					return null;
+				}
+				dropped = sendQueue.removeFirst();
+			}
+			metrics.onRateLimited();
+			budget.release(QUEUED_PACKET_SIZE);
+			metrics.onQueued(-1);
+			if (dropped.packet instanceof TransferPacket)
+				((TransferPacket) dropped.packet).closeSource();
+			if (dropped.future != null)
+				dropped.future.completeExceptionally(new IOException(PacketHandler.RATE_LIMIT_MESSAGE));
+			if (dropped.frame != null)
+				dropped.frame.release();
+			PacketHandler handler = this.handler;
+			if (verdict == RateLimits.CLOSE && handler != null)
+				handler.onConnectionClosed(PacketHandler.RATE_LIMIT_MESSAGE, false); // Packets still exceeding the limit are dropped while closing
+		}
+	}
+
+	/**
+	 * @return Whether a packet can be taken from the queue (it is not empty and the next packet doesn't wait for credit or the rate limits).
+	 */
+	boolean hasSendable() {
+		synchronized (sendQueue) {
+			return !sendQueue.isEmpty() && hasCredit(sendQueue.getFirst()) && checkLimits(sendQueue.getFirst()) <= 0;
+		}
+	}
+
+	/**
+	 * @return Whether the next packet waits for the egress rate limits.
+	 */
+	boolean isRateLimited() {
+		return limitDeadline != 0;
+	}
+
+	/**
+	 * @return The verdict of the egress rate limits for a queued packet, see {@link RateLimits#check(short)}. Critical packets are delayed instead of
+	 *         dropped.
+	 */
+	private long checkLimits(QueuedPacket entry) {
+		short id = entry.packet.getId();
+		long verdict = limits.check(id);
+		if (verdict == RateLimits.DROP && entry.packet.isCritical())
+			verdict = limits.delay(id);
+		return verdict;
+	}
+
+	private boolean hasCredit(QueuedPacket entry) {
+		short id = entry.packet.getId();
+		if (session != null && !session.hasRoom() && session.isEstablished() && Session.isSequenced(id))
+			return false; // The retransmit buffer is full, wait for acknowledgements
+		// A packet may exceed the remaining credit, otherwise packets larger than the window could never be sent
+		return remoteWindow == 0 || !isFlowControlled(id) || sentBytes < remoteConsumed + remoteWindow;
+	}
+
+	/**
+	 * Whether packets with the given id use flow control credit. Packets keeping the connection alive (handshake, close, keep-alive and credit itself) are
+	 * exempt.
+	 */
+	static boolean isFlowControlled(short id) {
+		return id != IDRegistry.HANDSHAKE_PACKET && id != IDRegistry.CLOSE_PACKET && id != IDRegistry.KEEPALIVE_PACKET && id != IDRegistry.CREDIT_PACKET
+				&& id != IDRegistry.SESSION_PACKET;
+	}
+
+	/**
+	 * Enables flow control, called when the handshake of the other side arrived.
+	 * 
+	 * @param window
+	 *            The receive window of the other side, 0 disables flow control.
+	 */
+	void setRemoteWindow(int window) {
+		remoteWindow = window;
+		onPacketQueued(); // Wake up, blocked packets may be sendable now
+	}
+
+	/**
+	 * Called when a CreditPacket arrived.
+	 */
+	void onCreditReceived(long consumed) {
+		if (consumed <= remoteConsumed)
+			return; // Reordered (UDP) or duplicate
+		remoteConsumed = consumed;
+		onPacketQueued(); // Wake up, blocked packets may be sendable now
+	}
+
+	/**
+	 * @return Bytes that may be sent before waiting for credit of the other side, {@link Long#MAX_VALUE} if the other side doesn't use flow control.
+	 */
+	public long getSendCredit() {
+		int window = remoteWindow;
+		if (window == 0)
+			return Long.MAX_VALUE;
+		return Math.max(0, remoteConsumed + window - sentBytes);
+	}
+
+	/**
+	 * Encodes and writes a packet taken from the queue.
+	 * 
+	 * @return False if this was the ClosePacket of a closing connection, nothing may be sent afterwards.
+	 */
+	boolean write(QueuedPacket entry) throws IOException {
+		Packet toSend = entry.packet;
+		budget.release(QUEUED_PACKET_SIZE);
+		metrics.onQueued(-1);
+		PacketStream stream = toSend instanceof StreamPacket ? ((StreamPacket) toSend).getStream() : null;
+		if (stream != null)
+			stream.fillChunk((StreamPacket) toSend); // Take the chunk now, the stream may have grown since it was queued
+		PacketSentEvent event = new PacketSentEvent();
+		event.begin();
+		LatencyTracker latency = this.latency;
+		long stageStart = 0;
+		if (latency != null) {
+			stageStart = System.nanoTime();
+			if (entry.enqueueTime != 0)
+				latency.record(Stage.QUEUE, stageStart - entry.enqueueTime);
+		}
+		int encodedSize = handOver(entry);
+		if (encodedSize < 0) {
+			encodedSize = 0;
+			int reserved = 0;
+			try {
+				ByteBuffer frame = null;
+				PacketWriter writer = null;
+				if (entry.frame != null) {
+					frame = ByteBuffer.wrap(entry.frame.data()); // Shared, already counted by the global budget
+					encodedSize = frame.remaining();
+				} else if (toSend.hasBufferEncoder()) {
+					frame = encode(toSend);
+					encodedSize = reserved = frame.remaining();
+				} else {
+					writer = toSend.prepare();
+					encodedSize = reserved = writer.size() + 4;
+				}
+				budget.forceReserve(reserved);
+				if (latency != null) {
+					long now = System.nanoTime();
+					latency.record(Stage.ENCODE, now - stageStart);
+					stageStart = now;
+				}
+				if (session != null && Session.isSequenced(toSend.getId())) {
+					// Kept before writing, so a frame that could not be written is sent again when the session is resumed
+					byte[] data = null;
+					if (session.isEstablished())
+						data = frame != null ? Arrays.copyOfRange(frame.array(), frame.arrayOffset() + frame.position() + 4, frame.arrayOffset() + frame.limit()) : writer.toByteArray();
+					session.onSending(data);
+				}
+
+				try {
+					// Create a new DOS every time to avoid buffer overflows (the written counter is an integer which will get stuck at Integer.MAX_VALUE at some point)
+					DataOutputStream dos = new DataOutputStream(out);
+					if (frame != null) {
+						dos.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining()); // Length, id and content in one go
+					} else {
+						dos.writeInt(writer.size()); // Write packet length
+						writer.writeTo(dos); // Write packetID and content - The PacketWriter already prepared this data for us
+					}
+				} catch (IOException e) {
+					resumeAfter(e);
+				}
+				PacketCapture capture = handler.getCapture();
+				if (capture != null) {
+					if (frame != null)
+						capture.record(PacketCapture.SENT, frame.array(), frame.arrayOffset() + frame.position() + 4, frame.remaining() - 4);
+					else
+						capture.record(PacketCapture.SENT, writer.toByteArray(), 0, writer.size());
+				}
+			} finally {
+				budget.release(reserved);
+				if (entry.frame != null)
+					entry.frame.release();
+			}
+		}
+		metrics.onPacketSent(toSend.getId(), encodedSize);
+		limits.record(toSend.getId(), encodedSize);
+		if (isFlowControlled(toSend.getId()))
+			sentBytes += encodedSize; // Only written by the sending thread
+
+		onWritten(encodedSize);
+		if (latency != null)
+			latency.record(Stage.WRITE, System.nanoTime() - stageStart);
+		event.end();
+		if (event.shouldCommit()) {
+			event.set(handler.getConnectionName(), toSend.getId(), encodedSize);
+			event.commit();
+		}
+
+		handler.setLastPacketSend(System.currentTimeMillis());
+
+		if (toSend instanceof ClosePacket && handler.isClosed()) {
+			// Last packet of a closing connection, make sure it leaves the buffers before the streams are closed
+			out.flush();
+			if (entry.future != null)
+				entry.future.complete(null);
+			handler.finishClose(true);
+			return false;
+		}
+
+		if (stream != null) {
+			// Like transfers: Streams take turns with the other packets, one chunk at a time
+			StreamPacket next = stream.nextChunk();
+			if (next != null) {
+				enqueue(next, null, null);
+				return true;
+			}
+		}
+		if (toSend instanceof TransferPacket) {
+			// Queue the next chunk at the end, so other packets and transfers are sent in between
+			TransferPacket next = ((TransferPacket) toSend).nextChunk();
+			if (next != null) {
+				enqueue(next, entry.future, null); // The future completes with the last chunk
+				return true;
+			}
+		}
+		if (entry.future != null)
+			entry.future.complete(null);
+		return true;
+	}
+
+	/**
+	 * Hands a packet over to the other side without writing it to the output stream. Used by the senders of a {@link LocalConnection}.
+	 * 
+	 * @return The number of bytes counted for the packet or -1 if it has to be encoded and written as usual.
+	 */
+	int handOver(QueuedPacket entry) throws IOException {
+		return -1;
+	}
+
+	/**
+	 * Asks the flush policy of the handler whether the packets written so far have to be flushed.
+	 * 
+	 * @param bytes
+	 *            Size of the packet just written.
+	 */
+	void onWritten(int bytes) throws IOException {
+		long now = System.nanoTime();
+		if (lastWrite != 0)
+			averageGap += (now - lastWrite - averageGap) / 8;
+		lastWrite = now;
+		if (unflushedBytes == 0)
+			unflushedSince = now;
+		unflushedBytes += bytes;
+		long delay = handler.getFlushPolicy().flushDelay(unflushedBytes, now - unflushedSince, !hasSendable(), averageGap);
+		if (delay <= FlushPolicy.FLUSH_NOW || (flushDeadline != 0 && now - flushDeadline >= 0)) {
+			flush();
+		} else if (delay != FlushPolicy.NO_FLUSH) {
+			long deadline = now + delay;
+			if (flushDeadline == 0 || deadline - flushDeadline < 0)
+				flushDeadline = deadline;
+		}
+	}
+
+	/**
+	 * Asks the flush policy again once nothing can be sent. The queue may have turned out to be idle after the last packet was written, e.g. because the
+	 * packets after it were dropped by the rate limits.
+	 */
+	private void onIdle() throws IOException {
+		if (unflushedBytes == 0 || flushDeadline != 0)
+			return;
+		long now = System.nanoTime();
+		long delay = handler.getFlushPolicy().flushDelay(unflushedBytes, now - unflushedSince, true, averageGap);
+		if (delay <= FlushPolicy.FLUSH_NOW)
+			flush();
+		else if (delay != FlushPolicy.NO_FLUSH)
+			flushDeadline = now + delay;
+	}
+
+	private void flush() throws IOException {
+		unflushedBytes = 0;
+		flushDeadline = 0;
+		FlushEvent flushEvent = new FlushEvent();
+		flushEvent.begin();
+		try {
+			out.flush(); // Flush it, (R)UDP implementations will send at least one UDP packet with the written data
+		} catch (IOException e) {
+			resumeAfter(e); // Flushes the new stream
+		}
+		metrics.onFlush();
+		flushEvent.end();
+		if (flushEvent.shouldCommit()) {
+			flushEvent.set(handler.getConnectionName());
+			flushEvent.commit();
+		}
+	}
+
+	/**
+	 * Called when writing failed. If the session of the connection is resumable, this waits until it continues on new streams (sending the frames the
+	 * other side missed again, including the one being written). Otherwise the exception is thrown again.
+	 */
+	private void resumeAfter(IOException e) throws IOException {
+		PacketHandler handler = this.handler;
+		if (handler == null || !handler.onStreamFailed(target, e))
+			throw e;
+		try {
+			awaitResume();
+		} catch (InterruptedException interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Closed while waiting to be resumed");
+		}
+	}
+
+	/**
+	 * Waits until the session is resumed on new streams, then writes the greeting (asking the other side to resume or answering that request) and sends
+	 * the frames the other side missed again.
+	 * 
+	 * @throws IOException
+	 *             If writing to the new stream failed and the session can't be resumed anymore.
+	 * @throws InterruptedException
+	 *             If the connection was closed while waiting.
+	 */
+	private void awaitResume() throws IOException, InterruptedException {
+		while (true) {
+			OutputStream target;
+			Packet greeting;
+			synchronized (this) {
+				while (resumeTarget == null)
+					this.wait();
+				target = resumeTarget;
+				greeting = resumeGreeting;
+				resumeTarget = null;
+				resumeGreeting = null;
+			}
+			this.target = target;
+			out = new BufferedOutputStream(target, SEND_BUFFER_SIZE); // Whatever was buffered for the old stream is retained or lost anyway
+			unflushedBytes = 0;
+			flushDeadline = 0;
+			try {
+				DataOutputStream dos = new DataOutputStream(out);
+				PacketWriter writer = greeting.prepare();
+				dos.writeInt(writer.size());
+				writer.writeTo(dos);
+				out.flush();
+				long from;
+				synchronized (this) {
+					while (replayFrom < 0 && resumeTarget == null)
+						this.wait(); // The other side answers with the number of frames it received
+					from = replayFrom;
+					replayFrom = -1;
+				}
+				if (from < 0)
+					continue; // Resumed on other streams before the answer arrived
+				session.acknowledge(from);
+				for (byte[] data : session.getRetained()) {
+					dos.writeInt(data.length);
+					dos.write(data);
+				}
+				out.flush();
+				return;
+			} catch (IOException e) {
+				PacketHandler handler = this.handler;
+				if (handler == null || !handler.onStreamFailed(target, e))
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Continues sending on a new stream once the current packet is written (or failed).
+	 * 
+	 * @param greeting
+	 *            The first packet written to the new stream.
+	 * @param replayFrom
+	 *            The number of frames the other side received, the frames after them are sent again. -1 if not known yet, see
+	 *            {@link #onResumeAccepted(long)}.
+	 */
+	synchronized void reattach(OutputStream target, Packet greeting, long replayFrom) {
+		this.resumeGreeting = greeting;
+		this.replayFrom = replayFrom;
+		this.resumeTarget = target;
+		this.notify();
+	}
+
+	/**
+	 * Called when the other side accepted to resume the session.
+	 * 
+	 * @param received
+	 *            The number of frames the other side received.
+	 */
+	synchronized void onResumeAccepted(long received) {
+		replayFrom = received;
+		this.notify();
+	}
+
+	/**
+	 * Fails the packet that could not be written and closes the connection.
+	 */
+	void onWriteFailed(QueuedPacket entry, IOException e) {
+		failed = true;
+		if (entry != null && entry.future != null)
+			entry.future.completeExceptionally(e);
+		if (Thread.interrupted() || handler.isClosed()) {
+			if (handler.isClosed())
+				handler.finishClose(false); // Don't let a closing connection wait for its deadline
+			return; // Close silently
+		}
+		if (e instanceof EOFException) { // EOF = End of File (Though, we don't have a "file" here)
+			// Are EOF's possible in a SENDING stream??? But anyway, handling them is always good...
+			handler.onConnectionClosed("EOFException in DataSender", false);
+		} else {
+			handler.onConnectionFail(e);
+		}
+	}
+
+	/**
+	 * Releases everything still queued, nothing is sent afterwards.
+	 * 
+	 * @param inFlight
+	 *            The entry that was being written, if any.
+	 */
+	void stopSending(QueuedPacket inFlight) {
+		// Just to make sure we cleaned up here
+		handler = null;
+		if (inFlight != null && inFlight.future != null)
+			inFlight.future.completeExceptionally(new IOException("Connection closed")); // Does nothing if already completed
+		synchronized (sendQueue) {
+			stopped = true;
+			for (QueuedPacket queued : sendQueue) {
+				if (queued.packet instanceof TransferPacket)
+					((TransferPacket) queued.packet).closeSource();
+				if (queued.future != null)
+					queued.future.completeExceptionally(new IOException("Connection closed"));
+				if (queued.frame != null)
+					queued.frame.release();
+			}
+			budget.release((long) QUEUED_PACKET_SIZE * sendQueue.size());
+			metrics.onQueued(-sendQueue.size());
+			sendQueue.clear();
+		}
+		// Do not set sendQueue to null, because close() may be running currently
+	}
+
+	/**
+	 * Called after a packet was added to the queue. Wakes up this thread.
+	 */
+	protected void onPacketQueued() {
+		synchronized (this) {
+			this.notify();
+		}
+	}
+
+	/**
+	 * @return Whether queued packets are still sent. False once sending failed or stopped.
+	 */
+	public boolean isRunning() {
+		return isAlive() && !failed;
+	}
+
+	/**
+	 * @return Whether the calling thread is the one sending the packets. Closing can't wait for the ClosePacket to be sent on this thread.
+	 */
+	public boolean isSendingThread() {
+		return Thread.currentThread() == this;
+	}
+}
@@ -23,10 +23,18 @@
  *******************************************************************************/
 package com.germancoding.packetapi;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
 import com.germancoding.packetapi.defaultpackets.ClosePacket;
 import com.germancoding.packetapi.defaultpackets.HandshakePacket;
 import com.germancoding.packetapi.defaultpackets.IDRegistry;
 import com.germancoding.packetapi.defaultpackets.KeepAlivePacket;
+import com.germancoding.packetapi.defaultpackets.RpcPacket;
+import com.germancoding.packetapi.defaultpackets.StreamPacket;
+import com.germancoding.packetapi.defaultpackets.TransferPacket;
+import com.germancoding.packetapi.jfr.HandshakeEvent;
 
 public class DefaultPacketListener implements PacketListener {
 
@@ -34,6 +42,7 @@ public class DefaultPacketListener implements PacketListener {
 	private boolean ignoreClosePackets;
 	private boolean ignoreHandshakePackets;
 	private boolean ignoreKeepAlivePackets;
+	private HashMap<Integer, IncomingTransfer> incomingTransfers = new HashMap<Integer, IncomingTransfer>();
 
 	public DefaultPacketListener(PacketHandler handler) {
 		this.handler = handler;
@@ -50,6 +59,16 @@ public class DefaultPacketListener implements PacketListener {
 			break;
 		case IDRegistry.KEEPALIVE_PACKET:
 			handleKeepAlivePacket((KeepAlivePacket) packet);
+			break;
+		case IDRegistry.TRANSFER_PACKET:
+			handleTransferPacket((TransferPacket) packet);
+			break;
+		case IDRegistry.RPC_PACKET:
+			handleRpcPacket((RpcPacket) packet);
+			break;
+		case IDRegistry.STREAM_PACKET:
+			handler.onStreamPacketReceived((StreamPacket) packet);
+			break;
 		default:
 			break;
 		}
@@ -58,7 +77,7 @@ public class DefaultPacketListener implements PacketListener {
 
 	@Override
 	public void onConnectionClosed(PacketHandler handler, String message, boolean expected) {
-		;
+		abortTransfers("Connection closed: " + message);
 	}
 
 	@Override
@@ -77,9 +96,24 @@ public class DefaultPacketListener implements PacketListener {
 			handler.sendHandshake(PacketHandler.HANDSHAKE_ID_RESPONSE);
 		}
 		handler.setRemoteProtocolVersion(packet.getProtocolVersion());
+		handler.setRemoteApiVersion(packet.getApiVersion());
+		handler.onRemoteReceiveWindow(packet.getReceiveWindow());
+		handler.onRemoteSessionToken(packet.getSessionToken());
 		if (packet.getProtocolVersion() == PacketHandler.PROTOCOL_VERSION) {
 			handler.setVersionApproved(true);
 		}
+		HandshakeEvent event = new HandshakeEvent();
+		if (event.shouldCommit()) {
+			event.set(handler.getConnectionName(), packet.getProtocolVersion(), packet.getApiVersion(), handler.isVersionApproved());
+			event.commit();
+		}
+	}
+
+	private void handleRpcPacket(RpcPacket packet) {
+		if (packet.getType() == RpcPacket.TYPE_REQUEST)
+			handler.onRequestReceived(packet);
+		else
+			handler.onResponseReceived(packet);
 	}
 
 	private void handleClosePacket(ClosePacket packet) {
@@ -98,13 +132,92 @@ public class DefaultPacketListener implements PacketListener {
 		if (!packet.isResponse()) {
 			KeepAlivePacket keepAliveResponse = new KeepAlivePacket();
 			keepAliveResponse.setResponse(true);
+			if (packet.isTimestamped()) {
+				keepAliveResponse.setTimestamped(true);
+				keepAliveResponse.setSequence(packet.getSequence());
+				keepAliveResponse.setOriginTime(packet.getOriginTime());
+				if (packet.getReceiveTime() != 0)
+					keepAliveResponse.setDelay(System.nanoTime() - packet.getReceiveTime());
+				keepAliveResponse.setRemoteTime(System.currentTimeMillis());
+			}
 			handler.sendPacket(keepAliveResponse);
+		} else {
+			handler.getRttEstimator().onKeepAliveResponse(packet);
+		}
+	}
+
+	private void handleTransferPacket(TransferPacket packet) {
+		IncomingTransfer transfer;
+		synchronized (incomingTransfers) {
+			if (packet.isFirst()) {
+				transfer = new IncomingTransfer(packet.getTransferId(), packet.getType(), handler.getMemoryBudget());
+				incomingTransfers.put(packet.getTransferId(), transfer);
+			} else {
+				transfer = incomingTransfers.get(packet.getTransferId());
+			}
+		}
+		if (transfer == null) {
+			return; // Unknown transfer, the first chunk got lost (e.g over UDP)
+		}
+		if (packet.isFirst()) {
+			TransferListener transferListener = handler.getTransferListener();
+			if (transferListener != null) {
+				transferListener.onTransferStarted(handler, transfer);
+			} else {
+				handler.logger.warning("Transfer " + packet.getTransferId() + " received, but there is no TransferListener. Discarding it.");
+				transfer.close();
+			}
+		}
+
+		if (Thread.currentThread() instanceof EventLoop) {
+			transfer.offerNow(packet.getData()); // Never block the loop, its connection stops reading while the transfer is full
+		} else {
+			try {
+				transfer.offer(packet.getData());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt(); // We are shutting down
+				return;
+			}
+		}
+
+		if (packet.isLast() || packet.isAborted()) {
+			if (packet.isAborted())
+				transfer.abort(new IOException("Transfer aborted by the remote side"));
+			else
+				transfer.finish();
+			synchronized (incomingTransfers) {
+				incomingTransfers.remove(packet.getTransferId());
+			}
+		}
+	}
+
+	/**
+	 * @return Whether an incoming transfer buffers as many chunks as it may, reading has to wait until the application read some of them.
+	 */
+	boolean hasFullTransfer() {
+		synchronized (incomingTransfers) {
+			for (IncomingTransfer transfer : incomingTransfers.values()) {
+				if (transfer.isFull())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private void abortTransfers(String reason) {
+		ArrayList<IncomingTransfer> transfers;
+		synchronized (incomingTransfers) {
+			transfers = new ArrayList<IncomingTransfer>(incomingTransfers.values());
+			incomingTransfers.clear();
+		}
+		for (IncomingTransfer transfer : transfers) {
+			transfer.abort(new IOException(reason));
 		}
 	}
 
 	@Override
 	public void onConnectionFailed(PacketHandler handler, Throwable exception) {
-		;
+		abortTransfers("Connection failed: " + exception);
 	}
 
 	public boolean ignoreClosePackets() {
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.germancoding.packetapi.defaultpackets.StreamPacket;
+import com.germancoding.packetapi.defaultpackets.TransferPacket;
+
+/**
+ * A packet encoded once into an immutable frame (length, id and data), ready to be written to any number of connections without encoding it again.<br>
+ * Frames are reference counted: A new frame has one reference owned by its creator, every connection it is queued on holds another one until the frame
+ * was written. The frame is freed when the last reference is released. The bytes of all frames count towards {@link MemoryBudget#GLOBAL}.
+ * 
+ * @see PacketHandler#broadcast(Packet, java.util.Collection)
+ * @see PacketHandler#sendFrame(EncodedFrame)
+ */
+public final class EncodedFrame {
+
+	private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+	private final AtomicInteger refCount = new AtomicInteger(1);
+	private final short packetId;
+	private final int size;
+	private volatile Packet packet;
+	private volatile byte[] data;
+
+	private EncodedFrame(Packet packet, byte[] data) {
+		this.packet = packet;
+		this.packetId = packet.getId();
+		this.data = data;
+		this.size = data.length;
+		MemoryBudget.GLOBAL.forceReserve(size);
+	}
+
+	/**
+	 * Encodes the given packet. The packet must not be changed while frames of it are in use, it is only read here.
+	 * 
+	 * @param packet
+	 *            The packet to encode. Transfers and stream chunks can't be encoded in advance.
+	 * @return A new frame with a reference count of one.
+	 * @throws IOException
+	 *             If the packet could not be encoded.
+	 */
+	public static EncodedFrame encode(Packet packet) throws IOException {
+		if (packet == null)
+			throw new IllegalArgumentException("packet can not be null");
+		if (packet instanceof TransferPacket || packet instanceof StreamPacket)
+			throw new IllegalArgumentException("Transfers are read while they are sent and can not be encoded in advance");
+		return new EncodedFrame(packet, toFrame(packet));
+	}
+
+	/**
+	 * Encodes a packet into a new array (length, id and data), without counting it anywhere.
+	 * 
+	 * @throws IOException
+	 *             If the packet could not be encoded.
+	 */
+	static byte[] toFrame(Packet packet) throws IOException {
+		byte[] frame;
+		if (packet.hasBufferEncoder()) {
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+			while (true) {
+				buffer.clear();
+				buffer.putInt(0); // Placeholder for the length
+				buffer.putShort(packet.getId());
+				try {
+					packet.encode(buffer);
+					break;
+				} catch (BufferOverflowException e) {
+					if (buffer.capacity() >= MAX_BUFFER_SIZE)
+						throw new IOException("Packet with id " + packet.getId() + " is too large to be encoded");
+					buffer = ByteBuffer.allocate((int) Math.min((long) buffer.capacity() * 2, MAX_BUFFER_SIZE));
+				}
+			}
+			buffer.putInt(0, buffer.position() - 4);
+			frame = Arrays.copyOf(buffer.array(), buffer.position()); // Frames may live long, don't keep the spare capacity
+		} else {
+			byte[] content = packet.prepare().toByteArray(); // Id and data
+			frame = new byte[content.length + 4];
+			ByteBuffer.wrap(frame).putInt(content.length);
+			System.arraycopy(content, 0, frame, 4, content.length);
+		}
+		return frame;
+	}
+
+	/**
+	 * Adds a reference.
+	 * 
+	 * @return This frame.
+	 * @throws IllegalStateException
+	 *             If the frame was freed already.
+	 */
+	public EncodedFrame retain() {
+		while (true) {
+			int count = refCount.get();
+			if (count <= 0)
+				throw new IllegalStateException("Frame was released already");
+			if (refCount.compareAndSet(count, count + 1))
+				return this;
+		}
+	}
+
+	/**
+	 * Releases a reference. The frame is freed when the last reference is released.
+	 * 
+	 * @return True if this was the last reference.
+	 * @throws IllegalStateException
+	 *             If the frame was freed already.
+	 */
+	public boolean release() {
+		int count = refCount.decrementAndGet();
+		if (count > 0)
+			return false;
+		if (count < 0) {
+			refCount.incrementAndGet();
+			throw new IllegalStateException("Frame was released already");
+		}
+		data = null;
+		packet = null;
+		MemoryBudget.GLOBAL.release(size);
+		return true;
+	}
+
+	/**
+	 * @return The number of references, 0 if the frame was freed.
+	 */
+	public int refCount() {
+		return Math.max(refCount.get(), 0);
+	}
+
+	/**
+	 * @return The id of the encoded packet.
+	 */
+	public short getPacketId() {
+		return packetId;
+	}
+
+	/**
+	 * @return The size of the whole frame in bytes, including length and id.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The encoded packet, <code>null</code> if the frame was freed.
+	 */
+	public Packet getPacket() {
+		return packet;
+	}
+
+	/**
+	 * The encoded bytes. Never modified, only valid while a reference is held.
+	 */
+	byte[] data() {
+		return data;
+	}
+
+}
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A thread serving many {@link ChannelConnection}s of a {@link PacketServer} with one selector. Packets are read, dispatched and written on this thread,
+ * so listeners of these connections must not block.
+ */
+final class EventLoop extends Thread {
+
+	/** Time (in MS) after which a connection whose reading (or writing) was paused by its memory budget, a rate limit or a full transfer buffer tries again **/
+	static final long PAUSE_RETRY = 10;
+
+	private static final Logger logger = Logger.getLogger("PacketHandler");
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentLinkedQueue<ChannelConnection> writeRequests = new ConcurrentLinkedQueue<ChannelConnection>();
+	private final ArrayList<ChannelConnection> paused = new ArrayList<ChannelConnection>(); // Only used by this thread
+	private final ArrayList<ChannelConnection> delayedWrites = new ArrayList<ChannelConnection>(); // Only used by this thread
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private volatile boolean running = true;
+
+	EventLoop(String name) throws IOException {
+		super(name);
+		this.selector = Selector.open();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				if (!tasks.isEmpty() || !writeRequests.isEmpty())
+					selector.selectNow();
+				else
+					selector.select(paused.isEmpty() && delayedWrites.isEmpty() ? 0 : PAUSE_RETRY);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ChannelConnection connection = (ChannelConnection) key.attachment();
+					if (key.isValid() && key.isReadable())
+						connection.onReadable();
+					if (key.isValid() && key.isWritable())
+						connection.flush();
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.warning("Event loop task failed! " + e);
+					}
+				}
+
+				if (!paused.isEmpty()) {
+					for (ChannelConnection connection : new ArrayList<ChannelConnection>(paused)) {
+						if (!connection.retryRead())
+							paused.remove(connection);
+					}
+				}
+
+				if (!delayedWrites.isEmpty()) {
+					ArrayList<ChannelConnection> delayed = new ArrayList<ChannelConnection>(delayedWrites);
+					delayedWrites.clear(); // Connections still waiting for their rate limits add themselves again
+					for (ChannelConnection connection : delayed) {
+						connection.flush();
+					}
+				}
+
+				// Only serve the requests present now, connections requesting again are served in the next iteration
+				for (int i = writeRequests.size(); i > 0; i--) {
+					ChannelConnection connection = writeRequests.poll();
+					if (connection == null)
+						break;
+					connection.writeRequested.set(false);
+					connection.flush();
+				}
+			}
+		} catch (IOException e) {
+			logger.severe("Event loop " + getName() + " failed! " + e);
+		} finally {
+			running = false;
+			for (SelectionKey key : selector.keys()) {
+				((ChannelConnection) key.attachment()).onLoopStopped();
+			}
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run(); // Connections registered too late are closed
+				} catch (RuntimeException e) {
+					;
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				;
+			}
+		}
+	}
+
+	/**
+	 * Runs a task on this loop, can be called from any thread.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (!inEventLoop())
+			selector.wakeup();
+	}
+
+	/**
+	 * Assigns a connection to this loop. It is read once it is registered.
+	 */
+	void register(final ChannelConnection connection) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (running)
+					connection.register();
+				else
+					connection.onLoopStopped();
+			}
+		});
+	}
+
+	/**
+	 * Flushes the queue of a connection on this loop, can be called from any thread. Requests are ignored while the connection waits to be served
+	 * anyway.
+	 */
+	void requestWrite(ChannelConnection connection) {
+		if (connection.writeRequested.compareAndSet(false, true)) {
+			writeRequests.add(connection);
+			if (!inEventLoop())
+				selector.wakeup();
+		}
+	}
+
+	void pauseReading(ChannelConnection connection) {
+		if (!paused.contains(connection))
+			paused.add(connection);
+	}
+
+	/**
+	 * Flushes the queue of a connection again after {@link #PAUSE_RETRY} ms, called when its next packet waits for the rate limits.
+	 */
+	void delayWrite(ChannelConnection connection) {
+		if (!delayedWrites.contains(connection))
+			delayedWrites.add(connection);
+	}
+
+	void onConnectionAssigned() {
+		connectionCount.incrementAndGet();
+	}
+
+	void onConnectionClosed(ChannelConnection connection, boolean readPaused) {
+		connectionCount.decrementAndGet();
+		if (readPaused)
+			paused.remove(connection); // Only paused connections are in the list, called on this thread then
+	}
+
+	/**
+	 * Stops this loop, the connections still open are closed.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @return Number of connections assigned to this loop and not closed yet.
+	 */
+	int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+/**
+ * Decides when the sender flushes the packets written into its buffer to the output stream. Every flush of a TCP socket with <code>TCP_NODELAY</code> enabled (or of an
+ * <code>UnreliableSocket</code>) sends the buffered bytes right away, so flushing after every packet gives the lowest latency but the most (and smallest)
+ * writes, while flushing rarely batches many packets into few large writes.<br>
+ * <br>
+ * A policy is asked after every packet written to the stream. It can flush right away, ask to be flushed after a delay if no other packet is written in
+ * the meantime, or keep buffering. Policies get everything they need as arguments, so one instance can be shared by many connections.
+ * 
+ * @see PacketHandler#setFlushPolicy(FlushPolicy)
+ * @see PacketHandler#FLUSH_POLICY
+ */
+public interface FlushPolicy {
+
+	/** Flush right away **/
+	public static final long FLUSH_NOW = 0;
+	/** Don't flush, the bytes stay buffered until a later packet is flushed **/
+	public static final long NO_FLUSH = Long.MAX_VALUE;
+
+	/**
+	 * Called by the sender after a packet was written to the output stream.
+	 * 
+	 * @param unflushedBytes
+	 *            Bytes written since the last flush, including this packet.
+	 * @param unflushedNanos
+	 *            Time (in nanoseconds) since the first of these bytes was written.
+	 * @param idle
+	 *            Whether no other packet is ready to be sent right now.
+	 * @param averageGapNanos
+	 *            Moving average of the time (in nanoseconds) between two written packets, a measure of the current load.
+	 * @return {@link #FLUSH_NOW}, the time (in nanoseconds) after which the stream is flushed at the latest if no packet is written in the meantime, or
+	 *         {@link #NO_FLUSH}.
+	 */
+	public long flushDelay(long unflushedBytes, long unflushedNanos, boolean idle, long averageGapNanos);
+
+	/**
+	 * @return A policy flushing after every packet. Lowest latency, but every packet is a write of its own.
+	 */
+	public static FlushPolicy always() {
+		return Always.INSTANCE;
+	}
+
+	/**
+	 * @return A policy never flushing. Packets are only sent when the send buffer ({@link DataSender#SEND_BUFFER_SIZE}) is full, so this is only useful
+	 *         for bulk data where latency doesn't matter.
+	 */
+	public static FlushPolicy never() {
+		return Never.INSTANCE;
+	}
+
+	/**
+	 * @return A policy flushing once the send queue is empty. All packets queued while the last ones were written are flushed at once, so writes grow
+	 *         with the load without adding any delay.
+	 */
+	public static FlushPolicy whenIdle() {
+		return WhenIdle.INSTANCE;
+	}
+
+	/**
+	 * @param bytes
+	 *            Minimum number of bytes to flush at once.
+	 * @return A policy flushing once at least the given number of bytes were written. Small packets may stay buffered until more packets are sent,
+	 *         combine it with a delay using {@link #adaptive(long, int)} if that's not wanted.
+	 */
+	public static FlushPolicy afterBytes(int bytes) {
+		return new AfterBytes(bytes);
+	}
+
+	/**
+	 * @param micros
+	 *            Maximum time (in microseconds) a written packet stays buffered.
+	 * @return A policy flushing when the oldest unflushed packet was written the given time ago.
+	 */
+	public static FlushPolicy maxDelay(long micros) {
+		return new MaxDelay(micros);
+	}
+
+	/**
+	 * Returns a policy adapting to the measured packet rate. At low load (packets further apart than the maximum delay) the stream is flushed as soon as
+	 * the queue is empty, like {@link #whenIdle()}. At high load the sender waits up to the maximum delay for more packets, so bursts arriving right after
+	 * another are written together, but flushes early once the batch size is reached.
+	 * 
+	 * @param maxDelayMicros
+	 *            Maximum time (in microseconds) a written packet stays buffered.
+	 * @param batchBytes
+	 *            Bytes after which the stream is flushed right away.
+	 */
+	public static FlushPolicy adaptive(long maxDelayMicros, int batchBytes) {
+		return new Adaptive(maxDelayMicros, batchBytes);
+	}
+
+	static final class Always implements FlushPolicy {
+
+		static final Always INSTANCE = new Always();
+
+		@Override
+		public long flushDelay(long unflushedBytes, long unflushedNanos, boolean idle, long averageGapNanos) {
+			return FLUSH_NOW;
+		}
+
+		@Override
+		public String toString() {
+			return "FlushPolicy[always]";
+		}
+	}
+
+	static final class Never implements FlushPolicy {
+
+		static final Never INSTANCE = new Never();
+
+		@Override
+		public long flushDelay(long unflushedBytes, long unflushedNanos, boolean idle, long averageGapNanos) {
+			return NO_FLUSH;
+		}
+
+		@Override
+		public String toString() {
+			return "FlushPolicy[never]";
+		}
+	}
+
+	static final class WhenIdle implements FlushPolicy {
+
+		static final WhenIdle INSTANCE = new WhenIdle();
+
+		@Override
+		public long flushDelay(long unflushedBytes, long unflushedNanos, boolean idle, long averageGapNanos) {
+			return idle ? FLUSH_NOW : NO_FLUSH;
+		}
+
+		@Override
+		public String toString() {
+			return "FlushPolicy[whenIdle]";
+		}
+	}
+
+	static final class AfterBytes implements FlushPolicy {
+
+		private final int bytes;
+
+		AfterBytes(int bytes) {
+			if (bytes < 1)
+				throw new IllegalArgumentException("bytes must be at least 1");
+			this.bytes = bytes;
+		}
+
+		@Override
+		public long flushDelay(long unflushedBytes, long unflushedNanos, boolean idle, long averageGapNanos) {
+			return unflushedBytes >= bytes ? FLUSH_NOW : NO_FLUSH;
+		}
+
+		@Override
+		public String toString() {
+			return "FlushPolicy[afterBytes=" + bytes + "]";
+		}
+	}
+
+	static final class MaxDelay implements FlushPolicy {
+
+		private final long delayNanos;
+
+		MaxDelay(long micros) {
+			if (micros < 0)
+				throw new IllegalArgumentException("micros can not be negative");
+			this.delayNanos = micros * 1000;
+		}
+
+		@Override
+		public long flushDelay(long unflushedBytes, long unflushedNanos, boolean idle, long averageGapNanos) {
+			return Math.max(FLUSH_NOW, delayNanos - unflushedNanos);
+		}
+
+		@Override
+		public String toString() {
+			return "FlushPolicy[maxDelay=" + delayNanos / 1000 + "us]";
+		}
+	}
+
+	static final class Adaptive implements FlushPolicy {
+
+		private final long delayNanos;
+		private final int batchBytes;
+
+		Adaptive(long maxDelayMicros, int batchBytes) {
+			if (maxDelayMicros < 0)
+				throw new IllegalArgumentException("maxDelayMicros can not be negative");
+			if (batchBytes < 1)
+				throw new IllegalArgumentException("batchBytes must be at least 1");
+			this.delayNanos = maxDelayMicros * 1000;
+			this.batchBytes = batchBytes;
+		}
+
+		@Override
+		public long flushDelay(long unflushedBytes, long unflushedNanos, boolean idle, long averageGapNanos) {
+			if (unflushedBytes >= batchBytes || unflushedNanos >= delayNanos)
+				return FLUSH_NOW;
+			if (idle && averageGapNanos >= delayNanos)
+				return FLUSH_NOW; // Low load, the next packet is not expected within the delay
+			return delayNanos - unflushedNanos; // High load, wait for the next packets (flushed early once the batch is full)
+		}
+
+		@Override
+		public String toString() {
+			return "FlushPolicy[adaptive, maxDelay=" + delayNanos / 1000 + "us, batch=" + batchBytes + "]";
+		}
+	}
+
+}
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A timer for a large number of short tasks with a coarse resolution, like keep-alives and timeouts of many connections.<br>
+ * Timeouts are stored in a ring of buckets (the "wheel"). Each tick, a single thread runs the expired timeouts of one bucket. Scheduling and cancelling are O(1)
+ * and don't need any locks, no matter how many timeouts are pending.<br>
+ * <br>
+ * Tasks are executed by the timer thread, so they must be short and must not block. Start a new thread for anything that takes longer.
+ * 
+ * @see #getShared()
+ */
+public class HashedWheelTimer {
+
+	/** Duration (in MS) of one tick of the shared timer. Timeouts fire up to one tick late. Has to be set before the shared timer is used. Default is 100 ms **/
+	public static int TICK_DURATION = 100;
+	/** Number of buckets of the shared timer. Has to be set before the shared timer is used. Default is 512 **/
+	public static int WHEEL_SIZE = 512;
+
+	private static final Logger logger = Logger.getLogger("PacketHandler");
+	private static volatile HashedWheelTimer shared;
+
+	private final long tickDuration; // In nanoseconds
+	private final Timeout[] wheel; // Heads of the (doubly linked) buckets
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Thread worker;
+	private final long startTime;
+	private volatile boolean stopped;
+	private long tick;
+
+	/**
+	 * Creates and starts a new timer.
+	 * 
+	 * @param name
+	 *            The name of the timer thread.
+	 * @param tickDuration
+	 *            Duration of one tick in milliseconds.
+	 * @param wheelSize
+	 *            Number of buckets, rounded up to a power of two. Should be larger than the usual timeout divided by the tick duration.
+	 */
+	public HashedWheelTimer(String name, long tickDuration, int wheelSize) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive");
+		if (wheelSize <= 0 || wheelSize > (1 << 30))
+			throw new IllegalArgumentException("wheelSize must be between 1 and 2^30");
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize)
+			size <<= 1;
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runWorker();
+			}
+		}, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * @return The timer shared by all <code>PacketHandler</code>s. It is created on first use and runs until the JVM exits.
+	 */
+	public static HashedWheelTimer getShared() {
+		HashedWheelTimer timer = shared;
+		if (timer == null) {
+			synchronized (HashedWheelTimer.class) {
+				timer = shared;
+				if (timer == null) {
+					timer = new HashedWheelTimer("PacketAPI Timer", TICK_DURATION, WHEEL_SIZE);
+					shared = timer;
+				}
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * Schedules a task.
+	 * 
+	 * @param task
+	 *            The task to run. Runs on the timer thread.
+	 * @param delay
+	 *            Delay in milliseconds.
+	 * @return A handle to cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		if (task == null)
+			throw new IllegalArgumentException("task can not be null");
+		if (stopped)
+			throw new IllegalStateException("Timer is stopped");
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+		Timeout timeout = new Timeout(this, task, deadline);
+		pending.incrementAndGet();
+		pendingTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the timer thread. Pending tasks are not executed. The shared timer can't be stopped.
+	 */
+	public void stop() {
+		if (this == shared)
+			throw new IllegalStateException("The shared timer can not be stopped");
+		stopped = true;
+		worker.interrupt();
+	}
+
+	/**
+	 * @return The number of scheduled tasks that did not run (and were not cancelled) yet.
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	private void runWorker() {
+		while (!stopped) {
+			long sleep = tickDuration * (tick + 1) - (System.nanoTime() - startTime);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue; // Check whether we were stopped
+				}
+			}
+			removeCancelled();
+			transferPending();
+			expire((int) (tick & mask));
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null) {
+			if (timeout.bucket >= 0)
+				unlink(timeout);
+		}
+	}
+
+	private void transferPending() {
+		// Limit the work per tick, so scheduling in a loop can't stall the timer
+		for (int i = 0; i < 100000; i++) {
+			Timeout timeout = pendingTimeouts.poll();
+			if (timeout == null)
+				break;
+			if (timeout.state.get() != Timeout.STATE_PENDING)
+				continue;
+			long calculated = timeout.deadline / tickDuration;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			int bucket = (int) (Math.max(calculated, tick) & mask); // Expired already? Run it this tick
+			timeout.bucket = bucket;
+			timeout.next = wheel[bucket];
+			if (wheel[bucket] != null)
+				wheel[bucket].prev = timeout;
+			wheel[bucket] = timeout;
+		}
+	}
+
+	private void expire(int bucket) {
+		Timeout timeout = wheel[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.state.get() != Timeout.STATE_PENDING) {
+				unlink(timeout);
+			} else if (timeout.remainingRounds <= 0) {
+				unlink(timeout);
+				if (timeout.state.compareAndSet(Timeout.STATE_PENDING, Timeout.STATE_EXPIRED)) {
+					pending.decrementAndGet();
+					try {
+						timeout.task.run();
+					} catch (Throwable t) {
+						logger.warning("Timer task failed! " + t);
+					}
+				}
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			wheel[timeout.bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+	}
+
+	/**
+	 * A task scheduled by a {@link HashedWheelTimer}.
+	 */
+	public static final class Timeout {
+
+		private static final int STATE_PENDING = 0;
+		private static final int STATE_CANCELLED = 1;
+		private static final int STATE_EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+		// Only accessed by the timer thread
+		private long remainingRounds;
+		private int bucket = -1;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task. Does nothing if the task already ran.
+		 * 
+		 * @return False if the task already ran or was cancelled before.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(STATE_PENDING, STATE_CANCELLED))
+				return false;
+			timer.pending.decrementAndGet();
+			timer.cancelledTimeouts.add(this); // Removed from its bucket on the next tick
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == STATE_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == STATE_EXPIRED;
+		}
+	}
+
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+/**
+ * The receiving side of a large transfer. Chunks are appended while they arrive and can be read through this InputStream at the same time.<br>
+ * Only a limited number of chunks is buffered. If the application doesn't read fast enough, the thread receiving the chunks blocks, which stops reading
+ * from the connection (and makes TCP slow down the sender). Connections of a {@link PacketServer} stop reading the same way, without blocking their event
+ * loop.
+ * 
+ * @see TransferListener
+ */
+public class IncomingTransfer extends InputStream {
+
+	/** Number of chunks buffered before the receiving thread blocks. Applications can change this value if they want. Default is 16 **/
+	public static int MAX_BUFFERED_CHUNKS = 16;
+
+	private final int transferId;
+	private final short type;
+	private LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+	private byte[] current;
+	private int offset;
+	private long bytesReceived;
+	private boolean finished;
+	private boolean closed;
+	private IOException failure;
+	private final MemoryBudget budget;
+
+	public IncomingTransfer(int transferId, short type) {
+		this(transferId, type, null);
+	}
+
+	/**
+	 * @param budget
+	 *            The budget buffered chunks are charged to, until they are read. Can be <code>null</code>.
+	 */
+	public IncomingTransfer(int transferId, short type, MemoryBudget budget) {
+		this.transferId = transferId;
+		this.type = type;
+		this.budget = budget;
+	}
+
+	/**
+	 * Appends a chunk. Blocks while too many chunks are buffered.
+	 * 
+	 * @return False if the application closed this stream and the chunk was discarded.
+	 */
+	public synchronized boolean offer(byte[] chunk) throws InterruptedException {
+		while (!closed && chunks.size() >= MAX_BUFFERED_CHUNKS) {
+			this.wait();
+		}
+		return append(chunk);
+	}
+
+	/**
+	 * Appends a chunk without blocking, even if {@link #MAX_BUFFERED_CHUNKS} are buffered already. Used on event loops, which stop reading while
+	 * {@link #isFull()} instead.
+	 * 
+	 * @return False if the application closed this stream and the chunk was discarded.
+	 */
+	synchronized boolean offerNow(byte[] chunk) {
+		return append(chunk);
+	}
+
+	private boolean append(byte[] chunk) {
+		if (closed || finished)
+			return false;
+		bytesReceived += chunk.length;
+		if (chunk.length > 0) {
+			if (budget != null)
+				budget.forceReserve(chunk.length);
+			chunks.add(chunk);
+			this.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether {@link #MAX_BUFFERED_CHUNKS} (or more) chunks wait to be read.
+	 */
+	synchronized boolean isFull() {
+		return !closed && chunks.size() >= MAX_BUFFERED_CHUNKS;
+	}
+
+	/**
+	 * Marks the transfer as complete. Readers get an EOF after the buffered data.
+	 */
+	public synchronized void finish() {
+		finished = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Marks the transfer as failed. Readers get the given exception after the buffered data.
+	 */
+	public synchronized void abort(IOException reason) {
+		if (finished)
+			return;
+		failure = reason;
+		finished = true;
+		this.notifyAll();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int read = read(b, 0, 1);
+		return read < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!nextChunk())
+			return -1;
+		len = Math.min(len, current.length - offset);
+		System.arraycopy(current, offset, b, off, len);
+		offset += len;
+		return len;
+	}
+
+	private boolean nextChunk() throws IOException {
+		while (current == null || offset >= current.length) {
+			if (closed)
+				throw new IOException("Stream closed");
+			if (!chunks.isEmpty()) {
+				current = chunks.removeFirst();
+				offset = 0;
+				if (budget != null)
+					budget.release(current.length);
+				this.notifyAll(); // There is room for another chunk
+			} else if (finished) {
+				if (failure != null)
+					throw failure;
+				return false;
+			} else {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for data");
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized int available() {
+		int available = current == null ? 0 : current.length - offset;
+		for (byte[] chunk : chunks) {
+			available += chunk.length;
+		}
+		return available;
+	}
+
+	/**
+	 * Closes this stream. All further chunks of this transfer are discarded.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (budget != null) {
+			for (byte[] chunk : chunks) {
+				budget.release(chunk.length);
+			}
+		}
+		chunks.clear();
+		current = null;
+		this.notifyAll();
+	}
+
+	/**
+	 * @return The id of this transfer, unique per connection and direction.
+	 */
+	public int getTransferId() {
+		return transferId;
+	}
+
+	/**
+	 * @return The type given by the sender. The meaning of the type is up to the application.
+	 */
+	public short getType() {
+		return type;
+	}
+
+	/**
+	 * @return The number of bytes received so far.
+	 */
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return Whether the last chunk was received (or the transfer failed).
+	 */
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+/**
+ * Two PacketHandlers in the same JVM, connected without streams: Packets are handed to the other side as objects, without encoding, copying and
+ * decoding them. Listeners are notified exactly like for handlers connected over the network (on the reader thread of the handler, or through
+ * {@link PacketHandler#getCachedPackets()}), so components can be moved to another process without changing their code.<br>
+ * <br>
+ * Example:<br>
+ * <code>LocalConnection connection = new LocalConnection("client", clientListener, "server", serverListener);<br>
+ * connection.getFirst().sendPacket(new ChatPacket("Hello")); // serverListener receives this instance</code><br>
+ * <br>
+ * The receiving side gets the same packet instance that was sent, so a packet must not be changed after sending it. Like over the network, packet types
+ * have to be registered at the receiving side, unregistered ones are reported as unknown packets. Default packets (handshake, close, transfers, streams,
+ * requests...) and frames encoded in advance (broadcasts) are still encoded, so both sides work like everywhere else. Flow control, memory budgets,
+ * metrics and captures count every packet handed over as an object with {@link #OBJECT_SIZE} bytes.
+ */
+public class LocalConnection {
+
+	/** Bytes counted for a packet handed over as an object, its actual size is unknown. Default is 64 **/
+	public static final int OBJECT_SIZE = 64;
+
+	private final PacketHandler first;
+	private final PacketHandler second;
+
+	/**
+	 * Creates both handlers. Like every PacketHandler, they can be used right away.
+	 * 
+	 * @param firstName
+	 *            Name of the first handler. Can be <code>null</code>.
+	 * @param firstListener
+	 *            Listener of the first handler. Can be <code>null</code>.
+	 * @param secondName
+	 *            Name of the second handler. Can be <code>null</code>.
+	 * @param secondListener
+	 *            Listener of the second handler. Can be <code>null</code>.
+	 */
+	public LocalConnection(String firstName, PacketListener firstListener, String secondName, PacketListener secondListener) {
+		first = new PacketHandler(this, firstName, firstListener);
+		second = new PacketHandler(this, secondName, secondListener);
+		((LocalSender) first.getSender()).setPeer((LocalReader) second.getReader());
+		((LocalSender) second.getSender()).setPeer((LocalReader) first.getReader());
+	}
+
+	/**
+	 * @return The first handler, connected to {@link #getSecond()}.
+	 */
+	public PacketHandler getFirst() {
+		return first;
+	}
+
+	/**
+	 * @return The second handler, connected to {@link #getFirst()}.
+	 */
+	public PacketHandler getSecond() {
+		return second;
+	}
+
+	@Override
+	public String toString() {
+		return "LocalConnection[" + first.getConnectionName() + " <-> " + second.getConnectionName() + "]";
+	}
+
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import com.germancoding.packetapi.capture.PacketCapture;
+import com.germancoding.packetapi.jfr.BackpressureEvent;
+import com.germancoding.packetapi.jfr.PacketReceivedEvent;
+
+/**
+ * Reader of a {@link LocalConnection}. The sender of the other side adds packets and frames to a lock-free queue, this thread takes them out and hands
+ * them to the handler like a <code>DataReader</code> does after reading them from a stream.
+ */
+final class LocalReader extends DataReader {
+
+	private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>(); // Packets and frames (id and data)
+	private final MemoryBudget budget;
+	private volatile boolean peerClosed;
+	private volatile boolean stopped;
+
+	LocalReader(PacketHandler handler) {
+		super(handler, false);
+		this.budget = handler.getMemoryBudget();
+		this.setName("LocalReader - " + handler.getConnectionName());
+		this.start();
+	}
+
+	/**
+	 * Called by the sender of the other side. Reserves the bytes in the memory budget of this side first, waiting while it is exhausted (like a stream
+	 * that isn't read).
+	 * 
+	 * @param item
+	 *            A packet or a frame.
+	 * @param length
+	 *            Bytes counted for the packet.
+	 * @throws IOException
+	 *             If this side stopped reading.
+	 */
+	void receive(Object item, int length) throws IOException {
+		if (stopped)
+			throw new IOException("Pipe closed");
+		if (!budget.tryReserve(length)) {
+			BackpressureEvent backpressure = new BackpressureEvent();
+			backpressure.begin();
+			try {
+				budget.reserve(length);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the memory budget of the other side");
+			}
+			backpressure.end();
+			if (backpressure.shouldCommit()) {
+				backpressure.set(budget.getName(), "Memory budget exhausted, local sender paused");
+				backpressure.commit();
+			}
+		}
+		queue.offer(item);
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * Called when the sender of the other side stopped. Everything queued is still processed, then the connection ends like a stream at its end.
+	 */
+	void onPeerClosed() {
+		peerClosed = true;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run() {
+		PacketHandler handler = this.handler;
+		try {
+			while (!Thread.interrupted()) {
+				Object next = queue.poll();
+				if (next == null) {
+					if (peerClosed) {
+						if (queue.isEmpty()) {
+							if (!handler.isClosed())
+								handler.onConnectionClosed("End of stream reached", false);
+							return;
+						}
+						continue;
+					}
+					LockSupport.park(this);
+					continue;
+				}
+				PacketReceivedEvent event = new PacketReceivedEvent();
+				event.begin();
+				if (next instanceof byte[]) {
+					byte[] data = (byte[]) next;
+					boolean handedOver = false;
+					try {
+						checkLength(handler, data.length);
+						if (awaitAdmission(handler, getId(data), data.length))
+							dispatch(handler, data, event);
+						handedOver = true;
+					} finally {
+						if (!handedOver)
+							budget.release(data.length);
+					}
+				} else {
+					Packet packet = (Packet) next;
+					PacketCapture capture = handler.getCapture();
+					if (capture != null) {
+						PacketWriter writer = packet.prepare();
+						capture.record(PacketCapture.RECEIVED, writer.toByteArray(), 0, writer.size());
+					}
+					if (awaitAdmission(handler, packet.getId(), LocalConnection.OBJECT_SIZE))
+						dispatch(handler, packet, LocalConnection.OBJECT_SIZE, event);
+				}
+			}
+		} catch (Exception e) {
+			if (Thread.interrupted() || handler.isClosed())
+				return; // Close silently
+			handler.onConnectionFail(e);
+		} finally {
+			stopped = true;
+			// Just to make sure we cleaned up here
+			this.handler = null;
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.germancoding.packetapi.capture.PacketCapture;
+import com.germancoding.packetapi.defaultpackets.DefaultPacket;
+
+/**
+ * Sender of a {@link LocalConnection}. Runs like every sender, but instead of writing packets to a stream, it hands them to the reader of the other side:
+ * User packets as they are, default packets and frames encoded in advance as frames.
+ */
+final class LocalSender extends DataSender {
+
+	private LocalReader peer; // Set once both sides exist, before any packet can be sent
+
+	LocalSender(PacketHandler handler) {
+		super(handler, false); // Started below, nothing is buffered
+		this.setName("LocalSender - " + handler.getConnectionName());
+		this.start();
+	}
+
+	void setPeer(LocalReader peer) {
+		this.peer = peer;
+	}
+
+	@Override
+	int handOver(QueuedPacket entry) throws IOException {
+		Packet packet = entry.packet;
+		PacketCapture capture = handler.getCapture();
+		if (entry.frame == null && !(packet instanceof DefaultPacket)) {
+			if (capture != null) {
+				PacketWriter writer = packet.prepare();
+				capture.record(PacketCapture.SENT, writer.toByteArray(), 0, writer.size());
+			}
+			peer.receive(packet, LocalConnection.OBJECT_SIZE);
+			return LocalConnection.OBJECT_SIZE + 4;
+		}
+		byte[] data;
+		if (entry.frame != null) {
+			try {
+				byte[] frame = entry.frame.data();
+				data = Arrays.copyOfRange(frame, 4, frame.length); // Without the length
+			} finally {
+				entry.frame.release();
+			}
+		} else {
+			data = packet.prepare().toByteArray();
+		}
+		if (capture != null)
+			capture.record(PacketCapture.SENT, data, 0, data.length);
+		peer.receive(data, data.length);
+		return data.length + 4;
+	}
+
+	@Override
+	void onWritten(int bytes) {
+		// Nothing is buffered
+	}
+
+	@Override
+	void stopSending(QueuedPacket inFlight) {
+		super.stopSending(inFlight);
+		peer.onPeerClosed();
+	}
+
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+/**
+ * Sender of a connection accepted by a {@link PacketServer}. It does not run as a thread of its own: Queued packets are written by the event loop of the
+ * connection, which uses the methods called by {@link DataSender#run()}.
+ */
+final class LoopSender extends DataSender {
+
+	private final ChannelConnection connection;
+
+	LoopSender(PacketHandler handler, ChannelConnection connection) {
+		super(handler, false);
+		this.connection = connection;
+		this.setName("LoopSender - " + handler.getConnectionName());
+	}
+
+	@Override
+	protected void onPacketQueued() {
+		connection.requestWrite();
+	}
+
+	@Override
+	void onWritten(int bytes) {
+		// No flush policy, the event loop writes the buffer of the connection whenever the queue is empty or enough bytes are buffered
+	}
+
+	@Override
+	public boolean isRunning() {
+		return !connection.isClosed() && !failed;
+	}
+
+	@Override
+	public boolean isSendingThread() {
+		return connection.getLoop().inEventLoop();
+	}
+
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the heap used by data in flight (received packets waiting to be processed, buffered transfer chunks, queued and encoded packets).<br>
+ * Every <code>PacketHandler</code> has its own budget, which is a child of the {@link #GLOBAL} budget shared by all handlers of this JVM. Reserving
+ * bytes reserves them in both budgets. When a budget is exhausted, the <code>DataReader</code> stops reading (which lets TCP slow down the other side)
+ * and new packets are rejected by <code>sendPacket()</code>.<br>
+ * A budget always admits a reservation if nothing is reserved yet, so a single packet larger than the limit can't block a connection forever.
+ */
+public class MemoryBudget {
+
+	/** The budget shared by all handlers. Unlimited by default, use {@link #setLimit(long)} to change this. **/
+	public static final MemoryBudget GLOBAL = new MemoryBudget("global", Long.MAX_VALUE, null);
+
+	private final String name;
+	private final MemoryBudget parent;
+	private volatile long limit;
+	private volatile boolean closed;
+	private final AtomicLong reserved = new AtomicLong();
+	private final AtomicLong peak = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            A name used for monitoring.
+	 * @param limit
+	 *            The maximum number of bytes that can be reserved. <code>Long.MAX_VALUE</code> for no limit.
+	 * @param parent
+	 *            A budget which has to admit all reservations of this budget as well. Can be <code>null</code>.
+	 */
+	public MemoryBudget(String name, long limit, MemoryBudget parent) {
+		if (limit <= 0)
+			throw new IllegalArgumentException("limit must be positive");
+		this.name = name;
+		this.limit = limit;
+		this.parent = parent;
+	}
+
+	/**
+	 * Reserves the given number of bytes if this budget (and all parents) have enough room.
+	 * 
+	 * @return Whether the bytes were reserved.
+	 */
+	public boolean tryReserve(long bytes) {
+		if (closed)
+			return true; // Nothing is accounted anymore
+		while (true) {
+			long current = reserved.get();
+			if (current + bytes > limit && current > 0)
+				return false;
+			if (reserved.compareAndSet(current, current + bytes))
+				break;
+		}
+		if (parent != null && !parent.tryReserve(bytes)) {
+			long current;
+			do {
+				current = reserved.get(); // Undo, without releasing anything from the parent
+			} while (!reserved.compareAndSet(current, Math.max(0, current - bytes)));
+			return false;
+		}
+		updatePeak();
+		if (closed)
+			release(bytes); // Closed concurrently
+		return true;
+	}
+
+	/**
+	 * Reserves the given number of bytes, waiting until enough bytes are released if necessary.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public void reserve(long bytes) throws InterruptedException {
+		while (!tryReserve(bytes)) {
+			synchronized (this) {
+				// Releases of the parent don't notify us, so don't wait forever
+				this.wait(50);
+			}
+		}
+	}
+
+	/**
+	 * Reserves the given number of bytes, even if the limit is exceeded. Used for memory that is already allocated.
+	 */
+	public void forceReserve(long bytes) {
+		if (closed)
+			return;
+		reserved.addAndGet(bytes);
+		if (parent != null)
+			parent.forceReserve(bytes);
+		updatePeak();
+		if (closed)
+			release(bytes);
+	}
+
+	/**
+	 * Releases bytes reserved before. Never releases more than currently reserved, so releasing after {@link #close()} does nothing.
+	 */
+	public void release(long bytes) {
+		if (bytes <= 0)
+			return;
+		long current;
+		long updated;
+		do {
+			current = reserved.get();
+			updated = Math.max(0, current - bytes);
+		} while (!reserved.compareAndSet(current, updated));
+		if (parent != null)
+			parent.release(current - updated);
+		synchronized (this) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Releases everything reserved in this budget (and the corresponding bytes of the parents) and stops accounting. Called when a connection is closed.
+	 */
+	public void close() {
+		closed = true;
+		long bytes = reserved.getAndSet(0);
+		if (parent != null)
+			parent.release(bytes);
+		synchronized (this) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * @return Whether this budget (or one of its parents) is used up.
+	 */
+	public boolean isExhausted() {
+		return reserved.get() >= limit || (parent != null && parent.isExhausted());
+	}
+
+	/**
+	 * Counts a rejected operation, for monitoring.
+	 */
+	public void onRejected() {
+		rejected.incrementAndGet();
+	}
+
+	private void updatePeak() {
+		long current = reserved.get();
+		long max;
+		while (current > (max = peak.get())) {
+			if (peak.compareAndSet(max, current))
+				break;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public MemoryBudget getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return The number of bytes currently reserved.
+	 */
+	public long getReserved() {
+		return reserved.get();
+	}
+
+	/**
+	 * @return The highest number of bytes reserved at the same time.
+	 */
+	public long getPeakReserved() {
+		return peak.get();
+	}
+
+	/**
+	 * @return How often sending a packet was rejected because this budget was exhausted.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return The maximum number of bytes that can be reserved.
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	public void setLimit(long limit) {
+		if (limit <= 0)
+			throw new IllegalArgumentException("limit must be positive");
+		this.limit = limit;
+		synchronized (this) {
+			this.notifyAll();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MemoryBudget[" + name + ", reserved=" + getReserved() + ", limit=" + (limit == Long.MAX_VALUE ? "none" : String.valueOf(limit)) + "]";
+	}
+
+}
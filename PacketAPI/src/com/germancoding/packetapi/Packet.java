@@ -25,6 +25,7 @@ package com.germancoding.packetapi;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a data packet that can be send and received over a network.<br>
@@ -38,6 +39,19 @@ import java.io.IOException;
  */
 public abstract class Packet {
 
+	// Caches which packet classes override encode(ByteBuffer)
+	private static final ClassValue<Boolean> BUFFER_ENCODERS = new ClassValue<Boolean>() {
+
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			try {
+				return type.getMethod("encode", ByteBuffer.class).getDeclaringClass() != Packet.class;
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+	};
+
 	/**
 	 * A nullary constructor. Each subclass needs one (either by defining no constructor or by defining a nullary and a custom constructor)
 	 * It is not required to call super() since this constructor does nothing.
@@ -91,6 +105,49 @@ public abstract class Packet {
 	 */
 	public abstract PacketWriter prepare() throws IOException;
 
+	/**
+	 * Reads this packet directly from a buffer. Called by the <code>DataReader</code> instead of {@link #handle(DataInputStream)}.<br>
+	 * The buffer is positioned after the packet id and its limit is the end of this packet, so <code>in.remaining()</code> is the number of bytes left.
+	 * Buffers are always big endian, the same byte order used by <code>DataInputStream</code>.<br>
+	 * <br>
+	 * The default implementation bridges to {@link #handle(DataInputStream)}. Packets can override this method to avoid the stream wrappers.
+	 * 
+	 * @param in
+	 *            A buffer containing the data of this packet.
+	 * @throws IOException
+	 *             If reading fails, e.g there are not enough bytes or the bytes are wrong encoded.
+	 * @see #encode(ByteBuffer)
+	 */
+	public void decode(ByteBuffer in) throws IOException {
+		handle(new DataInputStream(new ByteBufferInputStream(in)));
+	}
+
+	/**
+	 * Writes the data of this packet (without the id) directly into a buffer. If a packet overrides this method, the <code>DataSender</code> prefers it
+	 * over {@link #prepare()}, so no <code>PacketWriter</code> is needed.<br>
+	 * If the buffer has not enough space left, simply let the <code>BufferOverflowException</code> propagate: The sender will retry with a bigger buffer.
+	 * Note that this method may therefore be called more than once for the same packet.<br>
+	 * <br>
+	 * The default implementation bridges to {@link #prepare()}.
+	 * 
+	 * @param out
+	 *            The buffer to write to (big endian).
+	 * @throws IOException
+	 *             If encoding fails.
+	 * @see #decode(ByteBuffer)
+	 */
+	public void encode(ByteBuffer out) throws IOException {
+		byte[] data = prepare().toByteArray();
+		out.put(data, 2, data.length - 2); // Skip the id, it is written by the sender
+	}
+
+	/**
+	 * @return Whether this packet overrides {@link #encode(ByteBuffer)}.
+	 */
+	boolean hasBufferEncoder() {
+		return BUFFER_ENCODERS.get(getClass());
+	}
+
 	/**
 	 * Defines whether this packet type is critical.<br>
 	 * Critical means that the handle() function should never fail. If it fails though the connection will be terminated<br>
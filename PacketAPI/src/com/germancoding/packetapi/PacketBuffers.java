@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.UTFDataFormatException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helper functions for packets reading from and writing to ByteBuffers.<br>
+ * Strings are encoded exactly like <code>DataOutput.writeUTF()</code> does it (modified UTF-8 with a two-byte length), so packets using buffers
+ * are compatible with packets using streams.
+ */
+public final class PacketBuffers {
+
+	private PacketBuffers() {
+	}
+
+	/**
+	 * Writes a string in the same format as <code>DataOutput.writeUTF()</code>.
+	 * 
+	 * @throws UTFDataFormatException
+	 *             If the encoded string is longer than 65535 bytes.
+	 */
+	public static void putUTF(ByteBuffer out, String s) throws UTFDataFormatException {
+		int length = s.length();
+		int encodedLength = length;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80 || c == 0)
+				encodedLength += (c >= 0x800) ? 2 : 1;
+		}
+		if (encodedLength > 65535)
+			throw new UTFDataFormatException("Encoded string too long: " + encodedLength + " bytes");
+
+		out.putShort((short) encodedLength);
+		if (encodedLength == length && out.hasArray()) {
+			// Fast path for ASCII strings
+			if (out.remaining() < length)
+				throw new BufferOverflowException();
+			byte[] array = out.array();
+			int offset = out.arrayOffset() + out.position();
+			for (int i = 0; i < length; i++) {
+				array[offset + i] = (byte) s.charAt(i);
+			}
+			out.position(out.position() + length);
+			return;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80 && c != 0) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else {
+				out.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #putUTF(ByteBuffer, String)} or <code>DataOutput.writeUTF()</code>.
+	 * 
+	 * @throws UTFDataFormatException
+	 *             If the bytes are not a valid modified UTF-8 string or the buffer ends in the middle of the string.
+	 */
+	public static String getUTF(ByteBuffer in) throws UTFDataFormatException {
+		int encodedLength;
+		try {
+			encodedLength = in.getShort() & 0xFFFF;
+		} catch (BufferUnderflowException e) {
+			throw new UTFDataFormatException("Missing string length");
+		}
+		if (encodedLength > in.remaining())
+			throw new UTFDataFormatException("String length " + encodedLength + " exceeds the remaining " + in.remaining() + " bytes");
+
+		char[] chars = new char[encodedLength];
+		int count = 0;
+		int end = in.position() + encodedLength;
+		int i = in.position();
+		while (i < end) {
+			int b = in.get(i) & 0xFF;
+			if (b < 0x80) {
+				chars[count++] = (char) b;
+				i++;
+			} else if ((b & 0xE0) == 0xC0) {
+				if (i + 2 > end)
+					throw new UTFDataFormatException("Malformed input: partial character at end");
+				int b2 = in.get(i + 1);
+				if ((b2 & 0xC0) != 0x80)
+					throw new UTFDataFormatException("Malformed input around byte " + i);
+				chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+				i += 2;
+			} else if ((b & 0xF0) == 0xE0) {
+				if (i + 3 > end)
+					throw new UTFDataFormatException("Malformed input: partial character at end");
+				int b2 = in.get(i + 1);
+				int b3 = in.get(i + 2);
+				if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80)
+					throw new UTFDataFormatException("Malformed input around byte " + i);
+				chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+				i += 3;
+			} else {
+				throw new UTFDataFormatException("Malformed input around byte " + i);
+			}
+		}
+		in.position(end);
+		return new String(chars, 0, count);
+	}
+
+}
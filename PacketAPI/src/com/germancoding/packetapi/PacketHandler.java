@@ -1,602 +1,2068 @@
-/*******************************************************************************
- * The MIT License (MIT)
- *
- * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
- *
- * Permission is hereby granted, free of charge, to any person obtaining a copy
- * of this software and associated documentation files (the "Software"), to deal
- * in the Software without restriction, including without limitation the rights
- * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
- * copies of the Software, and to permit persons to whom the Software is
- * furnished to do so, subject to the following conditions:
- *
- * The above copyright notice and this permission notice shall be included in all
- * copies or substantial portions of the Software.
- *
- * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
- * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
- * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
- * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
- * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
- * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
- * SOFTWARE.
- *******************************************************************************/
-package com.germancoding.packetapi;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.logging.Logger;
-
-import com.germancoding.packetapi.Process.ActionType;
-import com.germancoding.packetapi.defaultpackets.ClosePacket;
-import com.germancoding.packetapi.defaultpackets.DefaultPacket;
-import com.germancoding.packetapi.defaultpackets.HandshakePacket;
-import com.germancoding.packetapi.defaultpackets.KeepAlivePacket;
-import com.germancoding.packetapi.udp.UnreliableOutputStream;
-
-public class PacketHandler {
-
-	/** Applications can change this value if they want. Default is 1 **/
-	public static int PROTOCOL_VERSION = 1;
-	/** Handshake ID used in the sendHandshake() method. The other side will respond to that packet. Default is 0 **/
-	public static final int HANDSHAKE_ID_REQUEST = 0;
-
-	/** Handshake ID used when replying to a handshake packet. The other side will not respond to that packet. Default is 1 **/
-	public static final int HANDSHAKE_ID_RESPONSE = 1;
-
-	/** Timeout (in MS) after which KeepAlive packets should be send. Default is 20.000 ms **/
-	public static int DATA_TIMEOUT = 20000;
-
-	public Logger logger = Logger.getLogger("PacketHandler");
-
-	protected InputStream in; // Protected for direct access
-	protected OutputStream out;
-
-	private DataSender sender;
-	private DataReader reader;
-
-	private PacketListener listener;
-	private DefaultPacketListener defaultPacketListener = new DefaultPacketListener(this);
-
-	// State attributes
-	private String connectionName;
-	private boolean closed;
-	private boolean versionApproved;
-	private boolean handshakeSend;
-	private boolean closeListenerNotified;
-	private int remoteProtocolVersion = -1;
-	private long lastPacketReceived;
-	private long lastPacketSend;
-	private boolean autoSendKeepAlive;
-	private boolean notifyDefaults;
-	private boolean autoProcessPackets = true;
-	private boolean instantFlush;
-
-	private HashMap<Short, Class<? extends Packet>> packetMap = new HashMap<Short, Class<? extends Packet>>(); // TODO: What about a static packet map? (The local packet map could be optional)
-	private LinkedList<Process> processingQueue = new LinkedList<Process>();
-
-	/**
-	 * Creates a new PacketHandler instance. The instance will use the given I/O streams to send and receive data. <br>
-	 * <br>
-	 * <b>Note about timeouts: When the I/O stream reads from a UDP socket (or any other protocol that deals with timeouts), beware of the socket timeout value! If the <code>PacketHandler</code> runs into a timeout, the connection will be marked as failed and will be terminated. To avoid this, set the timeout to zero or set it to something higher then the {@link #DATA_TIMEOUT} and use the keep-alive function.</b>
-	 * 
-	 * @param in
-	 *            The InputStream to read data from.
-	 * @param out
-	 *            The OutputStream to send data to.
-	 * @param connectionName
-	 *            Optional: Give the connection a name to identify it. Can be <code>null</code>.
-	 * @param listener
-	 *            A listener which is notified when something happens (A packet arrived, the connection failed...). Can be <code>null</code> if the application does not want to listen to incoming data.
-	 */
-	public PacketHandler(InputStream in, OutputStream out, String connectionName, PacketListener listener) {
-		if (in == null || out == null) {
-			throw new IllegalArgumentException("InputStream or OutputStream can not be null");
-		}
-		if (connectionName == null)
-			connectionName = "";
-		this.in = in;
-		this.out = out;
-		this.setConnectionName(connectionName);
-		if (listener != null) // Could be null, if the application doesn't want to listen to incoming packets
-		{
-			this.setListener(listener);
-		} else {
-			this.setListener(new PacketListener() { // Setup an empty listener for the application
-
-				@Override
-				public void onPacketReceived(PacketHandler handler, Packet packet) {
-					; // Do nothing
-				}
-
-				@Override
-				public void onUnknownPacketReceived(PacketHandler handler, short id) {
-					;
-				}
-
-				@Override
-				public void onConnectionClosed(PacketHandler handler, String message, boolean expected) {
-					;
-				}
-
-				@Override
-				public void onConnectionFailed(PacketHandler handler, Throwable exception) {
-					;
-				}
-			});
-		}
-		registerPacketDefaults();
-		sender = new DataSender(this);
-		reader = new DataReader(this);
-
-		if (out instanceof UnreliableOutputStream) {
-			setInstantFlush(true);
-		}
-	}
-
-	private void registerPacketDefaults() {
-		try {
-			registerPacket(HandshakePacket.class);
-			registerPacket(ClosePacket.class);
-			registerPacket(KeepAlivePacket.class);
-		} catch (Exception e) {
-			logger.severe("Failed to register default packets! " + e);
-		}
-	}
-
-	/**
-	 * Registers a new packet. After registering the packet type can be send and received.
-	 * 
-	 * @param packetClass
-	 *            The class of the new packet.
-	 * @throws Exception
-	 *             If reflection fails, like when there is no nullary constructor.
-	 */
-	public void registerPacket(Class<? extends Packet> packetClass) throws Exception {
-		if (packetClass == null)
-			throw new IllegalArgumentException("packetClass can not be null");
-		// If this call fails (e.g when there is no nullary constructor), an exception will be thrown.
-		short id = packetClass.getDeclaredConstructor().newInstance().getId();
-		packetMap.put(id, packetClass);
-	}
-
-	public Packet getNewPacketInstance(short id) {
-		Class<? extends Packet> packetClass = packetMap.get(id);
-		if (packetClass == null) {
-			logger.warning("Packet with id=" + id + " not found");
-			return null;
-		}
-		try {
-			return packetClass.getDeclaredConstructor().newInstance();
-		} catch (InstantiationException e) {
-			logger.severe("Failed to instantiate a new packet class instance. " + e);
-		} catch (IllegalAccessException e) {
-			logger.severe("Failed to instantiate a new packet class instance. " + e);
-		} catch (IllegalArgumentException e) {
-			logger.severe("Failed to instantiate a new packet class instance. " + e);
-		} catch (InvocationTargetException e) {
-			logger.severe("Failed to instantiate a new packet class instance. " + e);
-		} catch (NoSuchMethodException e) {
-			logger.severe("Failed to instantiate a new packet class instance. " + e);
-		} catch (SecurityException e) {
-			logger.severe("Failed to instantiate a new packet class instance. " + e);
-		}
-		return null;
-	}
-
-	/**
-	 * Sends the given packet by adding it to the sending queue. Sendings packets that are not registered is possible, but is not recommended.
-	 * 
-	 * Calling this method has the same effect as calling <code>getSender().sendPacket(p)</code>
-	 * 
-	 * @param p
-	 *            The packet to send.
-	 */
-	public void sendPacket(Packet p) {
-		getSender().sendPacket(p);
-	}
-
-	/**
-	 * Notifies this instance that the connection has failed. This method notifies the listeners and closes the connection
-	 * 
-	 * @param e
-	 *            An exception describing why the connection has failed.
-	 */
-	public void onConnectionFail(Exception e) {
-		if (closed) // Abort if the connection was already closed (A closed connection can not fail)
-			return;
-		closeListenerNotified = true;
-		close();
-		logger.warning("Connection '" + getConnectionName() + "' failed! " + e);
-		getDefaultPacketListener().onConnectionFailed(this, e);
-		getListener().onConnectionFailed(this, e);
-		dispose();
-	}
-
-	/**
-	 * Notifies this instance that the connection is closed (or will be closed now) for an external reason.
-	 * 
-	 * @param message
-	 *            Message why the connection was closed.
-	 * @param expected
-	 *            Whether this was expected (like there was a close packet) or not (like when the underlying socket is closed without notification)
-	 */
-	public void onConnectionClosed(String message, boolean expected) {
-		if (closed)
-			return;
-		closeListenerNotified = true;
-		close();
-		getDefaultPacketListener().onConnectionClosed(this, message, expected);
-		getListener().onConnectionClosed(this, message, expected);
-		dispose();
-	}
-
-	/**
-	 * Closes the connection, the I/O streams and notfies the other side that we are closing this connection.
-	 */
-	public void close() {
-		if (closed)
-			return;
-		closed = true;
-		ClosePacket close = new ClosePacket();
-		sendPacket(close);
-		long timeout = System.currentTimeMillis() + 1000;
-		do {
-			synchronized (this) {
-				try {
-					this.wait(500);
-					if (System.currentTimeMillis() >= timeout) {
-						break;
-					}
-				} catch (InterruptedException e) {
-					break;
-				}
-			}
-		} while (!sender.queueEmpty());
-		sender.interrupt();
-		reader.interrupt();
-		try {
-			in.close();
-			out.close();
-		} catch (IOException e) {
-			;
-		}
-		synchronized (processingQueue) { // <--- Request ownership of the object's monitor to call notify()
-			processingQueue.notify(); // Wake up an waiting external thread (if there is one) to update itself.
-		}
-
-		if (!closeListenerNotified) {
-			// Someone is calling close() directly so we assume that the connection was closed expectly
-			getDefaultPacketListener().onConnectionClosed(this, "Connection closed locally", true);
-			getListener().onConnectionClosed(this, "Connection closed locally", true);
-			dispose();
-		}
-	}
-
-	private void dispose() {
-		in = null;
-		out = null;
-		sender = null;
-		reader = null;
-		listener = null;
-		defaultPacketListener = null;
-		connectionName = null;
-		packetMap.clear();
-		packetMap = null;
-		processingQueue.clear();
-		processingQueue = null;
-	}
-
-	/**
-	 * @return The name of this connection.
-	 */
-	public String getConnectionName() {
-		return connectionName;
-	}
-
-	public void setConnectionName(String connectionName) {
-		if (connectionName == null)
-			connectionName = "";
-		this.connectionName = connectionName;
-	}
-
-	/**
-	 * @return The reader which is reading data from the InputStream.
-	 */
-	public DataReader getReader() {
-		return reader;
-	}
-
-	/**
-	 * @return The sender which is sending data to the OutputStream.
-	 */
-	public DataSender getSender() {
-		return sender;
-	}
-
-	/**
-	 * @return The application/user listener.
-	 */
-	public PacketListener getListener() {
-		return listener;
-	}
-
-	public void setListener(PacketListener listener) {
-		if (listener == null) {
-			throw new IllegalArgumentException("Listener cannot be null at this point. A null listener is only allowed in the constructor.");
-		}
-		this.listener = listener;
-	}
-
-	/**
-	 * @return The listener used by the PacketAPI for default packets.
-	 */
-	public DefaultPacketListener getDefaultPacketListener() {
-		return defaultPacketListener;
-	}
-
-	protected void setDefaultPacketListener(DefaultPacketListener defaultPacketListener) {
-		if (defaultPacketListener == null) {
-			throw new IllegalArgumentException("DefaultPacketListener cannot be null.");
-		}
-		this.defaultPacketListener = defaultPacketListener;
-	}
-
-	/**
-	 * Called when a new packet was received.
-	 * 
-	 * @param packet
-	 *            The packet just received.
-	 */
-	public void onPacketReceived(Packet packet) {
-		if (!autoProcessPackets) {
-			// Processing is done by the external thread
-			Process process = new Process(ActionType.RECEIVED, packet.getId(), packet, this);
-			addToQueue(process);
-		} else {
-			// Directly pass the packet to the listener
-			processPacket(packet);
-		}
-	}
-
-	public void onUnknownPacketReceived(short id) {
-		if (!autoProcessPackets) {
-			Process process = new Process(ActionType.UNKN_RECEIVED, id, null, this);
-			addToQueue(process);
-		} else {
-			processUnknownPacket(id);
-		}
-	}
-
-	private void processUnknownPacket(short id) {
-		getDefaultPacketListener().onUnknownPacketReceived(this, id);
-		getListener().onUnknownPacketReceived(this, id);
-	}
-
-	private void processPacket(Packet packet) {
-		setLastPacketReceived(System.currentTimeMillis());
-		if (packet instanceof DefaultPacket) {
-			if (notifyDefaults) {
-				getListener().onPacketReceived(this, packet);
-			}
-			getDefaultPacketListener().onPacketReceived(this, packet);
-		} else {
-			getListener().onPacketReceived(this, packet);
-		}
-	}
-
-	/**
-	 * 
-	 * @return Whether the connection was closed (using the close() function of this class) or not.
-	 */
-	public boolean isClosed() {
-		return closed;
-	}
-
-	private void addToQueue(Process process) {
-		synchronized (processingQueue) {
-			processingQueue.add(process);
-			processingQueue.notify();
-		}
-	}
-
-	/**
-	 * Sends a handshake to exchange version numbers. You have to call this method if you want to use state attributes like isVersionApproved().
-	 */
-	public void sendHandshake() {
-		sendHandshake(HANDSHAKE_ID_REQUEST);
-	}
-
-	/**
-	 * Sends a handshake using the given id as the handshake id.
-	 * 
-	 * @param id
-	 *            The handshake id.
-	 */
-	public void sendHandshake(int id) {
-		HandshakePacket handshake = new HandshakePacket();
-		handshake.setHandshakeID(id);
-		handshake.setProtocolVersion(PROTOCOL_VERSION);
-		sendPacket(handshake);
-		setHandshakeSend(true);
-	}
-
-	/**
-	 * Returns all packets that have not been processed yet. Returns <code>null</code> if {@link #automaticPacketProcessing()} is true. <br>
-	 * Calling this method will first pass the cached packets to the listeners before it returns them. <br>
-	 * If {@link #automaticPacketProcessing()} is false, it is recommended to call this method frequently otherwise no packets will get processed.
-	 * 
-	 * @return All packets in the queue or an empty list. Only <code>null</code> if packets are automatically processed and the queue is empty.
-	 * @see #automaticPacketProcessing()
-	 */
-	public List<Packet> getCachedPackets() {
-		synchronized (processingQueue) {
-			if (automaticPacketProcessing() && processingQueue.isEmpty()) // There could be packets left in the queue even if automatic processing is on
-				return null;
-
-			ArrayList<Packet> packets = new ArrayList<Packet>();
-
-			for (Process ppacket : processingQueue) {
-
-				switch (ppacket.getType()) {
-				case RECEIVED:
-					processPacket(ppacket.getPacket());
-					packets.add(ppacket.getPacket());
-					break;
-				case UNKN_RECEIVED:
-					processUnknownPacket(ppacket.getPacketID());
-					break;
-				default:
-					logger.warning("Unknown packet processor type: " + ppacket.getType());
-					break;
-				}
-			}
-
-			processingQueue.clear();
-			return packets;
-		}
-	}
-
-	/**
-	 * @return Whether automatic packet processing is on. If true, packets will be passed directly to the listener after receiving. This is done on an async thread (called DataReader). <br>
-	 *         In some cases you may want to handle to the incoming packets on your (main) thread. To achieve this, set automatic packet processing to false and call {@link #getCachedPackets()} frequently to get your packets processed on your thread. <br>
-	 *         Default is true.
-	 */
-	public boolean automaticPacketProcessing() {
-		return autoProcessPackets;
-	}
-
-	public void setAutomaticPacketProcessing(boolean on) {
-		autoProcessPackets = on;
-	}
-
-	/**
-	 * @return Whether the protocol version is approved. The protocol version is approved when both peers have the same protocol version.<br>
-	 *         To request a version check, simply send a handshake packet by calling <code>sendHandshake()</code>. After receiving the response from the other side and comparing the version numbers, the version will be approved.
-	 */
-	public boolean isVersionApproved() {
-		return versionApproved;
-	}
-
-	public void setVersionApproved(boolean versionApproved) {
-		this.versionApproved = versionApproved;
-	}
-
-	/**
-	 * @return Whether this side has send a handshake packet.<br>
-	 *         Note: Handshake packets are not send automatically, you have to call <code>sendHandshake()</code>.
-	 */
-	public boolean isHandshakeSend() {
-		return handshakeSend;
-	}
-
-	public void setHandshakeSend(boolean handshakeSend) {
-		this.handshakeSend = handshakeSend;
-	}
-
-	/**
-	 * @return The protocol version of the other peer or -1 if the version used by the other peer is unknown (e.g no handshake was send)
-	 */
-	public int getRemoteProtocolVersion() {
-		return remoteProtocolVersion;
-	}
-
-	public void setRemoteProtocolVersion(int remoteProtocolVersion) {
-		this.remoteProtocolVersion = remoteProtocolVersion;
-	}
-
-	/**
-	 * @return The timestamp when the last packet was (successfull) received. 0 if no packet was received yet.
-	 */
-	public long getLastPacketReceived() {
-		return lastPacketReceived;
-	}
-
-	public void setLastPacketReceived(long lastPacketReceived) {
-		this.lastPacketReceived = lastPacketReceived;
-	}
-
-	/**
-	 * @return The timestamp when the last packet was send. 0 if no packet was send yet.
-	 */
-	public long getLastPacketSend() {
-		return lastPacketSend;
-	}
-
-	public void setLastPacketSend(long lastPacketSend) {
-		this.lastPacketSend = lastPacketSend;
-	}
-
-	/**
-	 * @return Whether the library automatically sends packets to keep the connection alive. Default is false.
-	 */
-	public boolean autoSendKeepAlive() {
-		return autoSendKeepAlive;
-	}
-
-	public void setAutoSendKeepAlive(boolean autoSendKeepAlive) {
-		this.autoSendKeepAlive = autoSendKeepAlive;
-	}
-
-	/**
-	 * @return If no data is send or received by the application for some time, this value returns true.
-	 * @see #DATA_TIMEOUT
-	 */
-	public boolean shouldSendKeepAlive() {
-		return (System.currentTimeMillis() - getLastPacketReceived()) >= DATA_TIMEOUT && (System.currentTimeMillis() - getLastPacketSend()) >= (DATA_TIMEOUT / 2);
-	}
-
-	/**
-	 * Sets whether this library calls <code>PacketListener.onPacketReceived()</code> when default packets are received.
-	 * 
-	 * @param notify
-	 *            Whether to notify your PacketListener when we receive default packets. Normally, only the DefaultPacketListener gets notified.
-	 */
-	public void notifyOnDefaultPackets(boolean notify) {
-		this.notifyDefaults = notify;
-	}
-
-	/**
-	 * 
-	 * @return If the OutputStream is immediatly flushed after a packet has been send. This is usually not needed, but COULD improve ping times. Default is false
-	 */
-	public boolean isInstantFlush() {
-		return instantFlush;
-	}
-
-	public void setInstantFlush(boolean instantFlush) {
-		this.instantFlush = instantFlush;
-	}
-
-	/**
-	 * Shuts down this PacketHandler instance silently without touching the underlying streams or sockets.
-	 */
-	public void shutdown() {
-		closed = true;
-		getReader().interrupt();
-		getSender().interrupt();
-	}
-
-	public void setSender(DataSender s) throws InterruptedException {
-		if (s == null)
-			throw new IllegalArgumentException("DataSender can not be null");
-		getSender().interrupt();
-		getSender().join();
-		this.sender = s;
-	}
-
-	public void setReader(DataReader s) throws InterruptedException {
-		if (s == null)
-			throw new IllegalArgumentException("DataReader can not be null");
-		getReader().interrupt();
-		getReader().join();
-		this.reader = s;
-	}
-
-}
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import com.germancoding.packetapi.Process.ActionType;
+import com.germancoding.packetapi.annotation.AnnotatedPacket;
+import com.germancoding.packetapi.annotation.PacketCodec;
+import com.germancoding.packetapi.annotation.PacketCodecs;
+import com.germancoding.packetapi.capture.PacketCapture;
+import com.germancoding.packetapi.defaultpackets.ClosePacket;
+import com.germancoding.packetapi.defaultpackets.CreditPacket;
+import com.germancoding.packetapi.defaultpackets.DefaultPacket;
+import com.germancoding.packetapi.defaultpackets.HandshakePacket;
+import com.germancoding.packetapi.defaultpackets.IDRegistry;
+import com.germancoding.packetapi.defaultpackets.KeepAlivePacket;
+import com.germancoding.packetapi.defaultpackets.RpcPacket;
+import com.germancoding.packetapi.defaultpackets.SessionPacket;
+import com.germancoding.packetapi.defaultpackets.StreamPacket;
+import com.germancoding.packetapi.defaultpackets.TransferPacket;
+import com.germancoding.packetapi.jfr.ConnectionClosedEvent;
+import com.germancoding.packetapi.metrics.ConnectionMetrics;
+import com.germancoding.packetapi.metrics.LatencyTracker;
+import com.germancoding.packetapi.metrics.LatencyTracker.Stage;
+import com.germancoding.packetapi.metrics.MetricsRegistry;
+import com.germancoding.packetapi.udp.UnreliableOutputStream;
+
+public class PacketHandler {
+
+	/** Applications can change this value if they want. Default is 1 **/
+	public static int PROTOCOL_VERSION = 1;
+
+	/** Version of the PacketAPI itself, exchanged in the handshake to negotiate optional wire features. Version 2 added timestamped keep-alives, version 3 requests, version 4 streams, version 5 flow control, version 6 session resumption **/
+	public static final int API_VERSION = 6;
+	/** Handshake ID used in the sendHandshake() method. The other side will respond to that packet. Default is 0 **/
+	public static final int HANDSHAKE_ID_REQUEST = 0;
+
+	/** Handshake ID used when replying to a handshake packet. The other side will not respond to that packet. Default is 1 **/
+	public static final int HANDSHAKE_ID_RESPONSE = 1;
+
+	/** Timeout (in MS) after which KeepAlive packets should be send. Default is 20.000 ms **/
+	public static int DATA_TIMEOUT = 20000;
+
+	/** Whether new connections record latency histograms, see {@link #setLatencyTracking(boolean)}. Default is false **/
+	public static boolean LATENCY_TRACKING = false;
+
+	/** Default timeout (in MS) after which a connection is closed if no data was received. 0 disables the timeout. Default is 0 **/
+	public static int READ_TIMEOUT = 0;
+
+	/** Close message used when a connection is closed because no data was received within the read timeout **/
+	public static final String IDLE_TIMEOUT_MESSAGE = "Read timeout: No data received";
+
+	/** Time (in MS) a closing connection waits for queued packets and the ClosePacket to be flushed before the streams are closed anyway. Default is 1000 ms **/
+	public static int CLOSE_TIMEOUT = 1000;
+
+	/** Default time (in MS) to wait for the response to a request, see {@link #request(Packet)}. Default is 30.000 ms **/
+	public static int REQUEST_TIMEOUT = 30000;
+
+	/** Default maximum size (in bytes) of a single packet. Larger packets are a protocol violation, use transfers for big payloads. Default is 16 MiB **/
+	public static int MAX_PACKET_SIZE = 16 * 1024 * 1024;
+
+	/** Size (in bytes) of the chunks large transfers are split into. Default is 32 KiB **/
+	public static int TRANSFER_CHUNK_SIZE = 32 * 1024;
+
+	/** Size (in bytes) of the chunks packets sent on streams are split into. Smaller chunks let streams take turns more often. Default is 16 KiB **/
+	public static int STREAM_CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * Default receive window (in bytes) of new connections. The other side may send this many bytes ahead of the packets processed here, then it waits
+	 * until processed packets grant new credit. 0 disables flow control. Both sides need API version 5, the window is exchanged in the handshake. Default is
+	 * 4 MiB
+	 **/
+	public static int RECEIVE_WINDOW = 4 * 1024 * 1024;
+
+	/** Whether new connections created from streams can be resumed, see {@link #setResumable(boolean)}. Default is false **/
+	public static boolean RESUMABLE = false;
+
+	/** Time (in MS) a connection with a resumable session waits to be resumed after its streams failed. Afterwards, it fails. Default is 30.000 ms **/
+	public static int RESUME_TIMEOUT = 30000;
+
+	/**
+	 * Maximum size (in bytes) of the frames a resumable session keeps until the other side acknowledged them. Once it is reached, sending waits for
+	 * acknowledgements. Should be a few times the {@link #ACK_INTERVAL}. Default is 1 MiB
+	 **/
+	public static int RETRANSMIT_BUFFER = 1024 * 1024;
+
+	/** Bytes received by a resumable session after which they are acknowledged. Default is 64 KiB **/
+	public static int ACK_INTERVAL = 64 * 1024;
+
+	/** Time (in MS) after which received frames are acknowledged at the latest. Default is 200 ms **/
+	public static int ACK_DELAY = 200;
+
+	/** Close message of a connection whose streams were taken over by a resumed session **/
+	public static final String RESUMED_MESSAGE = "Streams handed over to a resumed session";
+
+	/** Close message of a connection closed because it exceeded a rate limit with the policy {@link RateLimiter.Policy#CLOSE} **/
+	public static final String RATE_LIMIT_MESSAGE = "Rate limit exceeded";
+
+	/** Default limit (in bytes) of the memory budget of new connections. Default is no limit, see {@link MemoryBudget#GLOBAL} for a limit shared by all connections **/
+	public static long MEMORY_BUDGET = Long.MAX_VALUE;
+
+	/**
+	 * Default flush policy of new connections (except UDP connections, which flush every packet). Default is {@link FlushPolicy#whenIdle()}: Packets
+	 * queued while others are written are sent together, a single packet is sent right away.
+	 **/
+	public static FlushPolicy FLUSH_POLICY = FlushPolicy.whenIdle();
+
+	public Logger logger = Logger.getLogger("PacketHandler");
+
+	/**
+	 * Runs what the timeouts of the shared timer trigger (closing connections notifies their listeners), so the timer thread is never blocked. A few
+	 * daemon threads shared by all connections, they end when idle.
+	 */
+	static final Executor TIMEOUT_EXECUTOR = createTimeoutExecutor();
+
+	protected InputStream in; // Protected for direct access
+	protected OutputStream out;
+
+	private DataSender sender;
+	private DataReader reader;
+
+	private PacketListener listener;
+	private DefaultPacketListener defaultPacketListener = new DefaultPacketListener(this);
+
+	// State attributes
+	private String connectionName;
+	private volatile boolean closed;
+	private boolean versionApproved;
+	private boolean handshakeSend;
+	private volatile boolean closeListenerNotified;
+	private final CompletableFuture<Boolean> closeFuture = new CompletableFuture<Boolean>();
+	private final AtomicBoolean closeFinished = new AtomicBoolean();
+	private HashedWheelTimer.Timeout closeDeadline;
+	private int remoteProtocolVersion = -1;
+	private int remoteApiVersion = -1;
+	private RttEstimator rttEstimator = new RttEstimator();
+	private AtomicInteger nextKeepAliveSequence = new AtomicInteger();
+	private final long createdAt = System.currentTimeMillis();
+	private volatile long lastPacketReceived;
+	private volatile long lastPacketSend;
+	private volatile boolean autoSendKeepAlive;
+	private volatile int readTimeout = READ_TIMEOUT;
+	private final Object timerLock = new Object();
+	private HashedWheelTimer.Timeout keepAliveTimeout;
+	private HashedWheelTimer.Timeout readTimeoutTimeout;
+	private boolean notifyDefaults;
+	private boolean autoProcessPackets = true;
+	private volatile FlushPolicy flushPolicy = FLUSH_POLICY;
+	private int maxPacketSize = MAX_PACKET_SIZE;
+	private AtomicInteger nextTransferId = new AtomicInteger();
+	private TransferListener transferListener;
+	private RequestListener requestListener;
+	private StreamListener streamListener;
+	private volatile int receiveWindow = RECEIVE_WINDOW;
+	private final AtomicLong consumedBytes = new AtomicLong(); // Flow controlled bytes processed
+	private final AtomicLong grantedBytes = new AtomicLong(); // Consumed bytes reported to the other side
+	private final ConcurrentHashMap<Integer, PacketStream> localStreams = new ConcurrentHashMap<Integer, PacketStream>(); // Opened by this side
+	private final ConcurrentHashMap<Integer, PacketStream> remoteStreams = new ConcurrentHashMap<Integer, PacketStream>();
+	private AtomicInteger nextStreamId = new AtomicInteger();
+	private final Set<ConnectionGroup> groups = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<Integer, PendingRequest>();
+	private AtomicInteger nextCallId = new AtomicInteger();
+	private MemoryBudget memoryBudget;
+	private ConnectionMetrics metrics;
+	private volatile LatencyTracker latencyTracker;
+	private volatile PacketCapture capture;
+	private final Session session; // Null for connections not created from streams
+	private volatile SessionListener sessionListener;
+	private final RateLimits ingressLimits = new RateLimits();
+	private final RateLimits egressLimits = new RateLimits();
+
+	private HashMap<Short, Class<? extends Packet>> packetMap = new HashMap<Short, Class<? extends Packet>>(); // TODO: What about a static packet map? (The local packet map could be optional)
+	private HashMap<Short, PacketCodec<?>> codecMap = new HashMap<Short, PacketCodec<?>>(); // Generated codecs, used to create packets without reflection
+	private HashMap<Short, Boolean> criticalMap = new HashMap<Short, Boolean>(); // Looked up by the rate limiter, without creating packets
+	private LinkedList<Process> processingQueue = new LinkedList<Process>();
+
+	/**
+	 * Creates a new PacketHandler instance. The instance will use the given I/O streams to send and receive data. <br>
+	 * <br>
+	 * <b>Note about timeouts: When the I/O stream reads from a UDP socket (or any other protocol that deals with timeouts), beware of the socket timeout value! If the <code>PacketHandler</code> runs into a timeout, the connection will be marked as failed and will be terminated. To avoid this, set the timeout to zero or set it to something higher then the {@link #DATA_TIMEOUT} and use the keep-alive function.</b>
+	 * 
+	 * @param in
+	 *            The InputStream to read data from.
+	 * @param out
+	 *            The OutputStream to send data to.
+	 * @param connectionName
+	 *            Optional: Give the connection a name to identify it. Can be <code>null</code>.
+	 * @param listener
+	 *            A listener which is notified when something happens (A packet arrived, the connection failed...). Can be <code>null</code> if the application does not want to listen to incoming data.
+	 */
+	public PacketHandler(InputStream in, OutputStream out, String connectionName, PacketListener listener) {
+		this(in, out, connectionName, listener, null, false);
+	}
+
+	/**
+	 * Creates a PacketHandler driven by an event loop of a {@link PacketServer}. Reading starts once the connection is registered with its loop.
+	 */
+	PacketHandler(ChannelConnection connection, String connectionName, PacketListener listener) {
+		this(InputStream.nullInputStream(), connection.getOutputStream(), connectionName, listener, connection, false);
+	}
+
+	/**
+	 * Creates one side of a {@link LocalConnection}. Packets are exchanged without streams, the connection pairs the sender of each side with the reader
+	 * of the other side.
+	 */
+	PacketHandler(LocalConnection connection, String connectionName, PacketListener listener) {
+		this(InputStream.nullInputStream(), OutputStream.nullOutputStream(), connectionName, listener, null, true);
+	}
+
+	private PacketHandler(InputStream in, OutputStream out, String connectionName, PacketListener listener, ChannelConnection connection, boolean local) {
+		if (in == null || out == null) {
+			throw new IllegalArgumentException("InputStream or OutputStream can not be null");
+		}
+		if (connectionName == null)
+			connectionName = "";
+		this.in = in;
+		this.out = out;
+		this.setConnectionName(connectionName);
+		this.memoryBudget = new MemoryBudget(connectionName, MEMORY_BUDGET, MemoryBudget.GLOBAL);
+		this.metrics = new ConnectionMetrics(connectionName, ConnectionMetrics.GLOBAL);
+		MetricsRegistry.register(metrics);
+		if (connection == null && !local) {
+			session = new Session(this);
+			if (RESUMABLE)
+				session.setResumable(true);
+		} else {
+			session = null;
+		}
+		if (listener != null) // Could be null, if the application doesn't want to listen to incoming packets
+		{
+			this.setListener(listener);
+		} else {
+			this.setListener(new PacketListener() { // Setup an empty listener for the application
+
+				@Override
+				public void onPacketReceived(PacketHandler handler, Packet packet) {
+					; // Do nothing
+				}
+
+				@Override
+				public void onUnknownPacketReceived(PacketHandler handler, short id) {
+					;
+				}
+
+				@Override
+				public void onConnectionClosed(PacketHandler handler, String message, boolean expected) {
+					;
+				}
+
+				@Override
+				public void onConnectionFailed(PacketHandler handler, Throwable exception) {
+					;
+				}
+			});
+		}
+		registerPacketDefaults();
+		if (connection != null) {
+			sender = new LoopSender(this, connection); // The event loop reads and writes, no threads of our own
+		} else if (local) {
+			sender = new LocalSender(this);
+			reader = new LocalReader(this);
+		} else {
+			sender = new DataSender(this);
+			reader = new DataReader(this);
+		}
+		scheduleReadTimeout(readTimeout);
+		if (LATENCY_TRACKING)
+			setLatencyTracking(true);
+
+		if (out instanceof UnreliableOutputStream) {
+			setFlushPolicy(FlushPolicy.always()); // One UDP packet per packet
+		}
+	}
+
+	private void registerPacketDefaults() {
+		try {
+			registerPacket(HandshakePacket.class);
+			registerPacket(ClosePacket.class);
+			registerPacket(KeepAlivePacket.class);
+			registerPacket(TransferPacket.class);
+			registerPacket(StreamPacket.class);
+			registerPacket(CreditPacket.class);
+			registerPacket(RpcPacket.class);
+			registerPacket(SessionPacket.class);
+		} catch (Exception e) {
+			logger.severe("Failed to register default packets! " + e);
+		}
+	}
+
+	/**
+	 * Registers a new packet. After registering the packet type can be send and received.
+	 * 
+	 * @param packetClass
+	 *            The class of the new packet.
+	 * @throws Exception
+	 *             If reflection fails, like when there is no nullary constructor.
+	 */
+	public void registerPacket(Class<? extends Packet> packetClass) throws Exception {
+		if (packetClass == null)
+			throw new IllegalArgumentException("packetClass can not be null");
+		if (AnnotatedPacket.class.isAssignableFrom(packetClass)) {
+			registerCodec(PacketCodecs.forClass(packetClass));
+			return;
+		}
+		// If this call fails (e.g when there is no nullary constructor), an exception will be thrown.
+		Packet packet = packetClass.getDeclaredConstructor().newInstance();
+		short id = packet.getId();
+		packetMap.put(id, packetClass);
+		codecMap.remove(id);
+		criticalMap.put(id, packet.isCritical());
+	}
+
+	/**
+	 * Registers a packet using its generated codec. Packets registered this way are created without reflection.
+	 * 
+	 * @param codec
+	 *            The codec of the packet, usually generated by the annotation processor.
+	 * @see com.germancoding.packetapi.annotation.SerializedPacket
+	 */
+	public void registerCodec(PacketCodec<?> codec) {
+		if (codec == null)
+			throw new IllegalArgumentException("codec can not be null");
+		packetMap.put(codec.getId(), codec.getPacketClass());
+		codecMap.put(codec.getId(), codec);
+		criticalMap.put(codec.getId(), codec.newInstance().isCritical());
+	}
+
+	/**
+	 * Registers all packets annotated with <code>@SerializedPacket</code> that are visible to the context class loader of the current thread.<br>
+	 * The annotation processor lists all generated codecs in a <code>META-INF/services</code> file, so there is no need to register each packet by hand.
+	 * 
+	 * @return The number of registered packets.
+	 */
+	public int registerGeneratedPackets() {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null)
+			loader = PacketHandler.class.getClassLoader();
+		List<PacketCodec<?>> codecs = PacketCodecs.loadAll(loader);
+		for (PacketCodec<?> codec : codecs) {
+			registerCodec(codec);
+		}
+		return codecs.size();
+	}
+
+	/**
+	 * @return Whether packets with the given id can be received (they are registered or default packets).
+	 */
+	boolean isRegistered(short id) {
+		HashMap<Short, Class<? extends Packet>> packetMap = this.packetMap; // Unset when disposed
+		return packetMap != null && packetMap.containsKey(id);
+	}
+
+	/**
+	 * @return Whether packets with the given id are critical, false if the id is not registered.
+	 */
+	boolean isCritical(short id) {
+		HashMap<Short, Boolean> criticalMap = this.criticalMap; // Unset when disposed
+		if (criticalMap == null)
+			return false;
+		Boolean critical = criticalMap.get(id);
+		return critical != null && critical;
+	}
+
+	public Packet getNewPacketInstance(short id) {
+		PacketCodec<?> codec = codecMap.get(id);
+		if (codec != null) {
+			return codec.newInstance();
+		}
+		Class<? extends Packet> packetClass = packetMap.get(id);
+		if (packetClass == null) {
+			logger.warning("Packet with id=" + id + " not found");
+			return null;
+		}
+		try {
+			return packetClass.getDeclaredConstructor().newInstance();
+		} catch (InstantiationException e) {
+			logger.severe("Failed to instantiate a new packet class instance. " + e);
+		} catch (IllegalAccessException e) {
+			logger.severe("Failed to instantiate a new packet class instance. " + e);
+		} catch (IllegalArgumentException e) {
+			logger.severe("Failed to instantiate a new packet class instance. " + e);
+		} catch (InvocationTargetException e) {
+			logger.severe("Failed to instantiate a new packet class instance. " + e);
+		} catch (NoSuchMethodException e) {
+			logger.severe("Failed to instantiate a new packet class instance. " + e);
+		} catch (SecurityException e) {
+			logger.severe("Failed to instantiate a new packet class instance. " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Sends the given packet by adding it to the sending queue. Sendings packets that are not registered is possible, but is not recommended.
+	 * 
+	 * Calling this method has the same effect as calling <code>getSender().sendPacket(p)</code>
+	 * 
+	 * @param p
+	 *            The packet to send.
+	 * @return False if the packet was rejected because the memory budget of this connection is exhausted. Default packets are never rejected, except for
+	 *         requests and responses.
+	 * @see #getMemoryBudget()
+	 */
+	public boolean sendPacket(Packet p) {
+		return getSender().sendPacket(p);
+	}
+
+	/**
+	 * Sends the given packet like {@link #sendPacket(Packet)}, but returns a future which is completed once the packet was written to the output stream
+	 * (it may still be buffered, see {@link #setFlushPolicy(FlushPolicy)}). If the packet is rejected, can not be encoded or written or the connection is closed before, the future
+	 * fails with the cause. Unlike connection failures, the future tells which packet was affected.
+	 * 
+	 * @param p
+	 *            The packet to send.
+	 * @return A future completed when the packet was written.
+	 * @see DataSender#sendAsync(Packet)
+	 */
+	public CompletableFuture<Void> sendAsync(Packet p) {
+		DataSender sender = this.sender;
+		if (sender == null)
+			return CompletableFuture.failedFuture(new IOException("Connection closed"));
+		return sender.sendAsync(p);
+	}
+
+	/**
+	 * Sends a packet encoded in advance. Useful to send the same packet to many connections without encoding it for each of them.
+	 * 
+	 * @param frame
+	 *            The encoded packet. The caller keeps its reference and has to release it when done.
+	 * @return False if the frame was rejected because the memory budget of this connection is exhausted or the connection is closed.
+	 * @see #broadcast(Packet, Collection)
+	 */
+	public boolean sendFrame(EncodedFrame frame) {
+		if (frame == null)
+			throw new IllegalArgumentException("frame can not be null");
+		DataSender sender = this.sender;
+		if (sender == null)
+			return false;
+		return sender.sendFrame(frame);
+	}
+
+	/**
+	 * Sends a packet to many connections. The packet is encoded only once, all connections write the same shared frame, which is freed after the last
+	 * one wrote it.
+	 * 
+	 * @param packet
+	 *            The packet to send. Must not be changed until all connections sent it.
+	 * @param targets
+	 *            The connections to send the packet to. Closed connections are skipped.
+	 * @return The number of connections the packet was queued on. Connections with an exhausted memory budget reject it (unless it's a default packet).
+	 * @throws IOException
+	 *             If the packet could not be encoded.
+	 */
+	public static int broadcast(Packet packet, Collection<? extends PacketHandler> targets) throws IOException {
+		if (targets == null)
+			throw new IllegalArgumentException("targets can not be null");
+		EncodedFrame frame = EncodedFrame.encode(packet);
+		int queued = 0;
+		try {
+			for (PacketHandler target : targets) {
+				if (target.sendFrame(frame))
+					queued++;
+			}
+		} finally {
+			frame.release(); // The queues hold their own references
+		}
+		return queued;
+	}
+
+	/**
+	 * Same as {@link #request(Packet, long)} with a timeout of {@link #REQUEST_TIMEOUT} ms.
+	 */
+	public CompletableFuture<Packet> request(Packet request) {
+		return request(request, REQUEST_TIMEOUT);
+	}
+
+	/**
+	 * Sends a request to the other side, which answers it with its {@link RequestListener}. Requests don't wait for each other, any number of them can be
+	 * pending at the same time. The response packet has to be registered on this side, the request packet on the other side.<br>
+	 * The future fails with a <code>TimeoutException</code> if no response arrived in time, with an <code>IOException</code> if the remote side answered with
+	 * an error, the request could not be sent or the connection was closed. Callbacks of the future run on the thread receiving the response (or on a
+	 * shared timeout thread if the request timed out), use the <code>...Async()</code> variants for long running work.
+	 * 
+	 * @param request
+	 *            The request packet.
+	 * @param timeout
+	 *            Time (in MS) to wait for the response.
+	 * @return A future completed with the response.
+	 */
+	public CompletableFuture<Packet> request(Packet request, long timeout) {
+		if (request == null)
+			throw new IllegalArgumentException("request can not be null");
+		if (timeout <= 0)
+			throw new IllegalArgumentException("timeout has to be positive");
+		final CompletableFuture<Packet> future = new CompletableFuture<Packet>();
+		if (closed) {
+			future.completeExceptionally(new IOException("Connection closed"));
+			return future;
+		}
+		if (remoteApiVersion != -1 && remoteApiVersion < 3) {
+			future.completeExceptionally(new IOException("The remote side does not support requests (API version " + remoteApiVersion + ")"));
+			return future;
+		}
+		final int callId = nextCallId.incrementAndGet();
+		final PendingRequest pending = new PendingRequest(future);
+		pendingRequests.put(callId, pending);
+		final long timeoutMillis = timeout;
+		pending.timeout = HashedWheelTimer.getShared().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				if (!pendingRequests.remove(callId, pending))
+					return;
+				// Callbacks of the future must not run on the timer
+				TIMEOUT_EXECUTOR.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						future.completeExceptionally(new TimeoutException("No response within " + timeoutMillis + " ms"));
+					}
+				});
+			}
+		}, timeout);
+		sendAsync(new RpcPacket(callId, RpcPacket.TYPE_REQUEST, request)).whenComplete(new BiConsumer<Void, Throwable>() {
+
+			@Override
+			public void accept(Void result, Throwable error) {
+				if (error != null && pendingRequests.remove(callId, pending)) {
+					pending.cancelTimeout();
+					future.completeExceptionally(error);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Called by the default packet listener when a request arrives. Answers it using the request listener.
+	 */
+	void onRequestReceived(RpcPacket rpc) {
+		final int callId = rpc.getCallId();
+		RequestListener listener = requestListener;
+		if (listener == null) {
+			sendRpc(new RpcPacket(callId, "No RequestListener set"));
+			return;
+		}
+		Packet request = getNewPacketInstance(rpc.getPacketId());
+		if (request == null) {
+			sendRpc(new RpcPacket(callId, "Unknown request packet id " + rpc.getPacketId()));
+			return;
+		}
+		CompletableFuture<? extends Packet> response;
+		try {
+			request.decode(rpc.getPayload());
+			response = listener.onRequest(this, request);
+		} catch (Exception e) {
+			sendRpc(new RpcPacket(callId, String.valueOf(e)));
+			return;
+		}
+		if (response == null) {
+			sendRpc(new RpcPacket(callId, "No response"));
+			return;
+		}
+		response.whenComplete(new BiConsumer<Packet, Throwable>() {
+
+			@Override
+			public void accept(Packet result, Throwable error) {
+				if (error != null)
+					sendRpc(new RpcPacket(callId, String.valueOf(error)));
+				else if (result == null)
+					sendRpc(new RpcPacket(callId, "No response"));
+				else
+					sendRpc(new RpcPacket(callId, RpcPacket.TYPE_RESPONSE, result));
+			}
+		});
+	}
+
+	/**
+	 * Called by the default packet listener when a response (or an error) arrives. Completes the pending request, late responses are ignored.
+	 */
+	void onResponseReceived(RpcPacket rpc) {
+		PendingRequest pending = pendingRequests.remove(rpc.getCallId());
+		if (pending == null)
+			return; // Timed out already
+		pending.cancelTimeout();
+		if (rpc.getType() == RpcPacket.TYPE_ERROR) {
+			pending.future.completeExceptionally(new IOException("Remote error: " + rpc.getErrorMessage()));
+			return;
+		}
+		Packet response = getNewPacketInstance(rpc.getPacketId());
+		if (response == null) {
+			pending.future.completeExceptionally(new IOException("Unknown response packet id " + rpc.getPacketId()));
+			return;
+		}
+		try {
+			response.decode(rpc.getPayload());
+		} catch (IOException | BufferUnderflowException e) {
+			pending.future.completeExceptionally(new IOException("Parsing response with id " + rpc.getPacketId() + " failed: " + e));
+			return;
+		}
+		pending.future.complete(response);
+	}
+
+	void joinedGroup(ConnectionGroup group) {
+		groups.add(group);
+	}
+
+	void leftGroup(ConnectionGroup group) {
+		groups.remove(group);
+	}
+
+	/**
+	 * @return The groups this connection is a member of. Closed connections leave all their groups.
+	 */
+	public Set<ConnectionGroup> getGroups() {
+		return Collections.unmodifiableSet(groups);
+	}
+
+	private void sendRpc(RpcPacket packet) {
+		DataSender sender = this.sender;
+		if (sender == null)
+			return; // Closed while the request was processed
+		if (!sender.sendPacket(packet) && packet.getType() == RpcPacket.TYPE_RESPONSE)
+			sender.sendPacket(new RpcPacket(packet.getCallId(), "Memory budget exhausted, response rejected")); // Don't let the caller wait for it
+	}
+
+	private void failPendingRequests() {
+		for (Integer callId : pendingRequests.keySet()) {
+			PendingRequest pending = pendingRequests.remove(callId);
+			if (pending != null) {
+				pending.cancelTimeout();
+				pending.future.completeExceptionally(new IOException("Connection closed"));
+			}
+		}
+	}
+
+	/**
+	 * @return The number of requests waiting for a response.
+	 */
+	public int getPendingRequestCount() {
+		return pendingRequests.size();
+	}
+
+	/**
+	 * Sends a large payload as a sequence of chunks, without keeping it in memory. The data is read from the given stream (on the <code>DataSender</code>
+	 * thread) one chunk at a time, while chunks of concurrent transfers and normal packets are sent in between. The stream is closed when the transfer is
+	 * finished.<br>
+	 * The other side gets notified with {@link TransferListener#onTransferStarted(PacketHandler, IncomingTransfer)} and can start processing the data
+	 * before the last byte arrived.
+	 * 
+	 * @param type
+	 *            Any value describing the transfer to the other side, e.g what kind of file is sent. The meaning is up to the application.
+	 * @param data
+	 *            The payload to send.
+	 * @return The id of the transfer or -1 if it was rejected because the connection is closed, the stream is closed then.
+	 * @see #TRANSFER_CHUNK_SIZE
+	 */
+	public int sendTransfer(short type, InputStream data) {
+		if (data == null)
+			throw new IllegalArgumentException("data can not be null");
+		int transferId = nextTransferId.incrementAndGet();
+		TransferPacket packet = new TransferPacket(transferId, type, data, TRANSFER_CHUNK_SIZE, true);
+		DataSender sender = this.sender;
+		if (sender == null || !sender.sendPacket(packet)) {
+			packet.closeSource(); // Never read, the caller can't close it either
+			return -1;
+		}
+		return transferId;
+	}
+
+	/**
+	 * Opens a logical stream on this connection. Every stream has its own send queue and the streams take turns at sending, so a large packet on one
+	 * stream doesn't hold back the packets of other streams (or the packets sent on this handler). The other side is notified with
+	 * {@link StreamListener#onStreamOpened(PacketHandler, PacketStream)} once the first packet arrives.
+	 * 
+	 * @return The new stream.
+	 */
+	public PacketStream openStream() {
+		PacketStream stream = new PacketStream(this, nextStreamId.incrementAndGet(), true);
+		localStreams.put(stream.getId(), stream);
+		if (closeFinished.get())
+			closeStreams(); // Closed concurrently
+		return stream;
+	}
+
+	/**
+	 * @return Number of streams currently open.
+	 */
+	public int getStreamCount() {
+		return localStreams.size() + remoteStreams.size();
+	}
+
+	void onStreamPacketReceived(StreamPacket packet) {
+		// Streams opened by the other side have their own ids
+		ConcurrentHashMap<Integer, PacketStream> streams = packet.isInitiator() ? remoteStreams : localStreams;
+		PacketStream stream = streams.get(packet.getStreamId());
+		if (stream == null) {
+			if (!packet.isInitiator() || !packet.isOpen())
+				return; // Closed already
+			stream = new PacketStream(this, packet.getStreamId(), false);
+			remoteStreams.put(stream.getId(), stream);
+			StreamListener listener = streamListener;
+			if (listener != null)
+				listener.onStreamOpened(this, stream);
+		}
+		stream.onChunkReceived(packet);
+	}
+
+	/**
+	 * @return Whether a packet was partly received on one of the streams.
+	 */
+	boolean isAssemblingStreams() {
+		for (PacketStream stream : localStreams.values()) {
+			if (stream.isAssembling())
+				return true;
+		}
+		for (PacketStream stream : remoteStreams.values()) {
+			if (stream.isAssembling())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a received frame is a chunk continuing a packet partly received on a stream. Such frames are admitted even if the memory budget is
+	 * exhausted: The bytes of the partly received packet are only released once its last chunk arrives.
+	 * 
+	 * @param frame
+	 *            Buffer containing the frame (id and data, without the length).
+	 * @param offset
+	 *            Position of the frame in the buffer.
+	 * @param length
+	 *            The size of the frame.
+	 */
+	boolean continuesStreamPacket(ByteBuffer frame, int offset, int length) {
+		if (length < 7 || frame.getShort(offset) != IDRegistry.STREAM_PACKET)
+			return false;
+		byte flags = frame.get(offset + 6);
+		if ((flags & StreamPacket.FLAG_CLOSE) != 0)
+			return false;
+		ConcurrentHashMap<Integer, PacketStream> streams = (flags & StreamPacket.FLAG_INITIATOR) != 0 ? remoteStreams : localStreams;
+		PacketStream stream = streams.get(frame.getInt(offset + 2));
+		return stream != null && stream.isAssembling();
+	}
+
+	/**
+	 * Removes a closed stream.
+	 * 
+	 * @param notify
+	 *            Whether to notify the stream listener.
+	 */
+	void onStreamClosed(PacketStream stream, boolean notify) {
+		ConcurrentHashMap<Integer, PacketStream> streams = stream.isLocal() ? localStreams : remoteStreams;
+		if (!streams.remove(stream.getId(), stream))
+			return;
+		StreamListener listener = streamListener;
+		if (notify && listener != null)
+			listener.onStreamClosed(stream);
+	}
+
+	private void closeStreams() {
+		ArrayList<PacketStream> streams = new ArrayList<PacketStream>(localStreams.values());
+		streams.addAll(remoteStreams.values());
+		for (PacketStream stream : streams) {
+			stream.reset();
+			onStreamClosed(stream, true);
+		}
+	}
+
+	/**
+	 * Notifies this instance that the connection has failed. This method notifies the listeners and closes the connection
+	 * 
+	 * @param e
+	 *            An exception describing why the connection has failed.
+	 */
+	public void onConnectionFail(Exception e) {
+		if (closed) // Abort if the connection was already closed (A closed connection can not fail)
+			return;
+		closeListenerNotified = true;
+		close();
+		logger.warning("Connection '" + getConnectionName() + "' failed! " + e);
+		emitClosedEvent(String.valueOf(e), false, true);
+		getDefaultPacketListener().onConnectionFailed(this, e);
+		getListener().onConnectionFailed(this, e);
+		dispose();
+	}
+
+	/**
+	 * Notifies this instance that the connection is closed (or will be closed now) for an external reason.
+	 * 
+	 * @param message
+	 *            Message why the connection was closed.
+	 * @param expected
+	 *            Whether this was expected (like there was a close packet) or not (like when the underlying socket is closed without notification)
+	 */
+	public void onConnectionClosed(String message, boolean expected) {
+		if (closed)
+			return;
+		closeListenerNotified = true;
+		close();
+		emitClosedEvent(message, expected, false);
+		getDefaultPacketListener().onConnectionClosed(this, message, expected);
+		getListener().onConnectionClosed(this, message, expected);
+		dispose();
+	}
+
+	/**
+	 * Same as {@link #onConnectionClosed(String, boolean)}, but without waiting for the queued packets and the ClosePacket to be flushed. The listeners are
+	 * notified once closing finished (on the thread finishing it).
+	 */
+	private void onConnectionClosedAsync(final String message, final boolean expected) {
+		if (closed)
+			return;
+		closeListenerNotified = true;
+		closeAsync(CLOSE_TIMEOUT).thenRun(new Runnable() {
+
+			@Override
+			public void run() {
+				emitClosedEvent(message, expected, false);
+				getDefaultPacketListener().onConnectionClosed(PacketHandler.this, message, expected);
+				getListener().onConnectionClosed(PacketHandler.this, message, expected);
+				dispose();
+			}
+		});
+	}
+
+	/**
+	 * Closes the connection, the I/O streams and notfies the other side that we are closing this connection. Blocks until the packets queued before and the
+	 * ClosePacket are flushed, but at most {@link #CLOSE_TIMEOUT} ms.
+	 * 
+	 * @see #closeAsync()
+	 */
+	public void close() {
+		DataSender sender = this.sender;
+		if (sender != null && sender.isSendingThread() && sender.isRunning()) {
+			closeAsync(CLOSE_TIMEOUT); // Called on the event loop which sends the ClosePacket, waiting would block it
+			return;
+		}
+		CompletableFuture<Boolean> future = closeAsync(CLOSE_TIMEOUT);
+		try {
+			future.get(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			finishClose(false); // The deadline runs on the shared timer, don't depend on it if we are called from there
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			finishClose(false);
+		} catch (ExecutionException e) {
+			; // Never completed exceptionally
+		}
+	}
+
+	/**
+	 * Same as {@link #closeAsync(long)} with a timeout of {@link #CLOSE_TIMEOUT} ms.
+	 */
+	public CompletableFuture<Boolean> closeAsync() {
+		return closeAsync(CLOSE_TIMEOUT);
+	}
+
+	/**
+	 * Starts closing the connection without blocking. Packets queued before are still sent, followed by a ClosePacket. Once it is flushed (or the timeout
+	 * passed), the I/O streams are closed, the listeners are notified and the returned future completes. Calling this method again returns the same
+	 * future.
+	 * 
+	 * @param timeout
+	 *            Time (in MS) to wait for the queued packets and the ClosePacket to be flushed.
+	 * @return A future completed with true if the ClosePacket was flushed, false if the streams were closed before (timeout, broken connection).
+	 */
+	public CompletableFuture<Boolean> closeAsync(long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout can not be negative");
+		synchronized (timerLock) {
+			if (closed)
+				return closeFuture;
+			closed = true;
+		}
+		cancelTimeouts();
+		DataSender sender = this.sender;
+		if (sender == null || sender == Thread.currentThread() || !sender.isRunning() || isSuspended()) {
+			// Nobody is left to send the ClosePacket (the sender itself failed, or there are no streams)
+			finishClose(false);
+			return closeFuture;
+		}
+		sender.sendPacket(new ClosePacket()); // The sender calls finishClose() once it is flushed
+		HashedWheelTimer.Timeout deadline = HashedWheelTimer.getShared().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				if (closeFinished.get())
+					return;
+				// Closing notifies the listeners, don't block the timer thread
+				TIMEOUT_EXECUTOR.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						finishClose(false);
+					}
+				});
+			}
+		}, timeout);
+		synchronized (timerLock) {
+			if (closeFinished.get())
+				deadline.cancel();
+			else
+				closeDeadline = deadline;
+		}
+		return closeFuture;
+	}
+
+	/**
+	 * Closes many connections in parallel, see {@link #closeAsync(long)}. All connections drain their queues at the same time, so this takes about as
+	 * long as the slowest connection instead of the sum of all.
+	 * 
+	 * @param handlers
+	 *            The connections to close.
+	 * @param timeout
+	 *            Time (in MS) each connection waits for its queued packets to be flushed.
+	 * @return A future completed when all connections are closed.
+	 */
+	public static CompletableFuture<Void> closeAll(Collection<? extends PacketHandler> handlers, long timeout) {
+		if (handlers == null)
+			throw new IllegalArgumentException("handlers can not be null");
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(handlers.size());
+		for (PacketHandler handler : handlers) {
+			futures.add(handler.closeAsync(timeout));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+	/**
+	 * Same as {@link #closeAll(Collection, long)} with a timeout of {@link #CLOSE_TIMEOUT} ms.
+	 */
+	public static CompletableFuture<Void> closeAll(Collection<? extends PacketHandler> handlers) {
+		return closeAll(handlers, CLOSE_TIMEOUT);
+	}
+
+	/**
+	 * Closes the streams and stops the threads of a closing connection. Called by the sender once the ClosePacket is flushed, or when the close timeout
+	 * passed. Only the first call does something.
+	 * 
+	 * @param flushed
+	 *            Whether the ClosePacket was flushed.
+	 */
+	void finishClose(boolean flushed) {
+		if (!closeFinished.compareAndSet(false, true))
+			return;
+		for (ConnectionGroup group : groups) {
+			group.remove(this);
+		}
+		synchronized (timerLock) {
+			if (closeDeadline != null)
+				closeDeadline.cancel();
+			closeDeadline = null;
+		}
+		// Fields may already be unset if onConnectionClosed() gave up waiting and disposed this connection concurrently
+		DataSender sender = this.sender;
+		DataReader reader = this.reader;
+		InputStream in = this.in;
+		OutputStream out = this.out;
+		LinkedList<Process> processingQueue = this.processingQueue;
+		if (sender != null && sender != Thread.currentThread()) // The sender stops by itself after calling this
+			sender.interrupt();
+		if (reader != null)
+			reader.interrupt();
+		try {
+			if (in != null)
+				in.close();
+			if (out != null)
+				out.close();
+		} catch (IOException e) {
+			;
+		}
+		if (processingQueue != null) {
+			synchronized (processingQueue) { // <--- Request ownership of the object's monitor to call notify()
+				processingQueue.notify(); // Wake up an waiting external thread (if there is one) to update itself.
+			}
+		}
+
+		if (!closeListenerNotified) {
+			// Someone is calling close() directly so we assume that the connection was closed expectly
+			emitClosedEvent("Connection closed locally", true, false);
+			getDefaultPacketListener().onConnectionClosed(this, "Connection closed locally", true);
+			getListener().onConnectionClosed(this, "Connection closed locally", true);
+			dispose();
+		}
+		closeFuture.complete(flushed);
+	}
+
+	private void emitClosedEvent(String reason, boolean expected, boolean failed) {
+		ConnectionClosedEvent event = new ConnectionClosedEvent();
+		if (event.shouldCommit()) {
+			event.set(getConnectionName(), reason, expected, failed);
+			event.commit();
+		}
+	}
+
+	private void dispose() {
+		closeStreams();
+		in = null;
+		out = null;
+		sender = null;
+		reader = null;
+		listener = null;
+		defaultPacketListener = null;
+		connectionName = null;
+		failPendingRequests();
+		if (session != null)
+			session.close();
+		memoryBudget.close();
+		MetricsRegistry.unregister(metrics);
+		packetMap.clear();
+		packetMap = null;
+		codecMap.clear();
+		codecMap = null;
+		criticalMap.clear();
+		criticalMap = null;
+		processingQueue.clear();
+		processingQueue = null;
+	}
+
+	/**
+	 * @return The name of this connection.
+	 */
+	public String getConnectionName() {
+		return connectionName;
+	}
+
+	public void setConnectionName(String connectionName) {
+		if (connectionName == null)
+			connectionName = "";
+		this.connectionName = connectionName;
+	}
+
+	/**
+	 * @return The reader which is reading data from the InputStream. <code>null</code> for connections of a {@link PacketServer}, they are read by an event
+	 *         loop.
+	 */
+	public DataReader getReader() {
+		return reader;
+	}
+
+	/**
+	 * @return The sender which is sending data to the OutputStream.
+	 */
+	public DataSender getSender() {
+		return sender;
+	}
+
+	/**
+	 * @return The application/user listener.
+	 */
+	public PacketListener getListener() {
+		return listener;
+	}
+
+	public void setListener(PacketListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener cannot be null at this point. A null listener is only allowed in the constructor.");
+		}
+		this.listener = listener;
+	}
+
+	/**
+	 * @return The listener used by the PacketAPI for default packets.
+	 */
+	public DefaultPacketListener getDefaultPacketListener() {
+		return defaultPacketListener;
+	}
+
+	protected void setDefaultPacketListener(DefaultPacketListener defaultPacketListener) {
+		if (defaultPacketListener == null) {
+			throw new IllegalArgumentException("DefaultPacketListener cannot be null.");
+		}
+		this.defaultPacketListener = defaultPacketListener;
+	}
+
+	/**
+	 * Called when a new packet was received.
+	 * 
+	 * @param packet
+	 *            The packet just received.
+	 */
+	public void onPacketReceived(Packet packet) {
+		onPacketReceived(packet, 0);
+	}
+
+	/**
+	 * Called when a new packet was received.
+	 * 
+	 * @param packet
+	 *            The packet just received.
+	 * @param reservedBytes
+	 *            Bytes reserved in the memory budget for this packet. They are released after the packet was processed.
+	 */
+	public void onPacketReceived(Packet packet, int reservedBytes) {
+		if (packet instanceof CreditPacket) {
+			// Handled right away, sending must not wait for the processing of other packets
+			releaseReceived(packet.getId(), reservedBytes);
+			DataSender sender = this.sender;
+			if (sender != null)
+				sender.onCreditReceived(((CreditPacket) packet).getConsumed());
+			return;
+		}
+		if (packet instanceof SessionPacket) {
+			// Handled right away, resuming hands over the streams this thread is reading from
+			releaseReceived(packet.getId(), reservedBytes);
+			onSessionPacket((SessionPacket) packet);
+			return;
+		}
+		if (!autoProcessPackets) {
+			// Processing is done by the external thread
+			Process process = new Process(ActionType.RECEIVED, packet.getId(), packet, this);
+			process.setReservedBytes(reservedBytes);
+			addToQueue(process);
+		} else {
+			// Directly pass the packet to the listener
+			try {
+				processPacket(packet);
+			} finally {
+				releaseReceived(packet.getId(), reservedBytes);
+			}
+		}
+	}
+
+	/**
+	 * Releases the bytes reserved for a received packet once it was processed (or dropped) and grants the other side new credit if enough bytes were
+	 * processed.
+	 */
+	void releaseReceived(short id, int reservedBytes) {
+		memoryBudget.release(reservedBytes);
+		if (reservedBytes > 0 && DataSender.isFlowControlled(id)) {
+			consumedBytes.addAndGet(reservedBytes + 4); // Frame size, like the other side counts
+			grantCredit();
+		}
+	}
+
+	private void grantCredit() {
+		int window = receiveWindow;
+		if (window == 0 || remoteApiVersion < 5)
+			return; // The other side doesn't wait for credit
+		long consumed = consumedBytes.get();
+		long granted = grantedBytes.get();
+		// Grant in steps, not for every packet. The other side stops after a whole window, so a quarter always arrives in time.
+		if (consumed - granted < Math.max(1, window / 4) || !grantedBytes.compareAndSet(granted, consumed))
+			return;
+		DataSender sender = this.sender;
+		if (sender != null)
+			sender.sendPacket(new CreditPacket(consumed));
+	}
+
+	/**
+	 * Called when the handshake of the other side arrived. Enables flow control for the packets sent to the other side.
+	 * 
+	 * @param window
+	 *            The receive window of the other side, 0 if it doesn't grant credit.
+	 */
+	void onRemoteReceiveWindow(int window) {
+		DataSender sender = this.sender;
+		if (sender != null)
+			sender.setRemoteWindow(window);
+		grantCredit(); // Packets may have been processed before we knew that the other side waits for credit
+	}
+
+	/**
+	 * Sends the credit granted so far again, the last CreditPacket may have been lost with the streams of a resumed session.
+	 */
+	void resendCredit() {
+		if (receiveWindow == 0 || remoteApiVersion < 5)
+			return;
+		long consumed = consumedBytes.get();
+		grantedBytes.set(consumed);
+		DataSender sender = this.sender;
+		if (sender != null)
+			sender.sendPacket(new CreditPacket(consumed));
+	}
+
+	private void onSessionPacket(SessionPacket packet) {
+		switch (packet.getType()) {
+		case SessionPacket.TYPE_ACK:
+			if (session != null)
+				session.acknowledge(packet.getReceived());
+			break;
+		case SessionPacket.TYPE_RESUME:
+			onResumeRequested(packet);
+			break;
+		case SessionPacket.TYPE_RESUMED:
+		case SessionPacket.TYPE_REJECTED:
+			if (session != null)
+				session.onResumeAnswered(packet);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Called when the other side asks to resume a session on the streams of this connection. If this JVM has a connection with the session, the streams
+	 * are handed over to it and this connection is closed (with the message {@link #RESUMED_MESSAGE}).
+	 */
+	private void onResumeRequested(SessionPacket packet) {
+		PacketHandler target = Session.find(packet.getToken());
+		DataSender sender = this.sender;
+		if (target == null || target == this || session == null || sender == null || !target.session.canAccept(packet.getReceived())) {
+			if (sender != null)
+				sender.sendPacket(new SessionPacket(SessionPacket.TYPE_REJECTED, 0, 0));
+			return;
+		}
+		// Nothing may be written to the streams anymore, the resumed connection writes its answer first
+		sender.interrupt();
+		try {
+			sender.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (sender.isAlive()) {
+			onConnectionFail(new IOException("Sender did not stop, streams can not be handed over to a resumed session"));
+			return;
+		}
+		InputStream in = this.in;
+		OutputStream out = this.out;
+		this.in = null; // Not closed by this connection anymore, stops the reader after this packet
+		this.out = null;
+		if (!target.session.accept(in, out, packet.getReceived())) {
+			try {
+				in.close();
+				out.close();
+			} catch (IOException e) {
+				;
+			}
+		}
+		onConnectionClosed(RESUMED_MESSAGE, true);
+	}
+
+	public void onUnknownPacketReceived(short id) {
+		if (!autoProcessPackets) {
+			Process process = new Process(ActionType.UNKN_RECEIVED, id, null, this);
+			addToQueue(process);
+		} else {
+			processUnknownPacket(id);
+		}
+	}
+
+	private void processUnknownPacket(short id) {
+		getDefaultPacketListener().onUnknownPacketReceived(this, id);
+		getListener().onUnknownPacketReceived(this, id);
+	}
+
+	private void processPacket(Packet packet) {
+		LatencyTracker latency = latencyTracker;
+		long start = latency != null ? System.nanoTime() : 0;
+		if (packet instanceof DefaultPacket) {
+			if (notifyDefaults) {
+				getListener().onPacketReceived(this, packet);
+			}
+			getDefaultPacketListener().onPacketReceived(this, packet);
+		} else {
+			getListener().onPacketReceived(this, packet);
+		}
+		if (latency != null)
+			latency.record(Stage.DISPATCH, System.nanoTime() - start);
+	}
+
+	/**
+	 * 
+	 * @return Whether the connection was closed (using the close() function of this class) or not.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private void addToQueue(Process process) {
+		synchronized (processingQueue) {
+			processingQueue.add(process);
+			processingQueue.notify();
+		}
+	}
+
+	/**
+	 * Sends a handshake to exchange version numbers. You have to call this method if you want to use state attributes like isVersionApproved().
+	 */
+	public void sendHandshake() {
+		sendHandshake(HANDSHAKE_ID_REQUEST);
+	}
+
+	/**
+	 * Sends a handshake using the given id as the handshake id.
+	 * 
+	 * @param id
+	 *            The handshake id.
+	 */
+	public void sendHandshake(int id) {
+		HandshakePacket handshake = new HandshakePacket();
+		handshake.setHandshakeID(id);
+		handshake.setProtocolVersion(PROTOCOL_VERSION);
+		handshake.setApiVersion(API_VERSION);
+		handshake.setReceiveWindow(receiveWindow);
+		if (session != null)
+			handshake.setSessionToken(session.getToken());
+		sendPacket(handshake);
+		setHandshakeSend(true);
+	}
+
+	/**
+	 * Returns all packets that have not been processed yet. Returns <code>null</code> if {@link #automaticPacketProcessing()} is true. <br>
+	 * Calling this method will first pass the cached packets to the listeners before it returns them. <br>
+	 * If {@link #automaticPacketProcessing()} is false, it is recommended to call this method frequently otherwise no packets will get processed.
+	 * 
+	 * @return All packets in the queue or an empty list. Only <code>null</code> if packets are automatically processed and the queue is empty.
+	 * @see #automaticPacketProcessing()
+	 */
+	public List<Packet> getCachedPackets() {
+		synchronized (processingQueue) {
+			if (automaticPacketProcessing() && processingQueue.isEmpty()) // There could be packets left in the queue even if automatic processing is on
+				return null;
+
+			ArrayList<Packet> packets = new ArrayList<Packet>();
+
+			for (Process ppacket : processingQueue) {
+
+				switch (ppacket.getType()) {
+				case RECEIVED:
+					try {
+						processPacket(ppacket.getPacket());
+					} finally {
+						releaseReceived(ppacket.getPacketID(), ppacket.getReservedBytes());
+					}
+					packets.add(ppacket.getPacket());
+					break;
+				case UNKN_RECEIVED:
+					processUnknownPacket(ppacket.getPacketID());
+					break;
+				default:
+					logger.warning("Unknown packet processor type: " + ppacket.getType());
+					break;
+				}
+			}
+
+			processingQueue.clear();
+			return packets;
+		}
+	}
+
+	/**
+	 * @return Whether automatic packet processing is on. If true, packets will be passed directly to the listener after receiving. This is done on an async thread (called DataReader). <br>
+	 *         In some cases you may want to handle to the incoming packets on your (main) thread. To achieve this, set automatic packet processing to false and call {@link #getCachedPackets()} frequently to get your packets processed on your thread. <br>
+	 *         Default is true.
+	 */
+	public boolean automaticPacketProcessing() {
+		return autoProcessPackets;
+	}
+
+	public void setAutomaticPacketProcessing(boolean on) {
+		autoProcessPackets = on;
+	}
+
+	/**
+	 * @return Whether the protocol version is approved. The protocol version is approved when both peers have the same protocol version.<br>
+	 *         To request a version check, simply send a handshake packet by calling <code>sendHandshake()</code>. After receiving the response from the other side and comparing the version numbers, the version will be approved.
+	 */
+	public boolean isVersionApproved() {
+		return versionApproved;
+	}
+
+	public void setVersionApproved(boolean versionApproved) {
+		this.versionApproved = versionApproved;
+	}
+
+	/**
+	 * @return Whether this side has send a handshake packet.<br>
+	 *         Note: Handshake packets are not send automatically, you have to call <code>sendHandshake()</code>.
+	 */
+	public boolean isHandshakeSend() {
+		return handshakeSend;
+	}
+
+	public void setHandshakeSend(boolean handshakeSend) {
+		this.handshakeSend = handshakeSend;
+	}
+
+	/**
+	 * @return The protocol version of the other peer or -1 if the version used by the other peer is unknown (e.g no handshake was send)
+	 */
+	public int getRemoteProtocolVersion() {
+		return remoteProtocolVersion;
+	}
+
+	public void setRemoteProtocolVersion(int remoteProtocolVersion) {
+		this.remoteProtocolVersion = remoteProtocolVersion;
+	}
+
+	/**
+	 * @return The API version of the other peer ({@link #API_VERSION}) or -1 if unknown (e.g no handshake was send). Peers older than version 2 report 1.
+	 */
+	public int getRemoteApiVersion() {
+		return remoteApiVersion;
+	}
+
+	public void setRemoteApiVersion(int remoteApiVersion) {
+		this.remoteApiVersion = remoteApiVersion;
+	}
+
+	/**
+	 * @return The round trip time and clock offset estimates of this connection. Updated whenever a response to a timestamped keep-alive arrives.
+	 */
+	public RttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+
+	/**
+	 * Sends a keep-alive packet. The other side responds to it. If the other side supports it, the packet is timestamped and the response is used to measure the
+	 * round trip time.
+	 * 
+	 * @see #getRttEstimator()
+	 */
+	public void sendKeepAlive() {
+		KeepAlivePacket keepAlive = new KeepAlivePacket();
+		if (remoteApiVersion >= 2) {
+			keepAlive.setTimestamped(true);
+			keepAlive.setSequence(nextKeepAliveSequence.incrementAndGet());
+			keepAlive.setOriginTime(System.nanoTime());
+		}
+		sendPacket(keepAlive);
+	}
+
+	/**
+	 * @return The timestamp when the last packet was received (by the DataReader, it may not be processed yet). 0 if no packet was received yet.
+	 */
+	public long getLastPacketReceived() {
+		return lastPacketReceived;
+	}
+
+	public void setLastPacketReceived(long lastPacketReceived) {
+		this.lastPacketReceived = lastPacketReceived;
+	}
+
+	/**
+	 * @return The timestamp when the last packet was send. 0 if no packet was send yet.
+	 */
+	public long getLastPacketSend() {
+		return lastPacketSend;
+	}
+
+	public void setLastPacketSend(long lastPacketSend) {
+		this.lastPacketSend = lastPacketSend;
+	}
+
+	/**
+	 * @return Whether the library automatically sends packets to keep the connection alive. Default is false.
+	 */
+	public boolean autoSendKeepAlive() {
+		return autoSendKeepAlive;
+	}
+
+	public void setAutoSendKeepAlive(boolean autoSendKeepAlive) {
+		this.autoSendKeepAlive = autoSendKeepAlive;
+		synchronized (timerLock) {
+			if (keepAliveTimeout != null) {
+				keepAliveTimeout.cancel();
+				keepAliveTimeout = null;
+			}
+		}
+		if (autoSendKeepAlive)
+			scheduleKeepAlive(0);
+	}
+
+	/**
+	 * @return Timeout (in MS) after which the connection is closed if no data was received. 0 if disabled.
+	 * @see #READ_TIMEOUT
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Sets the read timeout. If no data is received for this time, the connection is closed with the message {@link #IDLE_TIMEOUT_MESSAGE}. Should be larger
+	 * than the {@link #DATA_TIMEOUT} and the other side should send keep-alives, otherwise idle (but healthy) connections are closed as well.
+	 * 
+	 * @param readTimeout
+	 *            The timeout in MS, 0 to disable the timeout.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		if (readTimeout < 0)
+			throw new IllegalArgumentException("readTimeout can not be negative");
+		this.readTimeout = readTimeout;
+		synchronized (timerLock) {
+			if (readTimeoutTimeout != null) {
+				readTimeoutTimeout.cancel();
+				readTimeoutTimeout = null;
+			}
+		}
+		scheduleReadTimeout(0); // Checks the elapsed time and schedules the remaining time
+	}
+
+	// Timeouts are not cancelled when data is send or received. The tasks check the timestamps when they fire and schedule themselves again for the
+	// remaining time, so traffic only costs a volatile write.
+
+	private void scheduleKeepAlive(long delay) {
+		synchronized (timerLock) {
+			if (closed || !autoSendKeepAlive)
+				return;
+			keepAliveTimeout = HashedWheelTimer.getShared().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					checkKeepAlive();
+				}
+			}, delay);
+		}
+	}
+
+	private void checkKeepAlive() {
+		DataSender sender = this.sender;
+		if (closed || sender == null || !autoSendKeepAlive)
+			return;
+		long now = System.currentTimeMillis();
+		if (shouldSendKeepAlive()) {
+			sendKeepAlive();
+			scheduleKeepAlive(DATA_TIMEOUT / 2);
+		} else {
+			long due = Math.max(getLastPacketReceived() + DATA_TIMEOUT, getLastPacketSend() + (DATA_TIMEOUT / 2));
+			scheduleKeepAlive(due - now);
+		}
+	}
+
+	private void scheduleReadTimeout(long delay) {
+		synchronized (timerLock) {
+			if (closed || readTimeout <= 0)
+				return;
+			readTimeoutTimeout = HashedWheelTimer.getShared().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					checkReadTimeout();
+				}
+			}, delay);
+		}
+	}
+
+	private void checkReadTimeout() {
+		int timeout = readTimeout;
+		if (closed || timeout <= 0)
+			return;
+		long remaining = Math.max(getLastPacketReceived(), createdAt) + timeout - System.currentTimeMillis();
+		if (isSuspended())
+			remaining = timeout; // Nothing can be received, the resume timeout applies
+		if (remaining > 0) {
+			scheduleReadTimeout(remaining);
+			return;
+		}
+		// Closing notifies the listeners, don't block the timer thread
+		TIMEOUT_EXECUTOR.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				onConnectionClosedAsync(IDLE_TIMEOUT_MESSAGE, false);
+			}
+		});
+	}
+
+	private static Executor createTimeoutExecutor() {
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "PacketAPI Timeouts - " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private void cancelTimeouts() {
+		synchronized (timerLock) {
+			if (keepAliveTimeout != null)
+				keepAliveTimeout.cancel();
+			if (readTimeoutTimeout != null)
+				readTimeoutTimeout.cancel();
+			keepAliveTimeout = null;
+			readTimeoutTimeout = null;
+		}
+	}
+
+	/**
+	 * @return If no data is send or received by the application for some time, this value returns true.
+	 * @see #DATA_TIMEOUT
+	 */
+	public boolean shouldSendKeepAlive() {
+		return (System.currentTimeMillis() - getLastPacketReceived()) >= DATA_TIMEOUT && (System.currentTimeMillis() - getLastPacketSend()) >= (DATA_TIMEOUT / 2);
+	}
+
+	/**
+	 * Sets whether this library calls <code>PacketListener.onPacketReceived()</code> when default packets are received.
+	 * 
+	 * @param notify
+	 *            Whether to notify your PacketListener when we receive default packets. Normally, only the DefaultPacketListener gets notified.
+	 */
+	public void notifyOnDefaultPackets(boolean notify) {
+		this.notifyDefaults = notify;
+	}
+
+	/**
+	 * 
+	 * @return If the OutputStream is immediatly flushed after a packet has been send. This is usually not needed, but COULD improve ping times. Default is false
+	 * @see #getFlushPolicy()
+	 */
+	public boolean isInstantFlush() {
+		return flushPolicy == FlushPolicy.always();
+	}
+
+	/**
+	 * Shortcut for {@link #setFlushPolicy(FlushPolicy)}: <code>true</code> sets {@link FlushPolicy#always()}, <code>false</code> restores the default
+	 * ({@link #FLUSH_POLICY}).
+	 */
+	public void setInstantFlush(boolean instantFlush) {
+		setFlushPolicy(instantFlush ? FlushPolicy.always() : FLUSH_POLICY);
+	}
+
+	/**
+	 * @return The policy deciding when written packets are flushed.
+	 * @see #FLUSH_POLICY
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Sets the policy deciding when written packets are flushed. Packets are written into a buffer of the sender
+	 * ({@link DataSender#SEND_BUFFER_SIZE}), a flush hands them to the output stream. With TCP, disable Nagle's algorithm
+	 * (<code>socket.setTcpNoDelay(true)</code>) if the policy already batches packets, otherwise the operating system may delay the flushed data once
+	 * more. Connections of a {@link PacketServer} ignore the policy, their event loop writes whenever the send queue is empty or enough bytes are
+	 * buffered.
+	 * 
+	 * @param flushPolicy
+	 *            The new policy, see the factories of {@link FlushPolicy}.
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		if (flushPolicy == null)
+			throw new IllegalArgumentException("flushPolicy can not be null");
+		this.flushPolicy = flushPolicy;
+		DataSender sender = getSender();
+		if (sender != null)
+			sender.onPacketQueued(); // Wake up, a pending flush may be due now
+	}
+
+	/**
+	 * @return The maximum size of a single received packet (length of id and data) in bytes. Receiving a larger packet terminates the connection.
+	 * @see #MAX_PACKET_SIZE
+	 */
+	public int getMaxPacketSize() {
+		return maxPacketSize;
+	}
+
+	public void setMaxPacketSize(int maxPacketSize) {
+		if (maxPacketSize < 2)
+			throw new IllegalArgumentException("maxPacketSize must be at least 2 (the size of the packet id)");
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	/**
+	 * @return The counters of this connection (packets and bytes send/received, queued packets...). They stay available after the connection was closed.
+	 * @see MetricsRegistry
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return The latency histograms of this connection, <code>null</code> if latency tracking is disabled.
+	 * @see #setLatencyTracking(boolean)
+	 */
+	public LatencyTracker getLatencyTracker() {
+		return latencyTracker;
+	}
+
+	/**
+	 * Enables or disables latency tracking. If enabled, the time packets spend in each stage (waiting in the sending queue, encoding, writing and processing by
+	 * the listeners) is recorded into histograms. Each connection uses about 16 KiB for its histograms. If disabled, tracking costs nothing but a null check.
+	 * Enabling it again starts with empty histograms.
+	 * 
+	 * @see #getLatencyTracker()
+	 * @see #LATENCY_TRACKING
+	 */
+	public void setLatencyTracking(boolean enabled) {
+		LatencyTracker tracker = enabled ? (latencyTracker != null ? latencyTracker : new LatencyTracker()) : null;
+		latencyTracker = tracker;
+		DataSender sender = this.sender;
+		if (sender != null)
+			sender.latency = tracker;
+	}
+
+	/**
+	 * @return The capture recording the frames of this connection, <code>null</code> if none is set.
+	 */
+	public PacketCapture getCapture() {
+		return capture;
+	}
+
+	/**
+	 * Records all frames sent and received from now on into the given capture, until it is closed or unset. The capture is not closed together with this
+	 * connection. If unset, capturing costs nothing but a null check.
+	 * 
+	 * @param capture
+	 *            The capture to append to, <code>null</code> to stop capturing.
+	 * @see PacketCapture
+	 */
+	public void setCapture(PacketCapture capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * @return The memory budget of this connection. It limits the memory used by received packets waiting to be processed, buffered transfer chunks and
+	 *         queued packets. The budget is a child of {@link MemoryBudget#GLOBAL}. Use it to change the limit or to monitor the current usage.
+	 */
+	public MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @return The listener notified about incoming transfers or <code>null</code> if incoming transfers are discarded.
+	 */
+	public TransferListener getTransferListener() {
+		return transferListener;
+	}
+
+	public void setTransferListener(TransferListener transferListener) {
+		this.transferListener = transferListener;
+	}
+
+	/**
+	 * @return The listener notified about streams or <code>null</code> if packets received on streams are passed to the normal listener.
+	 */
+	public StreamListener getStreamListener() {
+		return streamListener;
+	}
+
+	public void setStreamListener(StreamListener streamListener) {
+		this.streamListener = streamListener;
+	}
+
+	/**
+	 * @return The receive window of this connection, see {@link #RECEIVE_WINDOW}.
+	 */
+	public int getReceiveWindow() {
+		return receiveWindow;
+	}
+
+	/**
+	 * Sets the receive window of this connection. It is sent to the other side with the handshake, so it has to be set before the handshake is sent (or
+	 * answered).
+	 * 
+	 * @param receiveWindow
+	 *            Bytes the other side may send ahead of the packets processed here, 0 to disable flow control.
+	 * @see #RECEIVE_WINDOW
+	 */
+	public void setReceiveWindow(int receiveWindow) {
+		if (receiveWindow < 0)
+			throw new IllegalArgumentException("receiveWindow can not be negative");
+		this.receiveWindow = receiveWindow;
+	}
+
+	/**
+	 * @return The rate limit of all packets received on this connection or <code>null</code> if they are not limited.
+	 */
+	public RateLimiter getIngressLimit() {
+		return ingressLimits.get();
+	}
+
+	/**
+	 * Limits the rate of the packets received on this connection. Frames exceeding the limit are handled according to the policy of the limiter before
+	 * they are decoded: Reading is delayed (which slows the other side down), non critical packets are dropped or the connection is closed with the message
+	 * {@link #RATE_LIMIT_MESSAGE}. Default packets keeping the connection alive are never limited.
+	 * 
+	 * @param limit
+	 *            The limit or <code>null</code> to remove it. Can be shared by many connections to limit them together.
+	 */
+	public void setIngressLimit(RateLimiter limit) {
+		ingressLimits.set(limit);
+	}
+
+	/**
+	 * @return The rate limit of the received packets with the given id or <code>null</code> if they are not limited (apart from the limit of all packets).
+	 */
+	public RateLimiter getIngressLimit(short id) {
+		return ingressLimits.get(id);
+	}
+
+	/**
+	 * Limits the rate of the received packets with the given id. They have to pass this limit and the limit of all packets ({@link #setIngressLimit(RateLimiter)}).
+	 * 
+	 * @param limit
+	 *            The limit or <code>null</code> to remove it.
+	 */
+	public void setIngressLimit(short id, RateLimiter limit) {
+		ingressLimits.set(id, limit);
+	}
+
+	/**
+	 * @return The rate limit of all packets sent on this connection or <code>null</code> if they are not limited.
+	 */
+	public RateLimiter getEgressLimit() {
+		return egressLimits.get();
+	}
+
+	/**
+	 * Limits the rate of the packets sent on this connection. Packets exceeding the limit wait in the send queue, are dropped (if they are not critical,
+	 * their futures fail) or the connection is closed with the message {@link #RATE_LIMIT_MESSAGE}, according to the policy of the limiter. Default packets
+	 * keeping the connection alive are never limited.
+	 * 
+	 * @param limit
+	 *            The limit or <code>null</code> to remove it. Can be shared by many connections to limit them together.
+	 */
+	public void setEgressLimit(RateLimiter limit) {
+		egressLimits.set(limit);
+		DataSender sender = this.sender;
+		if (sender != null)
+			sender.onPacketQueued(); // Wake up, delayed packets may be sendable now
+	}
+
+	/**
+	 * @return The rate limit of the sent packets with the given id or <code>null</code> if they are not limited (apart from the limit of all packets).
+	 */
+	public RateLimiter getEgressLimit(short id) {
+		return egressLimits.get(id);
+	}
+
+	/**
+	 * Limits the rate of the sent packets with the given id. They have to pass this limit and the limit of all packets ({@link #setEgressLimit(RateLimiter)}).
+	 * 
+	 * @param limit
+	 *            The limit or <code>null</code> to remove it.
+	 */
+	public void setEgressLimit(short id, RateLimiter limit) {
+		egressLimits.set(id, limit);
+		DataSender sender = this.sender;
+		if (sender != null)
+			sender.onPacketQueued();
+	}
+
+	RateLimits getIngressLimits() {
+		return ingressLimits;
+	}
+
+	RateLimits getEgressLimits() {
+		return egressLimits;
+	}
+
+	/**
+	 * Makes the session of this connection resumable (or not). If the streams of a resumable session fail, the connection is not closed but suspended: It
+	 * waits (at most {@link #RESUME_TIMEOUT} ms) until it is resumed on new streams with {@link #resume(InputStream, OutputStream)}, packets sent in the
+	 * meantime are queued. Both sides keep the frames they sent until the other side acknowledged them (see {@link #RETRANSMIT_BUFFER}), frames lost
+	 * with the old streams are sent again.<br>
+	 * A session token is exchanged in the handshake, so this has to be set before the handshake is sent (or answered), see {@link #RESUMABLE}. Both sides
+	 * need API version 6 and have to enable it. Only connections created from streams can be resumed.
+	 * 
+	 * @throws IllegalStateException
+	 *             If this connection was not created from streams.
+	 */
+	public void setResumable(boolean resumable) {
+		if (session == null)
+			throw new IllegalStateException("Only connections created from streams can be resumed");
+		session.setResumable(resumable);
+	}
+
+	/**
+	 * @return Whether the session of this connection can be resumed. False if the other side answered the handshake without a session token.
+	 * @see #setResumable(boolean)
+	 */
+	public boolean isResumable() {
+		return session != null && session.isResumable();
+	}
+
+	/**
+	 * @return Whether the streams of this connection failed and it waits to be resumed.
+	 */
+	public boolean isSuspended() {
+		return session != null && session.isSuspended();
+	}
+
+	/**
+	 * Continues a resumable session on new streams connected to the other side (usually after the old streams failed, see {@link SessionListener}). The
+	 * other side hands the streams over to its connection with this session and both sides send the frames the other side missed again. Packets of the
+	 * other side are only received once it accepted, if it rejects the request (it doesn't know this session anymore), this connection fails.<br>
+	 * On the other side, the streams can be used to create a new PacketHandler as usual, it hands them over when it receives the request and closes itself.
+	 * 
+	 * @param in
+	 *            The new InputStream.
+	 * @param out
+	 *            The new OutputStream.
+	 * @throws IllegalStateException
+	 *             If there is no session to resume (the handshake was not exchanged or a side is not resumable) or the connection is closed.
+	 */
+	public void resume(InputStream in, OutputStream out) {
+		if (in == null || out == null)
+			throw new IllegalArgumentException("InputStream or OutputStream can not be null");
+		if (session == null)
+			throw new IllegalStateException("Only connections created from streams can be resumed");
+		session.resume(in, out);
+	}
+
+	/**
+	 * @return The listener notified when the session is suspended or resumed, <code>null</code> if none is set.
+	 */
+	public SessionListener getSessionListener() {
+		return sessionListener;
+	}
+
+	public void setSessionListener(SessionListener sessionListener) {
+		this.sessionListener = sessionListener;
+	}
+
+	Session getSession() {
+		return session;
+	}
+
+	/**
+	 * Called when the handshake of the other side arrived.
+	 * 
+	 * @param token
+	 *            The session token of the other side, 0 if its session can't be resumed.
+	 */
+	void onRemoteSessionToken(long token) {
+		if (session != null)
+			session.onRemoteToken(token);
+	}
+
+	/**
+	 * Counts a frame read by the reader.
+	 * 
+	 * @param stream
+	 *            The stream the frame was read from.
+	 * @param data
+	 *            Id and data of the frame.
+	 * @return Whether to dispatch the frame.
+	 */
+	boolean onFrameReceived(InputStream stream, byte[] data) {
+		if (session == null)
+			return true;
+		return session.onFrameReceived(stream, (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF)), data.length);
+	}
+
+	/**
+	 * Called when reading from or writing to one of the streams of this connection failed.
+	 * 
+	 * @return Whether the connection waits to be resumed on new streams. If false, the failure closes the connection.
+	 */
+	boolean onStreamFailed(Object stream, IOException e) {
+		return session != null && session.onStreamFailed(stream, e);
+	}
+
+	/**
+	 * Starts a new reader reading from the current InputStream, after it was replaced by resuming.
+	 */
+	void startReader() {
+		DataReader old = reader;
+		if (old != null)
+			old.interrupt();
+		reader = new DataReader(this);
+	}
+
+	/**
+	 * @return The listener answering requests of the other side or <code>null</code> if requests are answered with an error.
+	 */
+	public RequestListener getRequestListener() {
+		return requestListener;
+	}
+
+	public void setRequestListener(RequestListener requestListener) {
+		this.requestListener = requestListener;
+	}
+
+	/**
+	 * Shuts down this PacketHandler instance silently without touching the underlying streams or sockets.
+	 */
+	public void shutdown() {
+		closed = true;
+		if (session != null)
+			session.close();
+		if (getReader() != null)
+			getReader().interrupt();
+		getSender().interrupt();
+	}
+
+	public void setSender(DataSender s) throws InterruptedException {
+		if (s == null)
+			throw new IllegalArgumentException("DataSender can not be null");
+		getSender().interrupt();
+		getSender().join();
+		this.sender = s;
+	}
+
+	public void setReader(DataReader s) throws InterruptedException {
+		if (s == null)
+			throw new IllegalArgumentException("DataReader can not be null");
+		if (getReader() != null) {
+			getReader().interrupt();
+			getReader().join();
+		}
+		this.reader = s;
+	}
+
+	private static final class PendingRequest {
+
+		final CompletableFuture<Packet> future;
+		volatile HashedWheelTimer.Timeout timeout;
+
+		PendingRequest(CompletableFuture<Packet> future) {
+			this.future = future;
+		}
+
+		void cancelTimeout() {
+			HashedWheelTimer.Timeout timeout = this.timeout;
+			if (timeout != null)
+				timeout.cancel();
+		}
+	}
+
+}
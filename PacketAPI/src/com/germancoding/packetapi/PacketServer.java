@@ -0,0 +1,496 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A TCP server accepting connections on a {@link ServerSocketChannel}. Instead of two threads per connection, the accepted connections are spread over a
+ * fixed number of event loops, each serving its connections with one selector. Every connection gets its own {@link PacketHandler}, configured with the
+ * defaults of this server (registered packets, listener, keep-alives, limits) before anything is read from it.<br>
+ * <br>
+ * Listeners are called on the event loop of their connection, so they must not block. Long running work should be handed to another thread.<br>
+ * <br>
+ * Example:<br>
+ * <code>PacketServer server = new PacketServer("chat");<br>
+ * server.registerPacket(ChatPacket.class);<br>
+ * server.setListenerFactory(handler -&gt; new ChatListener());<br>
+ * server.bind(new InetSocketAddress(4000));</code>
+ */
+public class PacketServer {
+
+	/** Default number of event loops. Default is the number of available processors **/
+	public static int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	/** Maximum number of pending connections in the accept backlog. Default is 1024 **/
+	public static int BACKLOG = 1024;
+
+	/**
+	 * How accepted connections are assigned to the event loops.
+	 */
+	public enum Assignment {
+		/** One loop after the other **/
+		ROUND_ROBIN,
+		/** The loop with the fewest open connections **/
+		LEAST_LOADED
+	}
+
+	private static final Logger logger = Logger.getLogger("PacketHandler");
+
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final ConnectionGroup connections;
+	private final String name;
+	private ServerSocketChannel serverChannel;
+	private Thread acceptor;
+	private volatile boolean closed;
+
+	private volatile Assignment assignment = Assignment.ROUND_ROBIN;
+	private final List<Class<? extends Packet>> packetClasses = new CopyOnWriteArrayList<Class<? extends Packet>>();
+	private volatile ListenerFactory listenerFactory;
+	private volatile RequestListener requestListener;
+	private volatile boolean autoSendKeepAlive;
+	private volatile int readTimeout = PacketHandler.READ_TIMEOUT;
+	private volatile int maxPacketSize = PacketHandler.MAX_PACKET_SIZE;
+	private volatile long memoryBudget = PacketHandler.MEMORY_BUDGET;
+	private volatile RateLimiter ingressLimit; // Copied for every connection, null = unlimited
+	private volatile int maxConnections; // 0 = unlimited
+	private volatile double acceptRate; // Connections per second, 0 = unlimited
+	private volatile int acceptBurst;
+
+	// Token bucket, only used by the acceptor thread
+	private double acceptTokens;
+	private long lastRefill;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * Creates a server with {@link #EVENT_LOOPS} event loops.
+	 * 
+	 * @param name
+	 *            Name of the server, used for the threads and the connection names.
+	 */
+	public PacketServer(String name) {
+		this(name, EVENT_LOOPS);
+	}
+
+	/**
+	 * @param name
+	 *            Name of the server, used for the threads and the connection names.
+	 * @param eventLoops
+	 *            Number of event loops (threads) serving the connections.
+	 */
+	public PacketServer(String name, int eventLoops) {
+		if (eventLoops < 1)
+			throw new IllegalArgumentException("eventLoops must be at least 1");
+		if (name == null)
+			name = "";
+		this.name = name;
+		this.loops = new EventLoop[eventLoops];
+		this.connections = new ConnectionGroup(name);
+	}
+
+	/**
+	 * Binds the server to the given address and starts accepting connections.
+	 * 
+	 * @param address
+	 *            The local address, use port 0 to pick a free port (see {@link #getLocalAddress()}).
+	 * @throws IOException
+	 *             If binding failed.
+	 */
+	public synchronized void bind(InetSocketAddress address) throws IOException {
+		if (address == null)
+			throw new IllegalArgumentException("address can not be null");
+		if (serverChannel != null || closed)
+			throw new IllegalStateException("Server was bound already");
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(address, BACKLOG);
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop("EventLoop " + i + " - " + name);
+				loops[i].start();
+			}
+		} catch (IOException e) {
+			channel.close();
+			stopLoops();
+			throw e;
+		}
+		serverChannel = channel;
+		lastRefill = System.nanoTime();
+		acceptTokens = acceptBurst;
+		acceptor = new Thread("PacketServer acceptor - " + name) {
+
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		};
+		acceptor.start();
+	}
+
+	private void acceptConnections() {
+		while (!closed) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				return; // Server closed
+			} catch (IOException e) {
+				// Usually too many open files, try again later
+				logger.warning("Accepting a connection failed! " + e);
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e1) {
+					return;
+				}
+				continue;
+			}
+			if (!tryAcquireAcceptToken() || (maxConnections > 0 && connections.size() >= maxConnections)) {
+				rejected.increment();
+				try {
+					channel.close();
+				} catch (IOException e) {
+					;
+				}
+				continue;
+			}
+			accept(channel);
+		}
+	}
+
+	private void accept(SocketChannel channel) {
+		ChannelConnection connection = null;
+		PacketHandler handler = null;
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // The loop writes whole buffers
+			connection = new ChannelConnection(channel, nextLoop());
+			handler = new PacketHandler(connection, name + " " + channel.getRemoteAddress(), null);
+			connection.setHandler(handler);
+			for (Class<? extends Packet> packetClass : packetClasses) {
+				handler.registerPacket(packetClass);
+			}
+			handler.setMaxPacketSize(maxPacketSize);
+			handler.getMemoryBudget().setLimit(memoryBudget);
+			RateLimiter limit = ingressLimit;
+			if (limit != null)
+				handler.setIngressLimit(limit.copy());
+			handler.setReadTimeout(readTimeout);
+			handler.setAutoSendKeepAlive(autoSendKeepAlive);
+			handler.setRequestListener(requestListener);
+			ListenerFactory factory = listenerFactory;
+			if (factory != null) {
+				PacketListener listener = factory.createListener(handler);
+				if (listener != null)
+					handler.setListener(listener);
+			}
+			connections.add(handler); // Refused if the listener factory closed it already, the loop still flushes its ClosePacket
+		} catch (Exception e) {
+			logger.warning("Setting up an accepted connection failed! " + e);
+			if (connection != null)
+				connection.closeChannel();
+			if (handler != null)
+				handler.onConnectionFail(e);
+			else
+				closeQuietly(channel);
+			return;
+		}
+		accepted.increment();
+		connection.getLoop().register(connection); // Starts reading
+	}
+
+	private EventLoop nextLoop() {
+		if (assignment == Assignment.LEAST_LOADED) {
+			EventLoop best = loops[0];
+			for (int i = 1; i < loops.length; i++) {
+				if (loops[i].getConnectionCount() < best.getConnectionCount())
+					best = loops[i];
+			}
+			return best;
+		}
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+	}
+
+	private boolean tryAcquireAcceptToken() {
+		double rate = acceptRate;
+		if (rate <= 0)
+			return true;
+		long now = System.nanoTime();
+		acceptTokens = Math.min(Math.max(acceptBurst, 1), acceptTokens + (now - lastRefill) / 1e9 * rate);
+		lastRefill = now;
+		if (acceptTokens < 1)
+			return false;
+		acceptTokens--;
+		return true;
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			;
+		}
+	}
+
+	/**
+	 * Stops accepting connections, closes all connections (see {@link PacketHandler#closeAll(java.util.Collection)}) and stops the event loops. Blocks
+	 * until the connections are closed, but at most {@link PacketHandler#CLOSE_TIMEOUT} ms.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		try {
+			if (serverChannel != null)
+				serverChannel.close();
+		} catch (IOException e) {
+			;
+		}
+		try {
+			connections.closeAll().get(PacketHandler.CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			; // The loops close the rest
+		}
+		stopLoops();
+	}
+
+	private void stopLoops() {
+		for (EventLoop loop : loops) {
+			if (loop != null)
+				loop.shutdown();
+		}
+	}
+
+	/**
+	 * Registers a packet for all connections accepted afterwards.
+	 * 
+	 * @throws Exception
+	 *             If the packet class can not be instantiated, see {@link PacketHandler#registerPacket(Class)}.
+	 */
+	public void registerPacket(Class<? extends Packet> packetClass) throws Exception {
+		if (packetClass == null)
+			throw new IllegalArgumentException("packetClass can not be null");
+		packetClass.getDeclaredConstructor().newInstance(); // Fail here instead of on every accepted connection
+		packetClasses.add(packetClass);
+	}
+
+	/**
+	 * @return The connections currently open. Can be used to send to all of them.
+	 */
+	public ConnectionGroup getConnections() {
+		return connections;
+	}
+
+	/**
+	 * @return The address this server is bound to, <code>null</code> if it is not bound.
+	 */
+	public InetSocketAddress getLocalAddress() throws IOException {
+		ServerSocketChannel channel = serverChannel;
+		return channel != null ? (InetSocketAddress) channel.getLocalAddress() : null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public int getEventLoopCount() {
+		return loops.length;
+	}
+
+	public Assignment getAssignment() {
+		return assignment;
+	}
+
+	public void setAssignment(Assignment assignment) {
+		if (assignment == null)
+			throw new IllegalArgumentException("assignment can not be null");
+		this.assignment = assignment;
+	}
+
+	public ListenerFactory getListenerFactory() {
+		return listenerFactory;
+	}
+
+	/**
+	 * @param listenerFactory
+	 *            Creates the listener of each accepted connection. Can be <code>null</code>, connections get an empty listener then.
+	 */
+	public void setListenerFactory(ListenerFactory listenerFactory) {
+		this.listenerFactory = listenerFactory;
+	}
+
+	public RequestListener getRequestListener() {
+		return requestListener;
+	}
+
+	/**
+	 * @param requestListener
+	 *            Answers the requests of all accepted connections, see {@link PacketHandler#setRequestListener(RequestListener)}.
+	 */
+	public void setRequestListener(RequestListener requestListener) {
+		this.requestListener = requestListener;
+	}
+
+	public boolean autoSendKeepAlive() {
+		return autoSendKeepAlive;
+	}
+
+	public void setAutoSendKeepAlive(boolean autoSendKeepAlive) {
+		this.autoSendKeepAlive = autoSendKeepAlive;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @see PacketHandler#setReadTimeout(int)
+	 */
+	public void setReadTimeout(int readTimeout) {
+		if (readTimeout < 0)
+			throw new IllegalArgumentException("readTimeout can not be negative");
+		this.readTimeout = readTimeout;
+	}
+
+	public int getMaxPacketSize() {
+		return maxPacketSize;
+	}
+
+	/**
+	 * @see PacketHandler#setMaxPacketSize(int)
+	 */
+	public void setMaxPacketSize(int maxPacketSize) {
+		if (maxPacketSize < 2)
+			throw new IllegalArgumentException("maxPacketSize must be at least 2");
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            Bytes each connection may use for queued and received packets, see {@link PacketHandler#MEMORY_BUDGET}.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget <= 0)
+			throw new IllegalArgumentException("memoryBudget must be positive");
+		this.memoryBudget = memoryBudget;
+	}
+
+	public RateLimiter getIngressLimit() {
+		return ingressLimit;
+	}
+
+	/**
+	 * @param ingressLimit
+	 *            Rate limit of the packets received on each connection (every connection gets a copy, see
+	 *            {@link PacketHandler#setIngressLimit(RateLimiter)}). <code>null</code> for no limit.
+	 */
+	public void setIngressLimit(RateLimiter ingressLimit) {
+		this.ingressLimit = ingressLimit;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @param maxConnections
+	 *            Maximum number of open connections, more are closed right after accepting them. 0 for no limit.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if (maxConnections < 0)
+			throw new IllegalArgumentException("maxConnections can not be negative");
+		this.maxConnections = maxConnections;
+	}
+
+	public double getAcceptRate() {
+		return acceptRate;
+	}
+
+	public int getAcceptBurst() {
+		return acceptBurst;
+	}
+
+	/**
+	 * Limits how fast connections are accepted. Connections exceeding the limit are closed right after accepting them (and counted as rejected), so a
+	 * flood of connection attempts can't starve the event loops.
+	 * 
+	 * @param perSecond
+	 *            Connections accepted per second on average. 0 for no limit.
+	 * @param burst
+	 *            Connections that may be accepted at once after a quiet period.
+	 */
+	public void setAcceptRate(double perSecond, int burst) {
+		if (perSecond < 0 || burst < 0)
+			throw new IllegalArgumentException("perSecond and burst can not be negative");
+		this.acceptRate = perSecond;
+		this.acceptBurst = burst;
+	}
+
+	/**
+	 * @return Number of connections accepted so far.
+	 */
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	/**
+	 * @return Number of connections rejected because of the accept rate or the connection limit.
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "PacketServer[name=" + name + ", loops=" + loops.length + ", connections=" + connections.size() + ", accepted=" + getAccepted() + ", rejected="
+				+ getRejected() + "]";
+	}
+
+}
@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import com.germancoding.packetapi.defaultpackets.StreamPacket;
+import com.germancoding.packetapi.defaultpackets.TransferPacket;
+import com.germancoding.packetapi.metrics.ConnectionMetrics;
+
+/**
+ * A logical stream sharing the connection of a {@link PacketHandler} with other streams. Every stream has its own send queue: Its packets are split into
+ * chunks of {@link PacketHandler#STREAM_CHUNK_SIZE} bytes and the chunks of all streams (and the packets sent on the handler itself) are sent in turns,
+ * so a large packet on one stream doesn't hold back the small packets of others. Packets of one stream are received in the order they were sent.<br>
+ * <br>
+ * Streams are opened with {@link PacketHandler#openStream()}, the other side is notified with
+ * {@link StreamListener#onStreamOpened(PacketHandler, PacketStream)} and can send on the stream as well. Both sides need API version 4 or newer.
+ */
+public class PacketStream {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final PacketHandler handler;
+	private final int id;
+	private final boolean local; // Opened by this side
+	private final MemoryBudget budget;
+	private final ConnectionMetrics metrics;
+
+	// Sending side, guarded by this
+	private final LinkedList<Packet> queue = new LinkedList<Packet>();
+	private byte[] current; // Frame of the packet being sent (reserved in the budget), null between packets
+	private int currentOffset;
+	private boolean scheduled; // A chunk of this stream is queued in the sender
+	private boolean openSent;
+	private boolean closing; // A close chunk follows the queued packets
+	private boolean closeSent;
+	private volatile boolean closed;
+
+	// Receiving side, only used by the thread processing packets
+	private byte[] assembly;
+	private volatile int assembled; // Read by the reader to admit the next chunks
+
+	PacketStream(PacketHandler handler, int id, boolean local) {
+		this.handler = handler;
+		this.id = id;
+		this.local = local;
+		this.budget = handler.getMemoryBudget();
+		this.metrics = handler.getMetrics();
+	}
+
+	/**
+	 * Adds a packet to the send queue of this stream.
+	 * 
+	 * @return False if the packet was rejected because the memory budget is exhausted (default packets are never rejected, except for requests and
+	 *         responses) or the stream is closed.
+	 */
+	public boolean send(Packet packet) {
+		if (packet == null)
+			throw new IllegalArgumentException("packet can not be null");
+		if (packet instanceof TransferPacket || packet instanceof StreamPacket)
+			throw new IllegalArgumentException("Transfers can not be sent on a stream");
+		if (DataSender.respectsBudget(packet) && budget.isExhausted()) {
+			budget.onRejected();
+			metrics.onRejectedPacket();
+			return false;
+		}
+		boolean start;
+		synchronized (this) {
+			if (closing || closed)
+				return false;
+			budget.forceReserve(DataSender.QUEUED_PACKET_SIZE);
+			queue.add(packet);
+			start = schedule();
+		}
+		return !start || queueChunk();
+	}
+
+	/**
+	 * Closes this stream. Packets queued before are still sent. The other side is notified with {@link StreamListener#onStreamClosed(PacketStream)} and
+	 * can't send on the stream anymore.
+	 */
+	public void close() {
+		boolean start;
+		synchronized (this) {
+			if (closing || closed)
+				return;
+			closing = true;
+			start = schedule();
+		}
+		if (start)
+			queueChunk();
+	}
+
+	private boolean schedule() {
+		if (scheduled)
+			return false;
+		scheduled = true;
+		return true;
+	}
+
+	/**
+	 * Queues the next chunk of this stream in the sender of the connection. Not called while holding the lock of this stream, the sender takes the lock
+	 * of its queue.
+	 */
+	private boolean queueChunk() {
+		DataSender sender = handler.getSender();
+		return sender != null && sender.sendPacket(new StreamPacket(this));
+	}
+
+	/**
+	 * Takes the next chunk from the send queue. Called by the sender right before the chunk is written. If the next packet can't be encoded, this stream
+	 * is closed (the chunk becomes the close chunk) and the packets queued after it are dropped, the connection and other streams are not affected.
+	 */
+	void fillChunk(StreamPacket chunk) {
+		synchronized (this) {
+			byte flags = local ? StreamPacket.FLAG_INITIATOR : 0;
+			if (local && !openSent) {
+				flags |= StreamPacket.FLAG_OPEN;
+				openSent = true;
+			}
+			if (current == null) {
+				Packet next = queue.poll();
+				if (next == null) {
+					// Closing (or closed by the other side, then the close chunk is ignored)
+					closeSent = true;
+					closed = true;
+					chunk.setChunk((byte) (flags | StreamPacket.FLAG_CLOSE), EMPTY, 0, 0);
+					return;
+				}
+				budget.release(DataSender.QUEUED_PACKET_SIZE);
+				try {
+					current = EncodedFrame.toFrame(next);
+				} catch (IOException | RuntimeException e) {
+					handler.logger.warning("Encoding packet with id " + next.getId() + " on stream " + id + " of connection '" + handler.getConnectionName()
+							+ "' failed, closing the stream: " + e);
+					budget.release((long) DataSender.QUEUED_PACKET_SIZE * queue.size());
+					queue.clear();
+					closing = true;
+					closeSent = true;
+					closed = true;
+					chunk.setChunk((byte) (flags | StreamPacket.FLAG_CLOSE), EMPTY, 0, 0);
+					return;
+				}
+				currentOffset = 4; // The chunks contain id and data, the length is known once the last chunk arrived
+				budget.forceReserve(current.length);
+			}
+			byte[] frame = current;
+			int length = Math.min(PacketHandler.STREAM_CHUNK_SIZE, frame.length - currentOffset);
+			int offset = currentOffset;
+			currentOffset += length;
+			if (currentOffset == frame.length) {
+				flags |= StreamPacket.FLAG_LAST;
+				budget.release(frame.length); // The chunk still references the bytes until it is written
+				current = null;
+			}
+			chunk.setChunk(flags, frame, offset, length);
+		}
+	}
+
+	/**
+	 * Called by the sender after a chunk was written.
+	 * 
+	 * @return The next chunk of this stream (not filled yet) or <code>null</code> if nothing is left to send.
+	 */
+	StreamPacket nextChunk() {
+		boolean finished;
+		synchronized (this) {
+			if (!closeSent && (current != null || !queue.isEmpty() || closing))
+				return new StreamPacket(this);
+			scheduled = false;
+			finished = closeSent;
+		}
+		if (finished)
+			handler.onStreamClosed(this, false);
+		return null;
+	}
+
+	/**
+	 * @return Whether a packet was partly received. Its bytes stay reserved in the memory budget until the last chunk arrives, so the reader admits the
+	 *         next chunks even if the budget is exhausted.
+	 */
+	boolean isAssembling() {
+		return assembled > 0;
+	}
+
+	/**
+	 * Adds a received chunk. Called on the thread processing packets.
+	 */
+	void onChunkReceived(StreamPacket chunk) {
+		if (chunk.isClose()) {
+			reset();
+			handler.onStreamClosed(this, true);
+			return;
+		}
+		if (closed)
+			return; // Closed by this side, the other side didn't know yet
+		byte[] data = chunk.getData();
+		if ((long) assembled + data.length > handler.getMaxPacketSize()) {
+			handler.logger.warning("Packet of more than " + handler.getMaxPacketSize() + " bytes received on stream " + id + " of connection '"
+					+ handler.getConnectionName() + "', closing the stream");
+			discardAssembly();
+			close();
+			return;
+		}
+		byte[] frame;
+		int length;
+		if (assembled == 0 && chunk.isLast()) {
+			frame = data; // Fits into one chunk, no copy needed
+			length = data.length;
+		} else {
+			int required = assembled + data.length;
+			if (assembly == null)
+				assembly = new byte[Math.max(required, 2 * data.length)];
+			else if (assembly.length < required)
+				assembly = Arrays.copyOf(assembly, Math.max(required, assembly.length * 2));
+			System.arraycopy(data, 0, assembly, assembled, data.length);
+			assembled += data.length;
+			budget.forceReserve(data.length);
+			if (!chunk.isLast())
+				return;
+			frame = assembly;
+			length = assembled;
+			discardAssembly();
+		}
+		dispatch(frame, length);
+	}
+
+	private void dispatch(byte[] frame, int length) {
+		if (length < 2) {
+			handler.onConnectionFail(new IOException("Protocol violation: Packet without id received on stream " + id));
+			return;
+		}
+		ByteBuffer in = ByteBuffer.wrap(frame, 0, length);
+		short packetId = in.getShort();
+		Packet packet = handler.getNewPacketInstance(packetId);
+		if (packet == null) {
+			metrics.onUnknownPacket();
+			handler.getListener().onUnknownPacketReceived(handler, packetId);
+			return;
+		}
+		try {
+			packet.decode(in);
+		} catch (IOException | BufferUnderflowException e) {
+			metrics.onDecodeFailure();
+			if (packet.isCritical())
+				handler.onConnectionFail(new IOException("Parsing packet with id " + packetId + " on stream " + id + " failed: " + e));
+			return;
+		}
+		StreamListener listener = handler.getStreamListener();
+		if (listener != null)
+			listener.onPacketReceived(this, packet);
+		else
+			handler.getListener().onPacketReceived(handler, packet);
+	}
+
+	private void discardAssembly() {
+		budget.release(assembled);
+		assembly = null;
+		assembled = 0;
+	}
+
+	/**
+	 * Drops everything queued and received, nothing is sent or received anymore. Called when the other side closed the stream or the connection was
+	 * closed.
+	 */
+	void reset() {
+		synchronized (this) {
+			closed = true;
+			closing = true;
+			budget.release((long) DataSender.QUEUED_PACKET_SIZE * queue.size());
+			queue.clear();
+			if (current != null) {
+				budget.release(current.length);
+				current = null;
+			}
+		}
+		discardAssembly();
+	}
+
+	/**
+	 * @return The id of this stream. Streams opened by the other side have their own ids, use {@link #isLocal()} to tell them apart.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return Whether this stream was opened by this side.
+	 */
+	public boolean isLocal() {
+		return local;
+	}
+
+	public PacketHandler getHandler() {
+		return handler;
+	}
+
+	/**
+	 * @return Whether this stream was closed by either side (or the connection was closed). Packets queued before are still sent if it was closed locally.
+	 */
+	public boolean isClosed() {
+		return closed || closing;
+	}
+
+	/**
+	 * @return Number of packets waiting in the send queue of this stream.
+	 */
+	public int getQueuedPackets() {
+		synchronized (this) {
+			return queue.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PacketStream[id=" + id + ", local=" + local + ", closed=" + isClosed() + ", queued=" + getQueuedPackets() + "]";
+	}
+
+}
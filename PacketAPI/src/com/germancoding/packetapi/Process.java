@@ -29,6 +29,7 @@ public class Process {
 	private short packetID;
 	private Packet packet;
 	private PacketHandler handler;
+	private int reservedBytes;
 
 	public Process(ActionType type, short packetID, Packet packet, PacketHandler handler) {
 		super();
@@ -70,6 +71,17 @@ public class Process {
 		this.handler = handler;
 	}
 
+	/**
+	 * @return The number of bytes reserved in the memory budget of the handler until this packet is processed.
+	 */
+	public int getReservedBytes() {
+		return reservedBytes;
+	}
+
+	public void setReservedBytes(int reservedBytes) {
+		this.reservedBytes = reservedBytes;
+	}
+
 	public enum ActionType {
 		RECEIVED, UNKN_RECEIVED,
 	}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An entry of the sending queue of a {@link DataSender}.
+ */
+final class QueuedPacket {
+
+	final Packet packet;
+	final long enqueueTime; // System.nanoTime() when queued, 0 if latency tracking is disabled
+	final CompletableFuture<Void> future; // Completed once the packet is written, null if nobody is waiting for it
+	final EncodedFrame frame; // The packet encoded in advance (holding a reference), null if it is encoded when sent
+
+	QueuedPacket(Packet packet, long enqueueTime, CompletableFuture<Void> future, EncodedFrame frame) {
+		this.packet = packet;
+		this.enqueueTime = enqueueTime;
+		this.future = future;
+		this.frame = frame;
+	}
+
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of packets and bytes of a connection (or of one packet id) with a token bucket: The bucket holds a burst of packets (and bytes) and
+ * is refilled with the configured rate, a packet may pass as long as the bucket isn't empty.<br>
+ * Instead of counting tokens, the limiter keeps the time at which the bucket would be full again for each dimension and moves it forward with a
+ * compare-and-set for every packet (the generic cell rate algorithm), so checking a packet takes no locks and no background thread refills anything. A
+ * limiter can be shared by many connections to limit their sum.<br>
+ * <br>
+ * What happens to a packet exceeding the limit is decided by the {@link Policy} of the limiter.
+ * 
+ * @see PacketHandler#setIngressLimit(RateLimiter)
+ * @see PacketHandler#setEgressLimit(RateLimiter)
+ */
+public class RateLimiter {
+
+	/**
+	 * What happens to a packet exceeding a limit. Default packets keeping the connection alive (handshake, close, keep-alive and flow control) are never
+	 * limited.
+	 */
+	public enum Policy {
+		/**
+		 * The packet waits until the limit allows it. Received packets are not read (which slows the other side down like an exhausted memory budget),
+		 * packets to send stay in the queue.
+		 */
+		DELAY,
+		/** Non critical packets are dropped, critical ones are delayed **/
+		DROP,
+		/** The connection is closed with the message {@link PacketHandler#RATE_LIMIT_MESSAGE} **/
+		CLOSE
+	}
+
+	private final double packetsPerSecond;
+	private final int packetBurst;
+	private final double bytesPerSecond;
+	private final int byteBurst;
+	private final Policy policy;
+	private final double packetNanos; // Nanoseconds per packet, 0 if the packets are not limited
+	private final double byteNanos;
+	private final long packetTolerance; // Nanoseconds the bucket can be ahead of the current time, the burst
+	private final long byteTolerance;
+	private final AtomicLong packetTime; // System.nanoTime() at which the packet bucket is full again
+	private final AtomicLong byteTime;
+
+	/**
+	 * @param packetsPerSecond
+	 *            Packets per second on average. 0 for no limit.
+	 * @param packetBurst
+	 *            Packets that may pass at once after a quiet period.
+	 * @param bytesPerSecond
+	 *            Bytes (of the frames, including the length field) per second on average. 0 for no limit.
+	 * @param byteBurst
+	 *            Bytes that may pass at once after a quiet period. A single packet may exceed the remaining bytes, otherwise packets larger than the burst
+	 *            could never pass.
+	 * @param policy
+	 *            What happens to packets exceeding the limit.
+	 */
+	public RateLimiter(double packetsPerSecond, int packetBurst, double bytesPerSecond, int byteBurst, Policy policy) {
+		if (packetsPerSecond < 0 || bytesPerSecond < 0 || Double.isNaN(packetsPerSecond) || Double.isNaN(bytesPerSecond))
+			throw new IllegalArgumentException("packetsPerSecond and bytesPerSecond can not be negative");
+		if (packetsPerSecond == 0 && bytesPerSecond == 0)
+			throw new IllegalArgumentException("Either packetsPerSecond or bytesPerSecond has to be limited");
+		if ((packetsPerSecond > 0 && packetBurst < 1) || (bytesPerSecond > 0 && byteBurst < 1))
+			throw new IllegalArgumentException("The burst of a limited rate must be positive");
+		if (policy == null)
+			throw new IllegalArgumentException("policy can not be null");
+		this.packetsPerSecond = packetsPerSecond;
+		this.packetBurst = packetsPerSecond > 0 ? packetBurst : 0;
+		this.bytesPerSecond = bytesPerSecond;
+		this.byteBurst = bytesPerSecond > 0 ? byteBurst : 0;
+		this.policy = policy;
+		this.packetNanos = packetsPerSecond > 0 ? 1e9 / packetsPerSecond : 0;
+		this.byteNanos = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+		this.packetTolerance = (long) Math.min(packetNanos * this.packetBurst, Long.MAX_VALUE / 4);
+		this.byteTolerance = (long) Math.min(byteNanos * this.byteBurst, Long.MAX_VALUE / 4);
+		long now = System.nanoTime();
+		this.packetTime = new AtomicLong(now); // Full buckets
+		this.byteTime = new AtomicLong(now);
+	}
+
+	/**
+	 * @return A limiter for the number of packets only.
+	 */
+	public static RateLimiter packets(double perSecond, int burst, Policy policy) {
+		return new RateLimiter(perSecond, burst, 0, 0, policy);
+	}
+
+	/**
+	 * @return A limiter for the number of bytes only.
+	 */
+	public static RateLimiter bytes(double perSecond, int burst, Policy policy) {
+		return new RateLimiter(0, 0, perSecond, burst, policy);
+	}
+
+	/**
+	 * @return A new limiter with the same limits and full buckets, e.g. to give every connection a limit of its own.
+	 */
+	public RateLimiter copy() {
+		return new RateLimiter(packetsPerSecond, packetBurst, bytesPerSecond, byteBurst, policy);
+	}
+
+	/**
+	 * @return The time (in nanoseconds) until the next packet may pass, 0 if it may pass now.
+	 */
+	public long delay() {
+		return delay(System.nanoTime());
+	}
+
+	long delay(long now) {
+		long delay = 0;
+		if (packetNanos > 0)
+			delay = delay(packetTime.get(), packetTolerance, now);
+		if (byteNanos > 0)
+			delay = Math.max(delay, delay(byteTime.get(), byteTolerance, now));
+		return delay;
+	}
+
+	private static long delay(long fullAt, long tolerance, long now) {
+		long delay = fullAt - tolerance - now;
+		return delay < 0 ? 0 : delay + 1; // The bucket is empty until the time is reached, not at it
+	}
+
+	/**
+	 * Takes a packet out of the buckets, no matter if they are empty. Called once a packet passed.
+	 * 
+	 * @param bytes
+	 *            The size of the frame.
+	 */
+	public void record(int bytes) {
+		record(bytes, System.nanoTime());
+	}
+
+	void record(int bytes, long now) {
+		if (packetNanos > 0)
+			take(packetTime, (long) packetNanos, now);
+		if (byteNanos > 0)
+			take(byteTime, (long) (bytes * byteNanos), now);
+	}
+
+	private static void take(AtomicLong time, long nanos, long now) {
+		while (true) {
+			long fullAt = time.get();
+			long updated = (fullAt - now < 0 ? now : fullAt) + nanos; // A full bucket doesn't store more than the burst
+			if (time.compareAndSet(fullAt, updated))
+				return;
+		}
+	}
+
+	/**
+	 * Takes a packet out of the buckets if it may pass now.<br>
+	 * Checking and taking are not one atomic step, so packets checked by many threads at the same time can exceed a shared limit by a packet per thread.
+	 * 
+	 * @param bytes
+	 *            The size of the frame.
+	 * @return Whether the packet may pass.
+	 */
+	public boolean tryAcquire(int bytes) {
+		long now = System.nanoTime();
+		if (delay(now) > 0)
+			return false;
+		record(bytes, now);
+		return true;
+	}
+
+	/**
+	 * @return Packets per second, 0 if the number of packets is not limited.
+	 */
+	public double getPacketsPerSecond() {
+		return packetsPerSecond;
+	}
+
+	public int getPacketBurst() {
+		return packetBurst;
+	}
+
+	/**
+	 * @return Bytes per second, 0 if the number of bytes is not limited.
+	 */
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public int getByteBurst() {
+		return byteBurst;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	@Override
+	public String toString() {
+		return "RateLimiter[packets=" + (packetsPerSecond > 0 ? packetsPerSecond + "/s (burst " + packetBurst + ")" : "none") + ", bytes="
+				+ (bytesPerSecond > 0 ? bytesPerSecond + "/s (burst " + byteBurst + ")" : "none") + ", policy=" + policy + "]";
+	}
+
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The rate limits of one direction of a connection: A limit for all packets and limits for single packet ids. A packet has to pass all limits that apply
+ * to it. The limits are read from volatile fields without locking, changing them copies the map of the packet ids.
+ */
+final class RateLimits {
+
+	/** Verdict of {@link #check(short)}: The packet is dropped (if it is not critical) **/
+	static final long DROP = -1;
+	/** Verdict of {@link #check(short)}: The connection is closed **/
+	static final long CLOSE = -2;
+
+	private volatile RateLimiter limiter; // Null if the connection isn't limited
+	private volatile Map<Short, RateLimiter> byId; // Null if no packet id is limited
+
+	RateLimiter get() {
+		return limiter;
+	}
+
+	void set(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	RateLimiter get(short id) {
+		Map<Short, RateLimiter> byId = this.byId;
+		return byId == null ? null : byId.get(id);
+	}
+
+	synchronized void set(short id, RateLimiter limiter) {
+		HashMap<Short, RateLimiter> updated = byId == null ? new HashMap<Short, RateLimiter>() : new HashMap<Short, RateLimiter>(byId);
+		if (limiter == null)
+			updated.remove(id);
+		else
+			updated.put(id, limiter);
+		byId = updated.isEmpty() ? null : updated;
+	}
+
+	/**
+	 * @return Whether a packet with the given id has to pass a limit.
+	 */
+	boolean isLimited(short id) {
+		return (limiter != null || byId != null) && DataSender.isFlowControlled(id);
+	}
+
+	/**
+	 * Checks whether a packet with the given id may pass now. Nothing is taken out of the buckets, call {@link #record(short, int)} once the packet passed.
+	 * 
+	 * @return 0 if the packet may pass, otherwise the verdict of the strictest exceeded limit: {@link #CLOSE}, {@link #DROP} or the time (in nanoseconds)
+	 *         to wait.
+	 */
+	long check(short id) {
+		if (!isLimited(id))
+			return 0;
+		long now = System.nanoTime();
+		long verdict = check(limiter, now, 0);
+		return check(get(id), now, verdict);
+	}
+
+	private static long check(RateLimiter limiter, long now, long verdict) {
+		if (limiter == null || verdict == CLOSE)
+			return verdict;
+		long delay = limiter.delay(now);
+		if (delay == 0)
+			return verdict;
+		switch (limiter.getPolicy()) {
+		case CLOSE:
+			return CLOSE;
+		case DROP:
+			return DROP;
+		default:
+			return verdict == DROP ? DROP : Math.max(verdict, delay);
+		}
+	}
+
+	/**
+	 * @return The time (in nanoseconds) until a packet with the given id passes all limits, no matter what their policies are. Used for critical packets,
+	 *         which are never dropped.
+	 */
+	long delay(short id) {
+		if (!isLimited(id))
+			return 0;
+		long now = System.nanoTime();
+		RateLimiter limiter = this.limiter;
+		RateLimiter idLimiter = get(id);
+		long delay = limiter == null ? 0 : limiter.delay(now);
+		return idLimiter == null ? delay : Math.max(delay, idLimiter.delay(now));
+	}
+
+	/**
+	 * Takes a packet that passed out of the buckets of its limits.
+	 * 
+	 * @param bytes
+	 *            The size of the frame.
+	 */
+	void record(short id, int bytes) {
+		if (!isLimited(id))
+			return;
+		long now = System.nanoTime();
+		RateLimiter limiter = this.limiter;
+		RateLimiter idLimiter = get(id);
+		if (limiter != null)
+			limiter.record(bytes, now);
+		if (idLimiter != null)
+			idLimiter.record(bytes, now);
+	}
+
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Answers requests of the remote side.
+ * 
+ * @see PacketHandler#request(Packet, long)
+ * @see PacketHandler#setRequestListener(RequestListener)
+ */
+public interface RequestListener {
+
+	/**
+	 * Called for every request. This method is called on the thread processing packets (usually the <code>DataReader</code>), so don't block: Return an
+	 * already completed future (<code>CompletableFuture.completedFuture(response)</code>) for quick answers or complete the future later from another
+	 * thread. Other requests are processed in the meantime.<br>
+	 * If the future fails (or this method throws an exception), the error message is sent to the remote side instead of a response.
+	 * 
+	 * @param handler
+	 *            The handler receiving the request.
+	 * @param request
+	 *            The request.
+	 * @return A future completed with the response.
+	 */
+	public CompletableFuture<? extends Packet> onRequest(PacketHandler handler, Packet request) throws Exception;
+
+}
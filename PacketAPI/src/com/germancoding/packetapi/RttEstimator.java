@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.util.concurrent.TimeUnit;
+
+import com.germancoding.packetapi.defaultpackets.KeepAlivePacket;
+
+/**
+ * Estimates the round trip time (RTT) and the clock offset of a connection from timestamped keep-alives.<br>
+ * The smoothed RTT and the RTT variation (jitter) are calculated like TCP does (RFC 6298). The estimates can be used by adaptive features, like retransmission
+ * timers or flush policies.<br>
+ * <br>
+ * Keep-alives are only timestamped if both sides support it (see {@link PacketHandler#getRemoteApiVersion()}), a handshake has to be exchanged first.
+ * 
+ * @see PacketHandler#getRttEstimator()
+ */
+public class RttEstimator {
+
+	/** Retransmission timeout (in MS) used as long as no RTT was measured. Default is 1000 ms **/
+	public static int INITIAL_RTO = 1000;
+	/** Lower bound (in MS) of the retransmission timeout. Default is 200 ms **/
+	public static int MIN_RTO = 200;
+
+	private long smoothedRtt = -1;
+	private long rttVariation;
+	private long minRtt = Long.MAX_VALUE;
+	private long latestRtt = -1;
+	private long samples;
+	private int lastSequence;
+	private long clockOffset;
+	private boolean clockOffsetKnown;
+
+	/**
+	 * Called when a keep-alive response arrives. Computes a new sample if the response is timestamped and answers the latest request.
+	 * 
+	 * @return Whether a sample was taken.
+	 */
+	public synchronized boolean onKeepAliveResponse(KeepAlivePacket response) {
+		if (!response.isResponse() || !response.isTimestamped() || response.getReceiveTime() == 0)
+			return false;
+		if (samples > 0 && response.getSequence() - lastSequence <= 0)
+			return false; // Duplicate or outdated (UDP)
+		long rtt = response.getReceiveTime() - response.getOriginTime() - response.getDelay();
+		if (rtt < 0)
+			return false;
+		lastSequence = response.getSequence();
+		addSample(rtt);
+
+		// The responder read its clock half a round trip before the response arrived
+		long receivedAgo = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - response.getReceiveTime());
+		long localTime = System.currentTimeMillis() - receivedAgo - TimeUnit.NANOSECONDS.toMillis(rtt / 2);
+		addClockOffsetSample(response.getRemoteTime() - localTime);
+		return true;
+	}
+
+	/**
+	 * Adds a RTT sample.
+	 * 
+	 * @param rtt
+	 *            The measured round trip time in nanoseconds.
+	 */
+	public synchronized void addSample(long rtt) {
+		if (rtt < 0)
+			throw new IllegalArgumentException("rtt can not be negative");
+		if (smoothedRtt < 0) {
+			smoothedRtt = rtt;
+			rttVariation = rtt / 2;
+		} else {
+			rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+		minRtt = Math.min(minRtt, rtt);
+		latestRtt = rtt;
+		samples++;
+	}
+
+	private void addClockOffsetSample(long offset) {
+		if (!clockOffsetKnown) {
+			clockOffset = offset;
+			clockOffsetKnown = true;
+		} else {
+			clockOffset = (7 * clockOffset + offset) / 8;
+		}
+	}
+
+	/**
+	 * @return The smoothed round trip time in nanoseconds, -1 if nothing was measured yet.
+	 */
+	public synchronized long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * @return The smoothed variation of the round trip time (jitter) in nanoseconds.
+	 */
+	public synchronized long getRttVariation() {
+		return rttVariation;
+	}
+
+	/**
+	 * @return The lowest round trip time measured in nanoseconds, -1 if nothing was measured yet.
+	 */
+	public synchronized long getMinRtt() {
+		return samples == 0 ? -1 : minRtt;
+	}
+
+	/**
+	 * @return The latest round trip time measured in nanoseconds, -1 if nothing was measured yet.
+	 */
+	public synchronized long getLatestRtt() {
+		return latestRtt;
+	}
+
+	/**
+	 * @return The number of samples taken.
+	 */
+	public synchronized long getSampleCount() {
+		return samples;
+	}
+
+	/**
+	 * @return The estimated difference (in MS) between the clock of the other side and our clock (<code>System.currentTimeMillis()</code>). Positive if the
+	 *         clock of the other side is ahead. 0 if unknown.
+	 */
+	public synchronized long getClockOffset() {
+		return clockOffset;
+	}
+
+	/**
+	 * @return Whether a clock offset was estimated yet.
+	 */
+	public synchronized boolean isClockOffsetKnown() {
+		return clockOffsetKnown;
+	}
+
+	/**
+	 * @return A timeout (in MS) after which a request without response can be considered lost: The smoothed RTT plus four times the variation, like TCP.
+	 */
+	public synchronized long getRetransmissionTimeout() {
+		if (smoothedRtt < 0)
+			return INITIAL_RTO;
+		return Math.max(MIN_RTO, TimeUnit.NANOSECONDS.toMillis(smoothedRtt + Math.max(TimeUnit.MILLISECONDS.toNanos(1), 4 * rttVariation)));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RttEstimator[srtt=" + smoothedRtt + "ns, rttvar=" + rttVariation + "ns, min=" + getMinRtt() + "ns, samples=" + samples + ", clockOffset=" + clockOffset + "ms]";
+	}
+
+}
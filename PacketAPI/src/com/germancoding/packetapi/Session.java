@@ -0,0 +1,470 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.germancoding.packetapi.defaultpackets.IDRegistry;
+import com.germancoding.packetapi.defaultpackets.SessionPacket;
+
+/**
+ * Session state of a connection created from streams. Counts the frames sent and received and, if the session is resumable (see
+ * {@link PacketHandler#setResumable(boolean)}), keeps the frames the other side didn't acknowledge yet and moves the connection to new streams when it is
+ * resumed.<br>
+ * All frames except keep-alives, credit and session packets are counted (sequenced), the others only concern the streams they are sent on. Both sides count
+ * from the start of the connection, so the counts match even if the session becomes resumable later.
+ */
+final class Session {
+
+	private static final ConcurrentHashMap<Long, PacketHandler> sessions = new ConcurrentHashMap<Long, PacketHandler>(); // Resumable sessions by token
+	private static final SecureRandom random = new SecureRandom();
+
+	private final PacketHandler handler;
+	private volatile long token; // 0 unless resumable
+	private volatile long remoteToken; // 0 until the handshake of the other side arrived
+	// Sending side
+	private volatile long sent; // Sequenced frames written, guarded by this
+	private final LinkedList<byte[]> retained = new LinkedList<byte[]>(); // Frames (id and data) not acknowledged yet, guarded by this
+	private long firstRetained; // Sequence of the first retained frame, guarded by this
+	private volatile long retainedBytes;
+	// Receiving side, guarded by this
+	private long received;
+	private long acknowledged; // Received frames acknowledged to the other side
+	private long unacknowledgedBytes;
+	private HashedWheelTimer.Timeout ackTimeout;
+	// Resuming, guarded by this
+	private volatile boolean suspended;
+	private boolean streamsFailed; // Whether the current streams failed (the listener was notified)
+	private boolean awaitingResume; // Whether we asked the other side to resume and wait for its answer
+	private IOException cause;
+	private HashedWheelTimer.Timeout resumeTimeout;
+
+	Session(PacketHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Whether frames with the given id are counted and sent again when the session is resumed.
+	 */
+	static boolean isSequenced(short id) {
+		return id != IDRegistry.KEEPALIVE_PACKET && id != IDRegistry.CREDIT_PACKET && id != IDRegistry.SESSION_PACKET;
+	}
+
+	/**
+	 * @return The connection of this JVM with the given session token or <code>null</code> if there is none.
+	 */
+	static PacketHandler find(long token) {
+		return token == 0 ? null : sessions.get(token);
+	}
+
+	synchronized void setResumable(boolean resumable) {
+		if (resumable == (token != 0))
+			return;
+		if (resumable) {
+			long token;
+			do {
+				token = random.nextLong();
+			} while (token == 0 || sessions.putIfAbsent(token, handler) != null);
+			this.token = token;
+		} else {
+			sessions.remove(token, handler);
+			token = 0;
+			remoteToken = 0;
+			clearRetained();
+		}
+	}
+
+	boolean isResumable() {
+		return token != 0;
+	}
+
+	/**
+	 * @return The token the other side sends to resume this session, 0 if it is not resumable.
+	 */
+	long getToken() {
+		return token;
+	}
+
+	/**
+	 * @return Whether both sides keep their frames until they are acknowledged, so the session can be resumed.
+	 */
+	boolean isEstablished() {
+		return token != 0 && remoteToken != 0;
+	}
+
+	boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Called when the handshake of the other side arrived.
+	 * 
+	 * @param remoteToken
+	 *            The token of the other side, 0 if it can't resume sessions.
+	 */
+	synchronized void onRemoteToken(long remoteToken) {
+		if (token == 0)
+			return;
+		if (remoteToken == 0)
+			setResumable(false); // Nobody acknowledges our frames
+		else
+			this.remoteToken = remoteToken;
+	}
+
+	// Sending side
+
+	/**
+	 * Counts a sequenced frame, called by the sending thread before the frame is written.
+	 * 
+	 * @param data
+	 *            Id and data of the frame, kept until the other side acknowledged it. <code>null</code> if the session is not established.
+	 */
+	synchronized void onSending(byte[] data) {
+		long sequence = ++sent;
+		if (data == null || !isEstablished())
+			return;
+		if (retained.isEmpty())
+			firstRetained = sequence;
+		retained.add(data);
+		retainedBytes += data.length;
+		handler.getMemoryBudget().forceReserve(data.length);
+	}
+
+	/**
+	 * @return Whether more frames can be retained. Sending waits for acknowledgements once {@link PacketHandler#RETRANSMIT_BUFFER} bytes are retained.
+	 */
+	boolean hasRoom() {
+		return retainedBytes < PacketHandler.RETRANSMIT_BUFFER;
+	}
+
+	/**
+	 * Drops the frames the other side received.
+	 * 
+	 * @param count
+	 *            The number of frames the other side received.
+	 */
+	void acknowledge(long count) {
+		boolean wasFull = !hasRoom();
+		synchronized (this) {
+			long released = 0;
+			while (!retained.isEmpty() && firstRetained <= count) {
+				released += retained.removeFirst().length;
+				firstRetained++;
+			}
+			retainedBytes -= released;
+			handler.getMemoryBudget().release(released);
+		}
+		DataSender sender = handler.getSender();
+		if (wasFull && sender != null)
+			sender.onPacketQueued(); // Wake up, packets may wait for room
+	}
+
+	/**
+	 * @return The frames not acknowledged yet, in order.
+	 */
+	synchronized List<byte[]> getRetained() {
+		return new ArrayList<byte[]>(retained);
+	}
+
+	/**
+	 * @return Whether all frames the other side is missing are retained.
+	 */
+	private boolean canReplay(long peerReceived) {
+		if (peerReceived > sent)
+			return false;
+		return peerReceived == sent || (!retained.isEmpty() && firstRetained <= peerReceived + 1);
+	}
+
+	private void clearRetained() {
+		handler.getMemoryBudget().release(retainedBytes);
+		retained.clear();
+		retainedBytes = 0;
+	}
+
+	// Receiving side
+
+	/**
+	 * Counts a frame read by a <code>DataReader</code>.
+	 * 
+	 * @param stream
+	 *            The stream the frame was read from.
+	 * @return Whether the frame is dispatched. Frames read from streams replaced by resuming are dropped (the other side sends them again), as well as frames
+	 *         arriving before the other side answered our request to resume.
+	 */
+	boolean onFrameReceived(InputStream stream, short id, int length) {
+		synchronized (this) {
+			if (stream != handler.in)
+				return false;
+			if (awaitingResume && id != IDRegistry.SESSION_PACKET)
+				return false; // Sent by the connection the other side accepted our streams with
+			if (!isSequenced(id))
+				return true;
+			received++;
+			if (!isEstablished())
+				return true;
+			unacknowledgedBytes += length + 4;
+			if (unacknowledgedBytes < PacketHandler.ACK_INTERVAL) {
+				if (ackTimeout == null) {
+					ackTimeout = HashedWheelTimer.getShared().schedule(new Runnable() {
+
+						@Override
+						public void run() {
+							sendAck();
+						}
+					}, PacketHandler.ACK_DELAY);
+				}
+				return true;
+			}
+		}
+		sendAck();
+		return true;
+	}
+
+	private void sendAck() {
+		long received;
+		synchronized (this) {
+			if (ackTimeout != null)
+				ackTimeout.cancel();
+			ackTimeout = null;
+			if (this.received == acknowledged || !isEstablished())
+				return;
+			received = acknowledged = this.received;
+			unacknowledgedBytes = 0;
+		}
+		DataSender sender = handler.getSender();
+		if (sender != null)
+			sender.sendPacket(new SessionPacket(SessionPacket.TYPE_ACK, 0, received));
+	}
+
+	// Resuming
+
+	/**
+	 * Called when reading or writing failed.
+	 * 
+	 * @param stream
+	 *            The stream that failed.
+	 * @return Whether the connection waits to be resumed instead of failing.
+	 */
+	boolean onStreamFailed(Object stream, IOException e) {
+		InputStream in;
+		OutputStream out;
+		synchronized (this) {
+			if (!isEstablished() || handler.isClosed())
+				return false;
+			if (stream != handler.in && stream != handler.out)
+				return true; // Replaced already
+			if (streamsFailed)
+				return true; // Noticed by the other thread
+			streamsFailed = true;
+			cause = e;
+			if (!suspended)
+				suspend();
+			in = handler.in;
+			out = handler.out;
+		}
+		closeQuietly(in, out); // Wakes up the reader or sender still using them
+		handler.logger.info("Session of connection '" + handler.getConnectionName() + "' suspended: " + e);
+		SessionListener listener = handler.getSessionListener();
+		if (listener != null)
+			listener.onSessionSuspended(handler, e);
+		return true;
+	}
+
+	private void suspend() {
+		suspended = true;
+		resumeTimeout = HashedWheelTimer.getShared().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				IOException cause;
+				synchronized (Session.this) {
+					if (!suspended)
+						return;
+					cause = Session.this.cause;
+				}
+				final IOException failure = new IOException("Session not resumed within " + PacketHandler.RESUME_TIMEOUT + " ms", cause);
+				// Failing notifies the listeners, don't block the timer thread
+				PacketHandler.TIMEOUT_EXECUTOR.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						handler.onConnectionFail(failure); // Doesn't wait for a ClosePacket, nothing can be sent while suspended
+					}
+				});
+			}
+		}, PacketHandler.RESUME_TIMEOUT);
+	}
+
+	private void onResumed() {
+		suspended = false;
+		streamsFailed = false;
+		awaitingResume = false;
+		cause = null;
+		if (resumeTimeout != null)
+			resumeTimeout.cancel();
+		resumeTimeout = null;
+	}
+
+	/**
+	 * Continues the session on new streams connected to the other side, which is asked to resume the session.
+	 */
+	void resume(InputStream in, OutputStream out) {
+		InputStream oldIn;
+		OutputStream oldOut;
+		long received;
+		synchronized (this) {
+			if (handler.isClosed())
+				throw new IllegalStateException("Connection closed");
+			if (!isEstablished())
+				throw new IllegalStateException("No resumable session established");
+			if (!suspended)
+				suspend();
+			oldIn = handler.in;
+			oldOut = handler.out;
+			handler.in = in;
+			handler.out = out;
+			streamsFailed = false;
+			awaitingResume = true;
+			received = this.received;
+		}
+		closeQuietly(oldIn, oldOut);
+		handler.getSender().reattach(out, new SessionPacket(SessionPacket.TYPE_RESUME, remoteToken, received), -1);
+		handler.startReader();
+	}
+
+	/**
+	 * @return Whether the session can be resumed by the other side, which received the given number of frames.
+	 */
+	synchronized boolean canAccept(long peerReceived) {
+		return isEstablished() && !handler.isClosed() && canReplay(peerReceived);
+	}
+
+	/**
+	 * Called when the other side asked to resume this session on new streams (received by another connection, which hands over its streams).
+	 * 
+	 * @param peerReceived
+	 *            The number of frames the other side received.
+	 * @return Whether the session continues on the given streams.
+	 */
+	boolean accept(InputStream in, OutputStream out, long peerReceived) {
+		InputStream oldIn;
+		OutputStream oldOut;
+		long received;
+		synchronized (this) {
+			if (!isEstablished() || handler.isClosed())
+				return false;
+			if (canReplay(peerReceived)) {
+				onResumed();
+				oldIn = handler.in;
+				oldOut = handler.out;
+				handler.in = in;
+				handler.out = out;
+				received = this.received;
+			} else {
+				oldIn = null;
+				oldOut = null;
+				received = -1;
+			}
+		}
+		if (received < 0) {
+			handler.onConnectionFail(new IOException("Session can not be resumed: Frames the other side is missing were not retained"));
+			return false;
+		}
+		closeQuietly(oldIn, oldOut);
+		acknowledge(peerReceived);
+		handler.getSender().reattach(out, new SessionPacket(SessionPacket.TYPE_RESUMED, 0, received), peerReceived);
+		handler.startReader();
+		onResumeCompleted();
+		return true;
+	}
+
+	/**
+	 * Called when the other side answered our request to resume.
+	 */
+	void onResumeAnswered(SessionPacket answer) {
+		boolean resumed;
+		synchronized (this) {
+			if (!awaitingResume)
+				return;
+			resumed = answer.getType() == SessionPacket.TYPE_RESUMED && canReplay(answer.getReceived());
+			if (resumed)
+				onResumed();
+		}
+		if (!resumed) {
+			if (answer.getType() == SessionPacket.TYPE_REJECTED)
+				handler.onConnectionFail(new IOException("The other side rejected resuming the session"));
+			else
+				handler.onConnectionFail(new IOException("Session can not be resumed: Frames the other side is missing were not retained"));
+			return;
+		}
+		acknowledge(answer.getReceived());
+		handler.getSender().onResumeAccepted(answer.getReceived());
+		onResumeCompleted();
+	}
+
+	private void onResumeCompleted() {
+		handler.resendCredit(); // Credit packets may have been lost
+		handler.logger.info("Session of connection '" + handler.getConnectionName() + "' resumed");
+		SessionListener listener = handler.getSessionListener();
+		if (listener != null)
+			listener.onSessionResumed(handler);
+	}
+
+	private static void closeQuietly(InputStream in, OutputStream out) {
+		try {
+			if (in != null)
+				in.close();
+		} catch (IOException e) {
+			;
+		}
+		try {
+			if (out != null)
+				out.close();
+		} catch (IOException e) {
+			;
+		}
+	}
+
+	/**
+	 * Called when the connection is closed.
+	 */
+	synchronized void close() {
+		setResumable(false);
+		if (ackTimeout != null)
+			ackTimeout.cancel();
+		if (resumeTimeout != null)
+			resumeTimeout.cancel();
+		ackTimeout = null;
+		resumeTimeout = null;
+		suspended = false;
+	}
+
+}
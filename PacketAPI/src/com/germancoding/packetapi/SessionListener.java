@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+/**
+ * Notified when the streams of a resumable session fail and when the session is resumed on new streams.
+ * 
+ * @see PacketHandler#setResumable(boolean)
+ * @see PacketHandler#setSessionListener(SessionListener)
+ */
+public interface SessionListener {
+
+	/**
+	 * Called when the streams of a connection with a resumable session failed. Instead of failing, the connection waits (at most
+	 * {@link PacketHandler#RESUME_TIMEOUT} ms) until it is resumed: Reconnect and call {@link PacketHandler#resume(java.io.InputStream, java.io.OutputStream)},
+	 * or wait until the other side reconnects. Packets sent in the meantime are queued.<br>
+	 * Called on the thread that noticed the failure (reader or sender), reconnecting here blocks it.
+	 * 
+	 * @param handler
+	 *            The suspended connection.
+	 * @param cause
+	 *            Why the streams failed.
+	 */
+	public void onSessionSuspended(PacketHandler handler, Throwable cause);
+
+	/**
+	 * Called when the session continues on new streams. Frames the other side missed are sent again before any other packet.
+	 * 
+	 * @param handler
+	 *            The resumed connection.
+	 */
+	public void onSessionResumed(PacketHandler handler);
+
+}
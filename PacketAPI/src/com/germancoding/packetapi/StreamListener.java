@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+/**
+ * Notified about the logical streams of a connection.
+ * 
+ * @see PacketHandler#openStream()
+ * @see PacketHandler#setStreamListener(StreamListener)
+ */
+public interface StreamListener {
+
+	/**
+	 * Called when the remote side opened a stream, before its first packet is passed to {@link #onPacketReceived(PacketStream, Packet)}.
+	 * 
+	 * @param handler
+	 *            The connection the stream belongs to.
+	 * @param stream
+	 *            The new stream. Packets sent on it are received by the remote side in order.
+	 */
+	public void onStreamOpened(PacketHandler handler, PacketStream stream);
+
+	/**
+	 * Called for every packet received on a stream. This method is called on the thread processing packets (usually the <code>DataReader</code>).
+	 * 
+	 * @param stream
+	 *            The stream the packet was sent on.
+	 * @param packet
+	 *            The packet.
+	 */
+	public void onPacketReceived(PacketStream stream, Packet packet);
+
+	/**
+	 * Called when the remote side closed a stream or the connection was closed. Nothing can be sent on the stream anymore.
+	 * 
+	 * @param stream
+	 *            The closed stream.
+	 */
+	public void onStreamClosed(PacketStream stream);
+
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi;
+
+/**
+ * Notified when the remote side starts a large transfer.
+ * 
+ * @see PacketHandler#sendTransfer(short, java.io.InputStream)
+ * @see PacketHandler#setTransferListener(TransferListener)
+ */
+public interface TransferListener {
+
+	/**
+	 * Called when the first chunk of a transfer arrives. This method is called on the thread processing packets (usually the <code>DataReader</code>), so
+	 * <b>don't read the stream on this thread</b>: Hand it to another thread and return. The data can be read while it's still being received.
+	 * 
+	 * @param handler
+	 *            The handler receiving the transfer.
+	 * @param transfer
+	 *            A stream containing the data of the transfer.
+	 */
+	public void onTransferStarted(PacketHandler handler, IncomingTransfer transfer);
+
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.annotation;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * Base class for packets annotated with {@link SerializedPacket}. The <code>handle()</code> and <code>prepare()</code> functions are implemented
+ * by the codec generated at compile time, subclasses only declare their fields.<br>
+ * <br>
+ * Example:<br>
+ * <code>@SerializedPacket(id = 5)<br>
+ * public class ChatPacket extends AnnotatedPacket {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;@PacketField String message;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;@PacketField long timestamp;<br>
+ * }</code>
+ *
+ * @see PacketField
+ */
+public abstract class AnnotatedPacket extends Packet {
+
+	@SuppressWarnings("rawtypes")
+	private final PacketCodec codec;
+
+	public AnnotatedPacket() {
+		this.codec = PacketCodecs.forClass(getClass());
+	}
+
+	@Override
+	public short getId() {
+		return codec.getId();
+	}
+
+	@Override
+	public boolean isCritical() {
+		return codec.isCritical();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void handle(DataInputStream in) throws IOException {
+		codec.read(this, in);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public PacketWriter prepare() throws IOException {
+		return codec.write(this);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void decode(ByteBuffer in) throws IOException {
+		codec.decode(this, in);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void encode(ByteBuffer out) throws IOException {
+		codec.encode(this, out);
+	}
+
+}
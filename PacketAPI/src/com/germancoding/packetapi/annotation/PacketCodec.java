@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.annotation;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * Reads and writes one packet type. Implementations are generated by the {@link PacketCodecProcessor} for every class annotated with {@link SerializedPacket},
+ * applications usually don't implement this interface themselves.
+ *
+ * @param <T>
+ *            The packet type.
+ */
+public interface PacketCodec<T extends Packet> {
+
+	/**
+	 * @return The id of the packet type.
+	 */
+	public short getId();
+
+	/**
+	 * @return Whether the packet type is critical.
+	 */
+	public boolean isCritical();
+
+	/**
+	 * @return The class of the packet type.
+	 */
+	public Class<T> getPacketClass();
+
+	/**
+	 * Creates a new packet instance using the nullary constructor, without reflection.
+	 *
+	 * @return A new, empty packet.
+	 */
+	public T newInstance();
+
+	/**
+	 * @return The size of the packet data (excluding length and id) in bytes if every packet of this type has the same size, -1 otherwise.
+	 */
+	public int getFixedSize();
+
+	/**
+	 * Reads all fields of the given packet.
+	 *
+	 * @see Packet#handle(DataInputStream)
+	 */
+	public void read(T packet, DataInputStream in) throws IOException;
+
+	/**
+	 * Writes all fields of the given packet into a new <code>PacketWriter</code>.
+	 *
+	 * @see Packet#prepare()
+	 */
+	public PacketWriter write(T packet) throws IOException;
+
+	/**
+	 * Reads all fields of the given packet from a buffer.
+	 *
+	 * @see Packet#decode(ByteBuffer)
+	 */
+	public void decode(T packet, ByteBuffer in) throws IOException;
+
+	/**
+	 * Writes all fields of the given packet into a buffer.
+	 *
+	 * @see Packet#encode(ByteBuffer)
+	 */
+	public void encode(T packet, ByteBuffer out) throws IOException;
+
+}
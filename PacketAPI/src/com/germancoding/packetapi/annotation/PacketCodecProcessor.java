@@ -0,0 +1,598 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.annotation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that generates the codecs for classes annotated with {@link SerializedPacket} and {@link PacketStruct}.<br>
+ * The generated code reads and writes every {@link PacketField} directly (no reflection, no lookups) in declaration order. If all fields have a fixed size,
+ * the size of the packet is computed at compile time so the <code>PacketWriter</code> never needs to grow its buffer.<br>
+ * The processor is registered in <code>META-INF/services</code>, so it is picked up automatically when the PacketAPI jar is on the compile classpath.
+ */
+@SupportedAnnotationTypes({ "com.germancoding.packetapi.annotation.SerializedPacket", "com.germancoding.packetapi.annotation.PacketStruct",
+		"com.germancoding.packetapi.annotation.PacketField" })
+public class PacketCodecProcessor extends AbstractProcessor {
+
+	private static final String PACKET_WRITER = "com.germancoding.packetapi.PacketWriter";
+	private static final String INPUT = "java.io.DataInputStream";
+	private static final String BUFFER = "java.nio.ByteBuffer";
+	private static final String BUFFERS = "com.germancoding.packetapi.PacketBuffers";
+	private static final String IO_EXCEPTION = "java.io.IOException";
+	private static final String SERVICE_FILE = "META-INF/services/" + PacketCodec.class.getName();
+
+	private Set<String> packetCodecs = new TreeSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (Element element : roundEnv.getElementsAnnotatedWith(PacketStruct.class)) {
+			if (checkClass(element)) {
+				generateStructCodec((TypeElement) element);
+			}
+		}
+		for (Element element : roundEnv.getElementsAnnotatedWith(SerializedPacket.class)) {
+			if (checkClass(element)) {
+				TypeElement type = (TypeElement) element;
+				if (!processingEnv.getTypeUtils().isSubtype(type.asType(), getType(AnnotatedPacket.class.getName()))) {
+					error(type, "@SerializedPacket classes must extend " + AnnotatedPacket.class.getName());
+					continue;
+				}
+				generatePacketCodec(type);
+			}
+		}
+		if (roundEnv.processingOver() && !packetCodecs.isEmpty()) {
+			writeServiceFile();
+		}
+		return true;
+	}
+
+	// Checks
+
+	private boolean checkClass(Element element) {
+		if (element.getKind() != ElementKind.CLASS) {
+			error(element, "Only classes can be serialized");
+			return false;
+		}
+		TypeElement type = (TypeElement) element;
+		if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(type, "Serialized classes can not be abstract");
+			return false;
+		}
+		if (!type.getTypeParameters().isEmpty()) {
+			error(type, "Serialized classes can not have type parameters");
+			return false;
+		}
+		if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+			error(type, "Nested serialized classes must be static");
+			return false;
+		}
+		if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+			error(type, "Serialized classes must be top level or static nested classes");
+			return false;
+		}
+		List<ExecutableElement> constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+		for (ExecutableElement constructor : constructors) {
+			if (constructor.getParameters().isEmpty()) {
+				if (constructor.getModifiers().contains(Modifier.PRIVATE)) {
+					error(constructor, "The nullary constructor of a serialized class can not be private");
+					return false;
+				}
+				return true;
+			}
+		}
+		if (!constructors.isEmpty()) {
+			error(type, "Serialized classes need a nullary constructor");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Collects all annotated fields of the given type and its super classes (super classes first) and checks whether they can be serialized.
+	 *
+	 * @return The fields or <code>null</code> if there are errors.
+	 */
+	private List<VariableElement> collectFields(TypeElement type) {
+		return collectFields(type, true);
+	}
+
+	private List<VariableElement> collectFields(TypeElement type, boolean reportErrors) {
+		List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+		TypeElement current = type;
+		while (current != null && !current.getQualifiedName().contentEquals(AnnotatedPacket.class.getName()) && !current.getQualifiedName().contentEquals("java.lang.Object")) {
+			hierarchy.add(0, current);
+			TypeMirror superclass = current.getSuperclass();
+			current = superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+		}
+
+		String codecPackage = getPackage(type);
+		List<VariableElement> fields = new ArrayList<VariableElement>();
+		boolean failed = false;
+		for (TypeElement declaring : hierarchy) {
+			for (VariableElement field : ElementFilter.fieldsIn(declaring.getEnclosedElements())) {
+				if (field.getAnnotation(PacketField.class) == null)
+					continue;
+				Set<Modifier> modifiers = field.getModifiers();
+				if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.FINAL)) {
+					if (reportErrors)
+						error(field, "@PacketField fields can not be private, static or final");
+					failed = true;
+				} else if (!modifiers.contains(Modifier.PUBLIC) && !getPackage(declaring).equals(codecPackage)) {
+					if (reportErrors)
+						error(field, "@PacketField fields declared in another package than " + type.getSimpleName() + " must be public");
+					failed = true;
+				} else if (!isSupported(field.asType())) {
+					if (reportErrors)
+						error(field, "Unsupported type " + field.asType() + ". Supported are primitives, String, @PacketStruct classes and arrays of these types");
+					failed = true;
+				} else {
+					fields.add(field);
+				}
+			}
+		}
+		return failed ? null : fields;
+	}
+
+	private boolean isSupported(TypeMirror type) {
+		if (type.getKind().isPrimitive())
+			return true;
+		if (type.getKind() == TypeKind.ARRAY)
+			return isSupported(((ArrayType) type).getComponentType());
+		return isString(type) || isStruct(type);
+	}
+
+	// Code generation
+
+	private void generatePacketCodec(TypeElement type) {
+		List<VariableElement> fields = collectFields(type);
+		if (fields == null)
+			return;
+		SerializedPacket annotation = type.getAnnotation(SerializedPacket.class);
+		String typeName = type.getQualifiedName().toString();
+		String codecName = getCodecSimpleName(type);
+		int fixedSize = fixedSize(fields, new HashSet<String>());
+
+		StringBuilder sb = new StringBuilder();
+		appendHeader(sb, type, codecName, " implements " + PacketCodec.class.getName() + "<" + typeName + ">");
+		sb.append("\tpublic static final short ID = ").append(annotation.id()).append(";\n");
+		sb.append("\tpublic static final boolean CRITICAL = ").append(annotation.critical()).append(";\n");
+		sb.append("\tpublic static final int FIXED_SIZE = ").append(fixedSize).append(";\n");
+		sb.append("\tprivate static final int SIZE_HINT = ").append(sizeHint(fields, fixedSize)).append(";\n\n");
+
+		sb.append("\t@Override\n\tpublic short getId() {\n\t\treturn ID;\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic boolean isCritical() {\n\t\treturn CRITICAL;\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic Class<").append(typeName).append("> getPacketClass() {\n\t\treturn ").append(typeName).append(".class;\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic ").append(typeName).append(" newInstance() {\n\t\treturn new ").append(typeName).append("();\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic int getFixedSize() {\n\t\treturn FIXED_SIZE;\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic void read(").append(typeName).append(" packet, ").append(INPUT).append(" in) throws ").append(IO_EXCEPTION).append(" {\n");
+		sb.append("\t\treadFields(packet, in);\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic ").append(PACKET_WRITER).append(" write(").append(typeName).append(" packet) throws ").append(IO_EXCEPTION).append(" {\n");
+		sb.append("\t\t").append(PACKET_WRITER).append(" out = new ").append(PACKET_WRITER).append("(ID, 2 + SIZE_HINT);\n");
+		sb.append("\t\twriteFields(packet, out);\n\t\treturn out;\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic void decode(").append(typeName).append(" packet, ").append(BUFFER).append(" in) throws ").append(IO_EXCEPTION).append(" {\n");
+		sb.append("\t\tdecodeFields(packet, in);\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic void encode(").append(typeName).append(" packet, ").append(BUFFER).append(" out) throws ").append(IO_EXCEPTION).append(" {\n");
+		sb.append("\t\tencodeFields(packet, out);\n\t}\n\n");
+		appendFieldMethods(sb, type, fields);
+		sb.append("}\n");
+
+		if (writeSource(type, codecName, sb))
+			packetCodecs.add(getPackagePrefix(type) + codecName);
+	}
+
+	private void generateStructCodec(TypeElement type) {
+		List<VariableElement> fields = collectFields(type);
+		if (fields == null)
+			return;
+		String typeName = type.getQualifiedName().toString();
+		String codecName = getCodecSimpleName(type);
+
+		StringBuilder sb = new StringBuilder();
+		appendHeader(sb, type, codecName, "");
+		sb.append("\tpublic static final int FIXED_SIZE = ").append(fixedSize(fields, new HashSet<String>())).append(";\n\n");
+		sb.append("\tprivate ").append(codecName).append("() {\n\t}\n\n");
+		sb.append("\tpublic static ").append(typeName).append(" read(").append(INPUT).append(" in) throws ").append(IO_EXCEPTION).append(" {\n");
+		sb.append("\t\t").append(typeName).append(" value = new ").append(typeName).append("();\n");
+		sb.append("\t\treadFields(value, in);\n\t\treturn value;\n\t}\n\n");
+		sb.append("\tpublic static void write(").append(typeName).append(" value, ").append(PACKET_WRITER).append(" out) throws ").append(IO_EXCEPTION).append(" {\n");
+		sb.append("\t\twriteFields(value, out);\n\t}\n\n");
+		sb.append("\tpublic static ").append(typeName).append(" decode(").append(BUFFER).append(" in) throws ").append(IO_EXCEPTION).append(" {\n");
+		sb.append("\t\t").append(typeName).append(" value = new ").append(typeName).append("();\n");
+		sb.append("\t\tdecodeFields(value, in);\n\t\treturn value;\n\t}\n\n");
+		sb.append("\tpublic static void encode(").append(typeName).append(" value, ").append(BUFFER).append(" out) throws ").append(IO_EXCEPTION).append(" {\n");
+		sb.append("\t\tencodeFields(value, out);\n\t}\n\n");
+		appendFieldMethods(sb, type, fields);
+		sb.append("}\n");
+
+		writeSource(type, codecName, sb);
+	}
+
+	private void appendHeader(StringBuilder sb, TypeElement type, String codecName, String implementsClause) {
+		String packageName = getPackage(type);
+		if (!packageName.isEmpty())
+			sb.append("package ").append(packageName).append(";\n\n");
+		sb.append("/**\n * Codec for {@link ").append(type.getQualifiedName()).append("}.<br>\n");
+		sb.append(" * Generated by the ").append(PacketCodecProcessor.class.getSimpleName()).append(", do not edit.\n */\n");
+		sb.append("public final class ").append(codecName).append(implementsClause).append(" {\n\n");
+	}
+
+	private void appendFieldMethods(StringBuilder sb, TypeElement type, List<VariableElement> fields) {
+		appendReadMethod(sb, type, fields, "readFields", INPUT, false);
+		appendWriteMethod(sb, type, fields, "writeFields", PACKET_WRITER, false);
+		appendReadMethod(sb, type, fields, "decodeFields", BUFFER, true);
+		appendWriteMethod(sb, type, fields, "encodeFields", BUFFER, true);
+	}
+
+	private void appendReadMethod(StringBuilder sb, TypeElement type, List<VariableElement> fields, String name, String inputType, boolean buffer) {
+		sb.append("\tpublic static void ").append(name).append("(").append(type.getQualifiedName()).append(" value, ").append(inputType).append(" in) throws ").append(IO_EXCEPTION).append(" {\n");
+		for (VariableElement field : fields) {
+			sb.append("\t\t{ // ").append(field.getSimpleName()).append("\n");
+			appendRead(sb, "\t\t\t", "value." + field.getSimpleName(), field.asType(), isNullable(field), 0, buffer);
+			sb.append("\t\t}\n");
+		}
+		sb.append("\t}\n\n");
+	}
+
+	private void appendWriteMethod(StringBuilder sb, TypeElement type, List<VariableElement> fields, String name, String outputType, boolean buffer) {
+		sb.append("\tpublic static void ").append(name).append("(").append(type.getQualifiedName()).append(" value, ").append(outputType).append(" out) throws ").append(IO_EXCEPTION).append(" {\n");
+		for (VariableElement field : fields) {
+			sb.append("\t\t{ // ").append(field.getSimpleName()).append("\n");
+			appendWrite(sb, "\t\t\t", "value." + field.getSimpleName(), field.asType(), isNullable(field), 0, type.getSimpleName() + "." + field.getSimpleName(), buffer);
+			sb.append("\t\t}\n");
+		}
+		sb.append("\t}\n\n");
+	}
+
+	/**
+	 * Appends the statements writing the given expression. If <code>buffer</code> is true, <code>out</code> is a ByteBuffer, a PacketWriter otherwise.
+	 */
+	private void appendWrite(StringBuilder sb, String indent, String expression, TypeMirror type, boolean nullable, int depth, String description, boolean buffer) {
+		if (type.getKind().isPrimitive()) {
+			sb.append(indent).append(writePrimitive(type.getKind(), expression, buffer)).append(";\n");
+			return;
+		}
+		String v = "v" + depth;
+		sb.append(indent).append(typeString(type)).append(" ").append(v).append(" = ").append(expression).append(";\n");
+		if (type.getKind() == TypeKind.ARRAY) {
+			TypeMirror component = ((ArrayType) type).getComponentType();
+			sb.append(indent).append("if (").append(v).append(" == null) {\n");
+			sb.append(indent).append("\t").append(writePrimitive(TypeKind.INT, "-1", buffer)).append(";\n");
+			sb.append(indent).append("} else {\n");
+			sb.append(indent).append("\t").append(writePrimitive(TypeKind.INT, v + ".length", buffer)).append(";\n");
+			if (component.getKind() == TypeKind.BYTE) {
+				sb.append(indent).append("\tout.").append(buffer ? "put" : "write").append("(").append(v).append(");\n");
+			} else {
+				String i = "i" + depth;
+				sb.append(indent).append("\tfor (int ").append(i).append(" = 0; ").append(i).append(" < ").append(v).append(".length; ").append(i).append("++) {\n");
+				appendWrite(sb, indent + "\t\t", v + "[" + i + "]", component, nullable, depth + 1, description, buffer);
+				sb.append(indent).append("\t}\n");
+			}
+			sb.append(indent).append("}\n");
+			return;
+		}
+		String valueWrite;
+		if (isString(type)) {
+			valueWrite = buffer ? BUFFERS + ".putUTF(out, " + v + ");" : "out.writeUTF(" + v + ");";
+		} else {
+			valueWrite = getCodecReference(type) + (buffer ? ".encode(" : ".write(") + v + ", out);";
+		}
+		if (nullable) {
+			sb.append(indent).append(writePrimitive(TypeKind.BOOLEAN, v + " != null", buffer)).append(";\n");
+			sb.append(indent).append("if (").append(v).append(" != null)\n");
+			sb.append(indent).append("\t").append(valueWrite).append("\n");
+		} else {
+			sb.append(indent).append("if (").append(v).append(" == null)\n");
+			sb.append(indent).append("\tthrow new ").append(IO_EXCEPTION).append("(\"").append(description).append(" is null\");\n");
+			sb.append(indent).append(valueWrite).append("\n");
+		}
+	}
+
+	/**
+	 * Appends the statements reading a value into the given target. If <code>buffer</code> is true, <code>in</code> is a ByteBuffer, a DataInputStream otherwise.
+	 */
+	private void appendRead(StringBuilder sb, String indent, String target, TypeMirror type, boolean nullable, int depth, boolean buffer) {
+		if (type.getKind().isPrimitive()) {
+			sb.append(indent).append(target).append(" = ").append(readPrimitive(type.getKind(), buffer)).append(";\n");
+			return;
+		}
+		if (type.getKind() == TypeKind.ARRAY) {
+			TypeMirror component = ((ArrayType) type).getComponentType();
+			String n = "n" + depth;
+			String a = "a" + depth;
+			sb.append(indent).append("int ").append(n).append(" = ").append(readPrimitive(TypeKind.INT, buffer)).append(";\n");
+			sb.append(indent).append("if (").append(n).append(" < 0) {\n");
+			sb.append(indent).append("\t").append(target).append(" = null;\n");
+			sb.append(indent).append("} else {\n");
+			int minSize = minSize(component, nullable, new HashSet<String>());
+			if (minSize > 0) {
+				// Never allocate more than the remaining packet data could possibly fill
+				sb.append(indent).append("\tif ((long) ").append(n).append(" * ").append(minSize).append(" > in.").append(buffer ? "remaining" : "available").append("())\n");
+				sb.append(indent).append("\t\tthrow new ").append(IO_EXCEPTION).append("(\"Array length \" + ").append(n).append(" + \" exceeds the packet size\");\n");
+			}
+			sb.append(indent).append("\t").append(typeString(type)).append(" ").append(a).append(" = ").append(newArray(component, n)).append(";\n");
+			if (component.getKind() == TypeKind.BYTE) {
+				sb.append(indent).append("\tin.").append(buffer ? "get" : "readFully").append("(").append(a).append(");\n");
+			} else {
+				String i = "i" + depth;
+				sb.append(indent).append("\tfor (int ").append(i).append(" = 0; ").append(i).append(" < ").append(n).append("; ").append(i).append("++) {\n");
+				appendRead(sb, indent + "\t\t", a + "[" + i + "]", component, nullable, depth + 1, buffer);
+				sb.append(indent).append("\t}\n");
+			}
+			sb.append(indent).append("\t").append(target).append(" = ").append(a).append(";\n");
+			sb.append(indent).append("}\n");
+			return;
+		}
+		String valueRead;
+		if (isString(type)) {
+			valueRead = buffer ? BUFFERS + ".getUTF(in)" : "in.readUTF()";
+		} else {
+			valueRead = getCodecReference(type) + (buffer ? ".decode(in)" : ".read(in)");
+		}
+		if (nullable) {
+			sb.append(indent).append(target).append(" = ").append(readPrimitive(TypeKind.BOOLEAN, buffer)).append(" ? ").append(valueRead).append(" : null;\n");
+		} else {
+			sb.append(indent).append(target).append(" = ").append(valueRead).append(";\n");
+		}
+	}
+
+	// Size computation
+
+	/**
+	 * @return The size of all fields in bytes if it is always the same, -1 otherwise.
+	 */
+	private int fixedSize(List<VariableElement> fields, Set<String> visiting) {
+		int size = 0;
+		for (VariableElement field : fields) {
+			int fieldSize = fixedSize(field.asType(), isNullable(field), visiting);
+			if (fieldSize < 0)
+				return -1;
+			size += fieldSize;
+		}
+		return size;
+	}
+
+	private int fixedSize(TypeMirror type, boolean nullable, Set<String> visiting) {
+		if (type.getKind().isPrimitive())
+			return primitiveSize(type.getKind());
+		if (nullable || type.getKind() == TypeKind.ARRAY || isString(type))
+			return -1;
+		TypeElement struct = (TypeElement) ((DeclaredType) type).asElement();
+		if (!visiting.add(struct.getQualifiedName().toString()))
+			return -1; // Recursive structure
+		List<VariableElement> fields = collectFields(struct, false);
+		int size = fields == null ? -1 : fixedSize(fields, visiting);
+		visiting.remove(struct.getQualifiedName().toString());
+		return size;
+	}
+
+	private int minSize(TypeMirror type, boolean nullable, Set<String> visiting) {
+		if (type.getKind().isPrimitive())
+			return primitiveSize(type.getKind());
+		if (type.getKind() == TypeKind.ARRAY)
+			return 4;
+		if (nullable)
+			return 1;
+		if (isString(type))
+			return 2;
+		TypeElement struct = (TypeElement) ((DeclaredType) type).asElement();
+		if (!visiting.add(struct.getQualifiedName().toString()))
+			return 0;
+		int size = 0;
+		List<VariableElement> fields = collectFields(struct, false);
+		if (fields != null) {
+			for (VariableElement field : fields) {
+				size += minSize(field.asType(), isNullable(field), visiting);
+			}
+		}
+		visiting.remove(struct.getQualifiedName().toString());
+		return size;
+	}
+
+	private int sizeHint(List<VariableElement> fields, int fixedSize) {
+		if (fixedSize >= 0)
+			return fixedSize;
+		int size = 0;
+		for (VariableElement field : fields) {
+			int fieldSize = fixedSize(field.asType(), isNullable(field), new HashSet<String>());
+			size += fieldSize >= 0 ? fieldSize : 32; // Rough guess for strings and arrays
+		}
+		return size;
+	}
+
+	private static int primitiveSize(TypeKind kind) {
+		switch (kind) {
+		case BOOLEAN:
+		case BYTE:
+			return 1;
+		case SHORT:
+		case CHAR:
+			return 2;
+		case INT:
+		case FLOAT:
+			return 4;
+		case LONG:
+		case DOUBLE:
+			return 8;
+		default:
+			throw new IllegalArgumentException("Not a primitive: " + kind);
+		}
+	}
+
+	private static String writePrimitive(TypeKind kind, String expression, boolean buffer) {
+		if (buffer) {
+			switch (kind) {
+			case BOOLEAN:
+				return "out.put((byte) ((" + expression + ") ? 1 : 0))";
+			case BYTE:
+				return "out.put(" + expression + ")";
+			default:
+				return "out.put" + primitiveName(kind) + "(" + expression + ")";
+			}
+		}
+		return "out.write" + primitiveName(kind) + "(" + expression + ")";
+	}
+
+	private static String readPrimitive(TypeKind kind, boolean buffer) {
+		if (buffer) {
+			switch (kind) {
+			case BOOLEAN:
+				return "(in.get() != 0)";
+			case BYTE:
+				return "in.get()";
+			default:
+				return "in.get" + primitiveName(kind) + "()";
+			}
+		}
+		return "in.read" + primitiveName(kind) + "()";
+	}
+
+	private static String primitiveName(TypeKind kind) {
+		String name = kind.name();
+		return name.charAt(0) + name.substring(1).toLowerCase();
+	}
+
+	// Utilities
+
+	private String typeString(TypeMirror type) {
+		if (type.getKind() == TypeKind.ARRAY)
+			return typeString(((ArrayType) type).getComponentType()) + "[]";
+		if (type.getKind() == TypeKind.DECLARED)
+			return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+		return type.getKind().name().toLowerCase();
+	}
+
+	private String newArray(TypeMirror component, String length) {
+		String dimensions = "";
+		while (component.getKind() == TypeKind.ARRAY) {
+			dimensions += "[]";
+			component = ((ArrayType) component).getComponentType();
+		}
+		return "new " + typeString(component) + "[" + length + "]" + dimensions;
+	}
+
+	private boolean isString(TypeMirror type) {
+		return type.getKind() == TypeKind.DECLARED && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().contentEquals("java.lang.String");
+	}
+
+	private boolean isStruct(TypeMirror type) {
+		return type.getKind() == TypeKind.DECLARED && ((DeclaredType) type).asElement().getAnnotation(PacketStruct.class) != null;
+	}
+
+	private boolean isNullable(VariableElement field) {
+		return field.getAnnotation(PacketField.class).nullable();
+	}
+
+	private String getCodecReference(TypeMirror structType) {
+		TypeElement struct = (TypeElement) ((DeclaredType) structType).asElement();
+		return getPackagePrefix(struct) + getCodecSimpleName(struct);
+	}
+
+	private String getCodecSimpleName(TypeElement type) {
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		return binaryName.substring(binaryName.lastIndexOf('.') + 1).replace('$', '_') + PacketCodecs.CODEC_SUFFIX;
+	}
+
+	private String getPackage(TypeElement type) {
+		return processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+	}
+
+	private String getPackagePrefix(TypeElement type) {
+		String packageName = getPackage(type);
+		return packageName.isEmpty() ? "" : packageName + ".";
+	}
+
+	private TypeMirror getType(String name) {
+		return processingEnv.getElementUtils().getTypeElement(name).asType();
+	}
+
+	private boolean writeSource(TypeElement type, String codecName, StringBuilder source) {
+		try {
+			JavaFileObject file = processingEnv.getFiler().createSourceFile(getPackagePrefix(type) + codecName, type);
+			Writer writer = file.openWriter();
+			try {
+				writer.write(source.toString());
+			} finally {
+				writer.close();
+			}
+			return true;
+		} catch (IOException e) {
+			error(type, "Failed to write codec " + codecName + ": " + e);
+			return false;
+		}
+	}
+
+	private void writeServiceFile() {
+		try {
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+			Writer writer = file.openWriter();
+			try {
+				for (String codec : packetCodecs) {
+					writer.write(codec);
+					writer.write('\n');
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Kind.ERROR, "Failed to write " + SERVICE_FILE + ": " + e);
+		}
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Kind.ERROR, message, element);
+	}
+
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.annotation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import com.germancoding.packetapi.Packet;
+
+/**
+ * Looks up the codecs generated by the {@link PacketCodecProcessor}.
+ */
+public final class PacketCodecs {
+
+	/** Suffix appended to the (flattened) class name of a packet to get the name of the generated codec **/
+	public static final String CODEC_SUFFIX = "_PacketCodec";
+
+	// Reflection is only used once per class, the result is cached by the JVM
+	private static final ClassValue<PacketCodec<?>> CODECS = new ClassValue<PacketCodec<?>>() {
+
+		@Override
+		protected PacketCodec<?> computeValue(Class<?> type) {
+			try {
+				Class<?> codecClass = Class.forName(getCodecName(type), true, type.getClassLoader());
+				return (PacketCodec<?>) codecClass.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("No generated codec found for " + type.getName() + ". Is the annotation processor enabled?", e);
+			}
+		}
+	};
+
+	private PacketCodecs() {
+	}
+
+	/**
+	 * @param packetClass
+	 *            A class annotated with {@link SerializedPacket}.
+	 * @return The generated codec of the given packet class.
+	 * @throws IllegalStateException
+	 *             If there is no generated codec for this class.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Packet> PacketCodec<T> forClass(Class<T> packetClass) {
+		return (PacketCodec<T>) CODECS.get(packetClass);
+	}
+
+	/**
+	 * @return All codecs listed in <code>META-INF/services</code> files visible to the given class loader.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static List<PacketCodec<?>> loadAll(ClassLoader loader) {
+		List<PacketCodec<?>> codecs = new ArrayList<PacketCodec<?>>();
+		for (PacketCodec codec : ServiceLoader.load(PacketCodec.class, loader)) {
+			codecs.add(codec);
+		}
+		return codecs;
+	}
+
+	static String getCodecName(Class<?> type) {
+		String name = type.getName();
+		int packageEnd = name.lastIndexOf('.');
+		return name.substring(0, packageEnd + 1) + name.substring(packageEnd + 1).replace('$', '_') + CODEC_SUFFIX;
+	}
+
+}
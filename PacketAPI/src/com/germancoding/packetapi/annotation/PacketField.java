@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a {@link SerializedPacket} or {@link PacketStruct} that is written to and read from the network.<br>
+ * Fields are serialized in the order they are declared in (fields of super classes first), so reading and writing can never get out of order.<br>
+ * <br>
+ * Supported types are all primitives, <code>String</code>, types annotated with {@link PacketStruct} and (nested) arrays of these types.
+ * The field must not be private, final or static, since the generated code accesses it directly.<br>
+ * Arrays are prefixed with their length (as an int, -1 for <code>null</code>). Strings are encoded like <code>DataOutput.writeUTF()</code>.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface PacketField {
+
+	/**
+	 * @return Whether a String or struct value (or the elements of such an array) may be <code>null</code>. If true, each value is prefixed with a boolean.
+	 *         Writing <code>null</code> into a non-nullable field fails with an IOException. Default is false.
+	 */
+	boolean nullable() default false;
+
+}
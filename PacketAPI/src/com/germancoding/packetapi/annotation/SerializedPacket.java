@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a subclass of {@link AnnotatedPacket} whose serialization code should be generated at compile time.<br>
+ * The {@link PacketCodecProcessor} generates a <code>&lt;ClassName&gt;_PacketCodec</code> class in the same package which reads and writes
+ * all fields annotated with {@link PacketField} in their declaration order. The generated codec is also listed in
+ * <code>META-INF/services</code> so it can be registered with {@link com.germancoding.packetapi.PacketHandler#registerGeneratedPackets()}.
+ *
+ * @see PacketField
+ * @see PacketStruct
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface SerializedPacket {
+
+	/**
+	 * @return The id of the packet. Note: Please use only positive numbers, negative ids are reserved for default packets.
+	 */
+	short id();
+
+	/**
+	 * @return Whether the packet is critical.
+	 * @see com.germancoding.packetapi.Packet#isCritical()
+	 */
+	boolean critical() default false;
+
+}
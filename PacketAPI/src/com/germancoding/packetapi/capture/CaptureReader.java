@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the frames of a capture written by {@link PacketCapture}, segment by segment in the order they were recorded. A capture can be read while it is
+ * still being written, but frames recorded after the reader reached the end of a segment are missed.
+ */
+public class CaptureReader implements Closeable {
+
+	private final File directory;
+	private final String name;
+	private MappedByteBuffer segment; // Null once the end was reached
+	private int segmentIndex = -1;
+	private long startMillis = -1;
+
+	/**
+	 * @param directory
+	 *            The directory containing the segments.
+	 * @param name
+	 *            The name of the capture.
+	 * @throws FileNotFoundException
+	 *             If there is no capture with the given name.
+	 * @throws IOException
+	 *             If the first segment can not be read or is not a capture.
+	 */
+	public CaptureReader(File directory, String name) throws IOException {
+		this.directory = directory;
+		this.name = name;
+		if (!nextSegment())
+			throw new FileNotFoundException("No capture named '" + name + "' in " + directory);
+	}
+
+	/**
+	 * @return The next frame or <code>null</code> if all frames were read.
+	 * @throws IOException
+	 *             If a segment can not be read or is corrupted.
+	 */
+	public CapturedFrame next() throws IOException {
+		while (segment != null) {
+			if (segment.remaining() >= PacketCapture.RECORD_HEADER_SIZE) {
+				int length = segment.getInt();
+				if (length > 0) { // Zero marks the end of the segment
+					long timestamp = segment.getLong();
+					byte direction = segment.get();
+					if (length < 2 || length > segment.remaining())
+						throw new IOException("Corrupted record of " + length + " bytes in segment " + PacketCapture.segmentFile(directory, name, segmentIndex));
+					byte[] data = new byte[length];
+					segment.get(data);
+					return new CapturedFrame(timestamp, direction, data);
+				}
+			}
+			if (!nextSegment())
+				segment = null;
+		}
+		return null;
+	}
+
+	private boolean nextSegment() throws IOException {
+		File file = PacketCapture.segmentFile(directory, name, segmentIndex + 1);
+		if (!file.isFile())
+			return false;
+		MappedByteBuffer next;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			next = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (next.remaining() < PacketCapture.HEADER_SIZE || next.getInt() != PacketCapture.MAGIC)
+			throw new IOException("Not a packet capture: " + file);
+		int version = next.getInt();
+		if (version != PacketCapture.VERSION)
+			throw new IOException("Unsupported capture version " + version + ": " + file);
+		long start = next.getLong();
+		next.getInt(); // Segment index
+		next.getInt(); // Reserved
+		if (startMillis != -1 && start != startMillis)
+			return false; // Left over by an older capture
+		startMillis = start;
+		segmentIndex++;
+		segment = next;
+		return true;
+	}
+
+	/**
+	 * @return The time the capture was started, in milliseconds since the epoch.
+	 */
+	public long getStartTime() {
+		return startMillis;
+	}
+
+	/**
+	 * @return The index of the segment currently read, starting at 0.
+	 */
+	public int getSegment() {
+		return segmentIndex;
+	}
+
+	@Override
+	public void close() {
+		segment = null;
+	}
+
+}
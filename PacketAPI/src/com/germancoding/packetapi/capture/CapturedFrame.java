@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.capture;
+
+/**
+ * A frame read from a capture.
+ * 
+ * @see CaptureReader#next()
+ */
+public class CapturedFrame {
+
+	private final long timestamp;
+	private final byte direction;
+	private final byte[] data;
+
+	CapturedFrame(long timestamp, byte direction, byte[] data) {
+		this.timestamp = timestamp;
+		this.direction = direction;
+		this.data = data;
+	}
+
+	/**
+	 * @return Time (in nanoseconds) since the capture was started.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return {@link PacketCapture#RECEIVED} or {@link PacketCapture#SENT}.
+	 */
+	public byte getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return The packet id.
+	 */
+	public short getId() {
+		return (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+	}
+
+	/**
+	 * @return The frame as written on the wire without the length: The packet id followed by the packet data.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return The length of the frame (id and data) in bytes.
+	 */
+	public int getLength() {
+		return data.length;
+	}
+
+	@Override
+	public String toString() {
+		return "CapturedFrame[" + (direction == PacketCapture.RECEIVED ? "received" : "sent") + ", id=" + getId() + ", length=" + data.length + ", time="
+				+ timestamp / 1000 + "us]";
+	}
+
+}
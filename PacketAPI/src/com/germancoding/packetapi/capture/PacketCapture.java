@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Records the raw frames a <code>PacketHandler</code> sends and receives, to reproduce problems or to get realistic benchmark input. Enable it with
+ * <code>handler.setCapture(capture)</code>.<br>
+ * <br>
+ * Frames are appended to memory-mapped segment files (<code>name-000000.cap</code>, <code>name-000001.cap</code>...) in the given directory. A new
+ * segment is started when the current one is full, so recording a frame is a copy into memory in the common case. Every record consists of the length of
+ * the frame (int), the time since the capture was started (long, nanoseconds), the direction ({@link #RECEIVED} or {@link #SENT}) and the frame itself
+ * (packet id and data). The segments are read with a {@link CaptureReader}, {@link ReplayInputStream} feeds them back into a handler.<br>
+ * <br>
+ * A capture can be shared by several handlers, but their frames are not told apart. If writing a segment fails, the capture is stopped and the connections
+ * continue without it.
+ */
+public class PacketCapture implements Closeable {
+
+	/** Direction of frames received by the handler **/
+	public static final byte RECEIVED = 0;
+	/** Direction of frames sent by the handler **/
+	public static final byte SENT = 1;
+
+	/** Default size (in bytes) of the segment files. Default is 64 MiB **/
+	public static long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	static final int MAGIC = 0x504B5443; // "PKTC"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 24; // Magic, version, start time, segment index, reserved
+	static final int RECORD_HEADER_SIZE = 13; // Length, timestamp, direction
+
+	private static final Logger logger = Logger.getLogger("PacketHandler");
+
+	private final File directory;
+	private final String name;
+	private final long segmentSize;
+	private final long startMillis = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private MappedByteBuffer segment; // Guarded by this
+	private int segmentIndex = -1;
+	private boolean closed;
+	private long records;
+	private long bytes;
+
+	/**
+	 * Starts a new capture with segments of {@link #SEGMENT_SIZE} bytes.
+	 * 
+	 * @see #PacketCapture(File, String, long)
+	 */
+	public PacketCapture(File directory, String name) throws IOException {
+		this(directory, name, SEGMENT_SIZE);
+	}
+
+	/**
+	 * Starts a new capture. Segments of an older capture with the same name are deleted.
+	 * 
+	 * @param directory
+	 *            The directory to write the segments to, created if necessary.
+	 * @param name
+	 *            Name of the capture, the prefix of the segment files.
+	 * @param segmentSize
+	 *            Size of a segment file in bytes. Frames larger than a segment get a larger segment of their own.
+	 * @throws IOException
+	 *             If the directory or the first segment can not be created.
+	 */
+	public PacketCapture(File directory, String name, long segmentSize) throws IOException {
+		if (segmentSize < HEADER_SIZE + RECORD_HEADER_SIZE + 2 || segmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("segmentSize must be between " + (HEADER_SIZE + RECORD_HEADER_SIZE + 2) + " and " + Integer.MAX_VALUE);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can not create directory " + directory);
+		this.directory = directory;
+		this.name = name;
+		this.segmentSize = segmentSize;
+		for (int i = 0; segmentFile(directory, name, i).isFile(); i++) {
+			if (!segmentFile(directory, name, i).delete())
+				throw new IOException("Can not delete old segment " + segmentFile(directory, name, i));
+		}
+		synchronized (this) {
+			nextSegment(0);
+		}
+	}
+
+	/**
+	 * Appends a frame to the capture. Does nothing if the capture is closed.
+	 * 
+	 * @param direction
+	 *            {@link #RECEIVED} or {@link #SENT}.
+	 * @param data
+	 *            The frame (packet id and data, without the length).
+	 */
+	public void record(byte direction, byte[] data, int offset, int length) {
+		synchronized (this) {
+			if (closed)
+				return;
+			try {
+				if (segment.remaining() < RECORD_HEADER_SIZE + length)
+					nextSegment(RECORD_HEADER_SIZE + length);
+				segment.putInt(length);
+				segment.putLong(System.nanoTime() - startNanos); // Taken while holding the lock, so the timestamps are in order
+				segment.put(direction);
+				segment.put(data, offset, length);
+				records++;
+				bytes += length;
+			} catch (IOException e) {
+				logger.warning("Packet capture '" + name + "' failed, capture stopped: " + e);
+				closed = true;
+				segment = null;
+			}
+		}
+	}
+
+	private void nextSegment(int minimum) throws IOException {
+		segmentIndex++;
+		File file = segmentFile(directory, name, segmentIndex);
+		long size = Math.max(segmentSize, HEADER_SIZE + (long) minimum);
+		// The mapping stays valid after the channel is closed. Unused space is zero, which readers take as the end of the segment.
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		segment.putInt(MAGIC);
+		segment.putInt(VERSION);
+		segment.putLong(startMillis);
+		segment.putInt(segmentIndex);
+		segment.putInt(0);
+	}
+
+	static File segmentFile(File directory, String name, int index) {
+		return new File(directory, name + "-" + String.format("%06d", index) + ".cap");
+	}
+
+	/**
+	 * Stops recording and writes the current segment to the disk. Frames recorded afterwards are ignored.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		segment.force();
+		segment = null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return The time the capture was started, in milliseconds since the epoch.
+	 */
+	public long getStartTime() {
+		return startMillis;
+	}
+
+	/**
+	 * @return The number of frames recorded.
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return The number of frame bytes recorded, excluding the record headers.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The number of segment files written.
+	 */
+	public synchronized int getSegments() {
+		return segmentIndex + 1;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public String toString() {
+		return "PacketCapture[" + name + ", records=" + getRecords() + ", segments=" + getSegments() + (isClosed() ? ", closed" : "") + "]";
+	}
+
+}
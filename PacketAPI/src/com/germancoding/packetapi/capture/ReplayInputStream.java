@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.capture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the frames of a capture back into a <code>PacketHandler</code>: The stream returns the frames of one direction as they were received (length,
+ * id and data), either as fast as they are read or with their original timing. The end of the capture is the end of the stream.<br>
+ * <br>
+ * Example, replaying the received frames at original speed:<br>
+ * <code>InputStream in = new ReplayInputStream(new CaptureReader(dir, "incident"), PacketCapture.RECEIVED, 1.0);<br>
+ * PacketHandler handler = new PacketHandler(in, OutputStream.nullOutputStream(), "replay", listener);</code>
+ */
+public class ReplayInputStream extends InputStream {
+
+	private final CaptureReader reader;
+	private final byte direction;
+	private final double speed;
+	private byte[] current; // Length and frame
+	private int position;
+	private long firstTimestamp = -1;
+	private long replayStart;
+	private long frames;
+
+	/**
+	 * @param reader
+	 *            The capture to replay.
+	 * @param direction
+	 *            The direction of the frames to replay, {@link PacketCapture#RECEIVED} to replay what a handler received.
+	 * @param speed
+	 *            1.0 for the original timing, 2.0 for twice as fast... 0 for no delays at all.
+	 */
+	public ReplayInputStream(CaptureReader reader, byte direction, double speed) {
+		if (speed < 0)
+			throw new IllegalArgumentException("speed can not be negative");
+		this.reader = reader;
+		this.direction = direction;
+		this.speed = speed;
+	}
+
+	/**
+	 * Makes sure there are bytes left in the current frame, reading (and waiting for) the next one if necessary.
+	 * 
+	 * @return False at the end of the capture.
+	 */
+	private boolean fill() throws IOException {
+		while (current == null || position == current.length) {
+			CapturedFrame frame;
+			do {
+				frame = reader.next();
+			} while (frame != null && frame.getDirection() != direction);
+			if (frame == null)
+				return false;
+			pace(frame.getTimestamp());
+			byte[] data = frame.getData();
+			current = new byte[data.length + 4];
+			current[0] = (byte) (data.length >>> 24);
+			current[1] = (byte) (data.length >>> 16);
+			current[2] = (byte) (data.length >>> 8);
+			current[3] = (byte) data.length;
+			System.arraycopy(data, 0, current, 4, data.length);
+			position = 0;
+			frames++;
+		}
+		return true;
+	}
+
+	private void pace(long timestamp) throws InterruptedIOException {
+		if (speed == 0)
+			return;
+		if (firstTimestamp == -1) {
+			firstTimestamp = timestamp;
+			replayStart = System.nanoTime();
+			return;
+		}
+		long due = replayStart + (long) ((timestamp - firstTimestamp) / speed);
+		long delay = due - System.nanoTime();
+		if (delay > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the next frame");
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return current[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int count = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return current == null ? 0 : current.length - position;
+	}
+
+	@Override
+	public void close() {
+		reader.close();
+	}
+
+	/**
+	 * @return The number of frames replayed so far.
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.defaultpackets;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * Grants flow control credit to the other side. It carries the total number of bytes the sender of this packet has processed since the connection was
+ * opened, so the other side may send up to that many bytes plus the receive window. The total (instead of an increment) makes lost or reordered
+ * credit packets harmless, the next one carries the newer total.
+ * 
+ * @see com.germancoding.packetapi.PacketHandler#RECEIVE_WINDOW
+ */
+public class CreditPacket extends Packet implements DefaultPacket {
+
+	private long consumed;
+
+	// Nullary constructor
+	public CreditPacket() {
+	}
+
+	public CreditPacket(long consumed) {
+		this.consumed = consumed;
+	}
+
+	@Override
+	public short getId() {
+		return IDRegistry.CREDIT_PACKET;
+	}
+
+	@Override
+	public void handle(DataInputStream in) throws IOException {
+		consumed = in.readLong();
+	}
+
+	@Override
+	public void decode(ByteBuffer in) throws IOException {
+		consumed = in.getLong();
+	}
+
+	@Override
+	public PacketWriter prepare() throws IOException {
+		PacketWriter writer = new PacketWriter(getId(), 10);
+		writer.writeLong(consumed);
+		return writer;
+	}
+
+	@Override
+	public void encode(ByteBuffer out) throws IOException {
+		out.putLong(consumed);
+	}
+
+	@Override
+	public boolean isCritical() {
+		return false; // The next one carries a newer total
+	}
+
+	/**
+	 * @return Bytes processed by the sender of this packet since the connection was opened.
+	 */
+	public long getConsumed() {
+		return consumed;
+	}
+
+}
@@ -33,6 +33,9 @@ public class HandshakePacket extends Packet implements DefaultPacket {
 
 	private int handshakeID;
 	private int protocolVersion;
+	private int apiVersion = 1; // Older versions don't send their API version
+	private int receiveWindow; // Older versions don't use flow control
+	private long sessionToken; // Older versions can't resume sessions
 
 	// Nullary constructor
 	public HandshakePacket() {
@@ -42,6 +45,12 @@ public class HandshakePacket extends Packet implements DefaultPacket {
 	public void handle(DataInputStream in) throws IOException {
 		this.handshakeID = in.readInt();
 		this.protocolVersion = in.readInt();
+		if (in.available() >= 4)
+			this.apiVersion = in.readInt();
+		if (in.available() >= 4)
+			this.receiveWindow = in.readInt();
+		if (in.available() >= 8)
+			this.sessionToken = in.readLong();
 	}
 
 	@Override
@@ -49,6 +58,9 @@ public class HandshakePacket extends Packet implements DefaultPacket {
 		PacketWriter data = new PacketWriter(getId());
 		data.writeInt(handshakeID);
 		data.writeInt(protocolVersion);
+		data.writeInt(apiVersion);
+		data.writeInt(receiveWindow);
+		data.writeLong(sessionToken);
 		return data;
 	}
 
@@ -68,6 +80,42 @@ public class HandshakePacket extends Packet implements DefaultPacket {
 		this.protocolVersion = protocolVersion;
 	}
 
+	/**
+	 * @return The version of the PacketAPI (wire features) used by the sender.
+	 * @see com.germancoding.packetapi.PacketHandler#API_VERSION
+	 */
+	public int getApiVersion() {
+		return apiVersion;
+	}
+
+	public void setApiVersion(int apiVersion) {
+		this.apiVersion = apiVersion;
+	}
+
+	/**
+	 * @return Bytes the sender is willing to receive ahead of its processing, 0 if it doesn't grant flow control credit.
+	 * @see com.germancoding.packetapi.PacketHandler#RECEIVE_WINDOW
+	 */
+	public int getReceiveWindow() {
+		return receiveWindow;
+	}
+
+	public void setReceiveWindow(int receiveWindow) {
+		this.receiveWindow = receiveWindow;
+	}
+
+	/**
+	 * @return The token the other side sends to resume the session of the sender, 0 if the sender's session can't be resumed.
+	 * @see com.germancoding.packetapi.PacketHandler#setResumable(boolean)
+	 */
+	public long getSessionToken() {
+		return sessionToken;
+	}
+
+	public void setSessionToken(long sessionToken) {
+		this.sessionToken = sessionToken;
+	}
+
 	@Override
 	public short getId() {
 		return IDRegistry.HANDSHAKE_PACKET;
@@ -29,5 +29,10 @@ public class IDRegistry {
 	public static final short HANDSHAKE_PACKET = -1;
 	public static final short CLOSE_PACKET = -2;
 	public static final short KEEPALIVE_PACKET = -3;
+	public static final short TRANSFER_PACKET = -4;
+	public static final short RPC_PACKET = -5;
+	public static final short STREAM_PACKET = -6;
+	public static final short CREDIT_PACKET = -7;
+	public static final short SESSION_PACKET = -8;
 
 }
@@ -29,9 +29,21 @@ import java.io.IOException;
 import com.germancoding.packetapi.Packet;
 import com.germancoding.packetapi.PacketWriter;
 
+/**
+ * Keeps a connection alive and measures the round trip time. If the other side supports it (API version 2 and later), keep-alives carry timestamps: The response
+ * echoes the origin time and sequence of the request, the time it was held by the responder and the wall clock of the responder.
+ * 
+ * @see com.germancoding.packetapi.RttEstimator
+ */
 public class KeepAlivePacket extends Packet implements DefaultPacket {
 
 	private boolean response;
+	private boolean timestamped;
+	private int sequence;
+	private long originTime;
+	private long delay;
+	private long remoteTime;
+	private long receiveTime; // Local only, not transmitted
 
 	@Override
 	public short getId() {
@@ -41,12 +53,25 @@ public class KeepAlivePacket extends Packet implements DefaultPacket {
 	@Override
 	public void handle(DataInputStream in) throws IOException {
 		setResponse(in.readBoolean());
+		if (in.available() > 0) { // Older versions only send the response flag
+			timestamped = true;
+			sequence = in.readInt();
+			originTime = in.readLong();
+			delay = in.readLong();
+			remoteTime = in.readLong();
+		}
 	}
 
 	@Override
 	public PacketWriter prepare() throws IOException {
 		PacketWriter writer = new PacketWriter(getId());
 		writer.writeBoolean(isResponse());
+		if (timestamped) {
+			writer.writeInt(sequence);
+			writer.writeLong(originTime);
+			writer.writeLong(delay);
+			writer.writeLong(remoteTime);
+		}
 		return writer;
 	}
 
@@ -63,4 +88,70 @@ public class KeepAlivePacket extends Packet implements DefaultPacket {
 		this.response = response;
 	}
 
+	/**
+	 * @return Whether this packet carries timestamps. Only send timestamped keep-alives if the other side supports them.
+	 */
+	public boolean isTimestamped() {
+		return timestamped;
+	}
+
+	public void setTimestamped(boolean timestamped) {
+		this.timestamped = timestamped;
+	}
+
+	/**
+	 * @return The sequence number of the request, echoed by the response.
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(int sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @return The <code>System.nanoTime()</code> of the requesting side when the request was created, echoed by the response.
+	 */
+	public long getOriginTime() {
+		return originTime;
+	}
+
+	public void setOriginTime(long originTime) {
+		this.originTime = originTime;
+	}
+
+	/**
+	 * @return Time (in nanoseconds) between receiving the request and creating the response. Not part of the round trip time.
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	/**
+	 * @return The <code>System.currentTimeMillis()</code> of the responding side when the response was created.
+	 */
+	public long getRemoteTime() {
+		return remoteTime;
+	}
+
+	public void setRemoteTime(long remoteTime) {
+		this.remoteTime = remoteTime;
+	}
+
+	/**
+	 * @return The local <code>System.nanoTime()</code> when this packet was received, 0 for packets created locally.
+	 */
+	public long getReceiveTime() {
+		return receiveTime;
+	}
+
+	public void setReceiveTime(long receiveTime) {
+		this.receiveTime = receiveTime;
+	}
+
 }
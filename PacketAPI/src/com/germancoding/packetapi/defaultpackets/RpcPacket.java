@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.defaultpackets;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketBuffers;
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * Carries a request, a response or an error of a remote call. Requests and responses wrap an application packet, the call id correlates a response
+ * with its request, so many requests can be pending on one connection at the same time.<br>
+ * On the receiving side only the id and the raw data of the wrapped packet are known, the handler creates the packet instance.
+ * 
+ * @see com.germancoding.packetapi.PacketHandler#request(Packet, long)
+ */
+public class RpcPacket extends Packet implements DefaultPacket {
+
+	public static final byte TYPE_REQUEST = 0;
+	public static final byte TYPE_RESPONSE = 1;
+	/** The request failed on the remote side, there is no packet but an error message **/
+	public static final byte TYPE_ERROR = 2;
+
+	/** Longer error messages are truncated **/
+	private static final int MAX_ERROR_LENGTH = 1024;
+
+	private int callId;
+	private byte type;
+	private short packetId;
+	private String errorMessage;
+
+	// Only used on the sending side
+	private Packet packet;
+	// Only used on the receiving side
+	private ByteBuffer payload;
+
+	// Nullary constructor
+	public RpcPacket() {
+	}
+
+	/**
+	 * Creates a request or a response wrapping the given packet.
+	 */
+	public RpcPacket(int callId, byte type, Packet packet) {
+		if (type != TYPE_REQUEST && type != TYPE_RESPONSE)
+			throw new IllegalArgumentException("Only requests and responses carry a packet");
+		if (packet == null)
+			throw new IllegalArgumentException("packet can not be null");
+		this.callId = callId;
+		this.type = type;
+		this.packet = packet;
+		this.packetId = packet.getId();
+	}
+
+	/**
+	 * Creates an error response.
+	 */
+	public RpcPacket(int callId, String errorMessage) {
+		this.callId = callId;
+		this.type = TYPE_ERROR;
+		if (errorMessage == null)
+			errorMessage = "";
+		this.errorMessage = errorMessage.length() > MAX_ERROR_LENGTH ? errorMessage.substring(0, MAX_ERROR_LENGTH) : errorMessage;
+	}
+
+	@Override
+	public short getId() {
+		return IDRegistry.RPC_PACKET;
+	}
+
+	@Override
+	public void handle(DataInputStream in) throws IOException {
+		callId = in.readInt();
+		type = in.readByte();
+		if (type == TYPE_ERROR) {
+			errorMessage = in.readUTF();
+		} else {
+			packetId = in.readShort();
+			byte[] data = new byte[in.available()]; // The rest of the packet
+			in.readFully(data);
+			payload = ByteBuffer.wrap(data);
+		}
+	}
+
+	@Override
+	public void decode(ByteBuffer in) throws IOException {
+		callId = in.getInt();
+		type = in.get();
+		if (type == TYPE_ERROR) {
+			errorMessage = PacketBuffers.getUTF(in);
+		} else {
+			packetId = in.getShort();
+			payload = in.slice(); // The rest of the packet, without copying
+			in.position(in.limit());
+		}
+	}
+
+	@Override
+	public PacketWriter prepare() throws IOException {
+		PacketWriter writer = new PacketWriter(getId());
+		writer.writeInt(callId);
+		writer.writeByte(type);
+		if (type == TYPE_ERROR) {
+			writer.writeUTF(errorMessage);
+		} else {
+			writer.writeShort(packetId);
+			byte[] data = packet.prepare().toByteArray();
+			writer.write(data, 2, data.length - 2); // Skip the id, written above
+		}
+		return writer;
+	}
+
+	@Override
+	public void encode(ByteBuffer out) throws IOException {
+		out.putInt(callId);
+		out.put(type);
+		if (type == TYPE_ERROR) {
+			PacketBuffers.putUTF(out, errorMessage);
+		} else {
+			out.putShort(packetId);
+			packet.encode(out);
+		}
+	}
+
+	public int getCallId() {
+		return callId;
+	}
+
+	/**
+	 * @return One of {@link #TYPE_REQUEST}, {@link #TYPE_RESPONSE} or {@link #TYPE_ERROR}.
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return The id of the wrapped packet. Undefined for errors.
+	 */
+	public short getPacketId() {
+		return packetId;
+	}
+
+	/**
+	 * @return The wrapped packet on the sending side, <code>null</code> on the receiving side.
+	 */
+	public Packet getPacket() {
+		return packet;
+	}
+
+	/**
+	 * @return The data of the wrapped packet (without id) on the receiving side, <code>null</code> on the sending side or for errors.
+	 */
+	public ByteBuffer getPayload() {
+		return payload == null ? null : payload.duplicate();
+	}
+
+	/**
+	 * @return The error message if this is an error response, <code>null</code> otherwise.
+	 */
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	@Override
+	public boolean isCritical() {
+		return true; // A lost response would leave the caller waiting until its timeout
+	}
+
+}
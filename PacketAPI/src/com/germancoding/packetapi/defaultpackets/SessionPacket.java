@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.defaultpackets;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * Keeps a resumable session: Acknowledges received frames, so the other side can drop them from its retransmit buffer, and resumes the session on new
+ * streams. Like credit packets, acknowledgements carry the total number of frames received, so a lost one is harmless.
+ * 
+ * @see com.germancoding.packetapi.PacketHandler#setResumable(boolean)
+ */
+public class SessionPacket extends Packet implements DefaultPacket {
+
+	/** Acknowledges all frames received so far **/
+	public static final byte TYPE_ACK = 0;
+	/** First packet on new streams, asks the other side to resume the session with the given token **/
+	public static final byte TYPE_RESUME = 1;
+	/** Answer to {@link #TYPE_RESUME}, the session continues on the new streams **/
+	public static final byte TYPE_RESUMED = 2;
+	/** Answer to {@link #TYPE_RESUME}, there is no session with the given token (anymore) **/
+	public static final byte TYPE_REJECTED = 3;
+
+	private byte type;
+	private long token;
+	private long received;
+
+	// Nullary constructor
+	public SessionPacket() {
+	}
+
+	public SessionPacket(byte type, long token, long received) {
+		this.type = type;
+		this.token = token;
+		this.received = received;
+	}
+
+	@Override
+	public short getId() {
+		return IDRegistry.SESSION_PACKET;
+	}
+
+	@Override
+	public void handle(DataInputStream in) throws IOException {
+		type = in.readByte();
+		token = in.readLong();
+		received = in.readLong();
+	}
+
+	@Override
+	public void decode(ByteBuffer in) throws IOException {
+		type = in.get();
+		token = in.getLong();
+		received = in.getLong();
+	}
+
+	@Override
+	public PacketWriter prepare() throws IOException {
+		PacketWriter writer = new PacketWriter(getId(), 19);
+		writer.writeByte(type);
+		writer.writeLong(token);
+		writer.writeLong(received);
+		return writer;
+	}
+
+	@Override
+	public void encode(ByteBuffer out) throws IOException {
+		out.put(type);
+		out.putLong(token);
+		out.putLong(received);
+	}
+
+	@Override
+	public boolean isCritical() {
+		return true;
+	}
+
+	/**
+	 * @return One of {@link #TYPE_ACK}, {@link #TYPE_RESUME}, {@link #TYPE_RESUMED} or {@link #TYPE_REJECTED}.
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return The token of the session to resume, only used by {@link #TYPE_RESUME}.
+	 */
+	public long getToken() {
+		return token;
+	}
+
+	/**
+	 * @return The number of frames the sender of this packet has received in this session.
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+}
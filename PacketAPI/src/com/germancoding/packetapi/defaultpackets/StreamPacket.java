@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.defaultpackets;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketStream;
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * A chunk of the packets sent on a {@link PacketStream}. Packets of a stream are encoded and split into chunks, so a large packet on one stream doesn't
+ * hold back the packets of other streams.<br>
+ * On the sending side the chunk is taken from its stream right before the packet is written, each stream has at most one chunk queued at a time.
+ */
+public class StreamPacket extends Packet implements DefaultPacket {
+
+	/** Set if the chunk was sent by the side that opened the stream (stream ids of both sides are independent) **/
+	public static final byte FLAG_INITIATOR = 1;
+	/** Set on the first chunk of a new stream **/
+	public static final byte FLAG_OPEN = 2;
+	/** Set on the last chunk of a packet **/
+	public static final byte FLAG_LAST = 4;
+	/** Set if the stream is closed. Carries no data. **/
+	public static final byte FLAG_CLOSE = 8;
+
+	private int streamId;
+	private byte flags;
+	private byte[] data;
+	private int offset;
+	private int length;
+
+	// Only used on the sending side
+	private PacketStream stream;
+
+	// Nullary constructor
+	public StreamPacket() {
+	}
+
+	/**
+	 * Creates a chunk that takes its data from the given stream when it is written.
+	 */
+	public StreamPacket(PacketStream stream) {
+		this.stream = stream;
+		this.streamId = stream.getId();
+	}
+
+	@Override
+	public short getId() {
+		return IDRegistry.STREAM_PACKET;
+	}
+
+	@Override
+	public void handle(DataInputStream in) throws IOException {
+		streamId = in.readInt();
+		flags = in.readByte();
+		data = new byte[in.available()]; // The rest of the packet
+		in.readFully(data);
+		length = data.length;
+	}
+
+	@Override
+	public void decode(ByteBuffer in) throws IOException {
+		streamId = in.getInt();
+		flags = in.get();
+		data = new byte[in.remaining()];
+		in.get(data);
+		length = data.length;
+	}
+
+	@Override
+	public PacketWriter prepare() throws IOException {
+		checkFilled();
+		PacketWriter writer = new PacketWriter(getId(), 7 + length);
+		writer.writeInt(streamId);
+		writer.writeByte(flags);
+		writer.write(data, offset, length);
+		return writer;
+	}
+
+	@Override
+	public void encode(ByteBuffer out) throws IOException {
+		checkFilled();
+		out.putInt(streamId);
+		out.put(flags);
+		out.put(data, offset, length);
+	}
+
+	private void checkFilled() throws IOException {
+		if (data == null)
+			throw new IOException("Stream chunk was not filled");
+	}
+
+	/**
+	 * Sets the content of an outgoing chunk. Called by the sender right before the chunk is written.
+	 */
+	public void setChunk(byte flags, byte[] data, int offset, int length) {
+		this.flags = flags;
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return The stream this chunk is taken from, <code>null</code> if this packet was received.
+	 */
+	public PacketStream getStream() {
+		return stream;
+	}
+
+	@Override
+	public boolean isCritical() {
+		return true; // A lost chunk would corrupt the stream
+	}
+
+	public int getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * @return The data of a received chunk.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public boolean isInitiator() {
+		return (flags & FLAG_INITIATOR) != 0;
+	}
+
+	public boolean isOpen() {
+		return (flags & FLAG_OPEN) != 0;
+	}
+
+	public boolean isLast() {
+		return (flags & FLAG_LAST) != 0;
+	}
+
+	public boolean isClose() {
+		return (flags & FLAG_CLOSE) != 0;
+	}
+
+}
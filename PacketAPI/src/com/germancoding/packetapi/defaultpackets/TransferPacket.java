@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.defaultpackets;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * A chunk of a large transfer. Transfers are split into many of these packets so that neither side has to keep the whole payload in memory.<br>
+ * On the sending side the chunk data is read lazily from the source stream when the packet is written, so only one chunk per transfer is in memory at a time.
+ * 
+ * @see com.germancoding.packetapi.PacketHandler#sendTransfer(short, InputStream)
+ */
+public class TransferPacket extends Packet implements DefaultPacket {
+
+	/** Set on the first chunk of a transfer **/
+	public static final byte FLAG_FIRST = 1;
+	/** Set on the last chunk of a transfer **/
+	public static final byte FLAG_LAST = 2;
+	/** Set if the sender could not read its source. The transfer is incomplete. **/
+	public static final byte FLAG_ABORT = 4;
+
+	private int transferId;
+	private byte flags;
+	private short type;
+	private byte[] data;
+
+	// Only used on the sending side
+	private InputStream source;
+	private int chunkSize;
+
+	// Nullary constructor
+	public TransferPacket() {
+	}
+
+	/**
+	 * Creates a chunk that reads its data from the given source when it is written.
+	 */
+	public TransferPacket(int transferId, short type, InputStream source, int chunkSize, boolean first) {
+		this.transferId = transferId;
+		this.type = type;
+		this.source = source;
+		this.chunkSize = chunkSize;
+		if (first)
+			this.flags = FLAG_FIRST;
+	}
+
+	@Override
+	public short getId() {
+		return IDRegistry.TRANSFER_PACKET;
+	}
+
+	@Override
+	public void handle(DataInputStream in) throws IOException {
+		transferId = in.readInt();
+		flags = in.readByte();
+		type = in.readShort();
+		data = new byte[in.available()]; // The rest of the packet
+		in.readFully(data);
+	}
+
+	@Override
+	public void decode(ByteBuffer in) throws IOException {
+		transferId = in.getInt();
+		flags = in.get();
+		type = in.getShort();
+		data = new byte[in.remaining()];
+		in.get(data);
+	}
+
+	@Override
+	public PacketWriter prepare() throws IOException {
+		fill();
+		PacketWriter writer = new PacketWriter(getId(), 9 + data.length);
+		writer.writeInt(transferId);
+		writer.writeByte(flags);
+		writer.writeShort(type);
+		writer.write(data);
+		return writer;
+	}
+
+	@Override
+	public void encode(ByteBuffer out) throws IOException {
+		fill();
+		out.putInt(transferId);
+		out.put(flags);
+		out.putShort(type);
+		out.put(data);
+	}
+
+	/**
+	 * Reads the next chunk from the source, if not done yet. A failing source aborts the transfer instead of the connection.
+	 */
+	private void fill() {
+		if (data != null || source == null)
+			return;
+		byte[] buffer = new byte[chunkSize];
+		try {
+			int read = source.readNBytes(buffer, 0, chunkSize);
+			if (read < chunkSize) {
+				flags |= FLAG_LAST;
+				buffer = Arrays.copyOf(buffer, read);
+				closeSource();
+			}
+			data = buffer;
+		} catch (IOException e) {
+			flags |= FLAG_ABORT;
+			data = new byte[0];
+			closeSource();
+		}
+	}
+
+	/**
+	 * @return The chunk following this one (not filled yet) or <code>null</code> if this is the last chunk or this packet was received.
+	 */
+	public TransferPacket nextChunk() {
+		if (source == null || isLast() || isAborted())
+			return null;
+		return new TransferPacket(transferId, type, source, chunkSize, false);
+	}
+
+	/**
+	 * Closes the source stream of an outgoing transfer. Called when the transfer is finished or the connection is closed.
+	 */
+	public void closeSource() {
+		if (source != null) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				;
+			}
+		}
+	}
+
+	@Override
+	public boolean isCritical() {
+		return true; // A lost chunk would corrupt the transfer
+	}
+
+	public int getTransferId() {
+		return transferId;
+	}
+
+	public short getType() {
+		return type;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public boolean isFirst() {
+		return (flags & FLAG_FIRST) != 0;
+	}
+
+	public boolean isLast() {
+		return (flags & FLAG_LAST) != 0;
+	}
+
+	public boolean isAborted() {
+		return (flags & FLAG_ABORT) != 0;
+	}
+
+}
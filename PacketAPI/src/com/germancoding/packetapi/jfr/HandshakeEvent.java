@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A handshake packet was received from the other side.
+ */
+@Name("com.germancoding.packetapi.Handshake")
+@Label("Handshake")
+@Category({ "PacketAPI", "Connections" })
+@Description("A handshake was received and the protocol versions were compared")
+@StackTrace(false)
+public class HandshakeEvent extends jdk.jfr.Event {
+
+	@Label("Connection")
+	String connection;
+
+	@Label("Remote Protocol Version")
+	int remoteProtocolVersion;
+
+	@Label("Remote API Version")
+	int remoteApiVersion;
+
+	@Label("Version Approved")
+	boolean approved;
+
+	public void set(String connection, int remoteProtocolVersion, int remoteApiVersion, boolean approved) {
+		this.connection = connection;
+		this.remoteProtocolVersion = remoteProtocolVersion;
+		this.remoteApiVersion = remoteApiVersion;
+		this.approved = approved;
+	}
+
+}
@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a connection. The counters are updated by the <code>DataReader</code> and <code>DataSender</code> threads using <code>LongAdder</code>s, so
+ * counting costs next to nothing, even if the same counters (like the {@link #GLOBAL} ones) are updated by many threads.<br>
+ * Every update is applied to the parent as well, the {@link #GLOBAL} metrics contain the sum of all connections (including closed ones).
+ * 
+ * @see com.germancoding.packetapi.PacketHandler#getMetrics()
+ * @see MetricsRegistry
+ */
+public class ConnectionMetrics implements ConnectionMetricsMXBean {
+
+	/** The metrics of all connections of this JVM **/
+	public static final ConnectionMetrics GLOBAL = new ConnectionMetrics("global", null);
+
+	private final String name;
+	private final ConnectionMetrics parent;
+	private final LongAdder packetsReceived = new LongAdder();
+	private final LongAdder packetsSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder unknownPackets = new LongAdder();
+	private final LongAdder decodeFailures = new LongAdder();
+	private final LongAdder rejectedPackets = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder creditBlocks = new LongAdder();
+	private final LongAdder rateLimited = new LongAdder();
+	private final LongAdder queuedPackets = new LongAdder();
+	private final ConcurrentHashMap<Short, LongAdder> receivedById = new ConcurrentHashMap<Short, LongAdder>();
+	private final ConcurrentHashMap<Short, LongAdder> sentById = new ConcurrentHashMap<Short, LongAdder>();
+
+	/**
+	 * @param name
+	 *            The name of the connection.
+	 * @param parent
+	 *            Metrics updated together with this instance. Can be <code>null</code>.
+	 */
+	public ConnectionMetrics(String name, ConnectionMetrics parent) {
+		this.name = name == null ? "" : name;
+		this.parent = parent;
+	}
+
+	/**
+	 * Counts a received frame.
+	 * 
+	 * @param id
+	 *            The packet id.
+	 * @param bytes
+	 *            The size of the frame, including the length field.
+	 */
+	public void onPacketReceived(short id, int bytes) {
+		packetsReceived.increment();
+		bytesReceived.add(bytes);
+		count(receivedById, id);
+		if (parent != null)
+			parent.onPacketReceived(id, bytes);
+	}
+
+	/**
+	 * Counts a frame written to the stream.
+	 * 
+	 * @param id
+	 *            The packet id.
+	 * @param bytes
+	 *            The size of the frame, including the length field.
+	 */
+	public void onPacketSent(short id, int bytes) {
+		packetsSent.increment();
+		bytesSent.add(bytes);
+		count(sentById, id);
+		if (parent != null)
+			parent.onPacketSent(id, bytes);
+	}
+
+	public void onUnknownPacket() {
+		unknownPackets.increment();
+		if (parent != null)
+			parent.onUnknownPacket();
+	}
+
+	public void onDecodeFailure() {
+		decodeFailures.increment();
+		if (parent != null)
+			parent.onDecodeFailure();
+	}
+
+	public void onRejectedPacket() {
+		rejectedPackets.increment();
+		if (parent != null)
+			parent.onRejectedPacket();
+	}
+
+	public void onFlush() {
+		flushes.increment();
+		if (parent != null)
+			parent.onFlush();
+	}
+
+	public void onCreditBlocked() {
+		creditBlocks.increment();
+		if (parent != null)
+			parent.onCreditBlocked();
+	}
+
+	public void onRateLimited() {
+		rateLimited.increment();
+		if (parent != null)
+			parent.onRateLimited();
+	}
+
+	/**
+	 * Updates the number of packets in the sending queue.
+	 * 
+	 * @param delta
+	 *            +1 if a packet was added, -1 if a packet was removed.
+	 */
+	public void onQueued(int delta) {
+		queuedPackets.add(delta);
+		if (parent != null)
+			parent.onQueued(delta);
+	}
+
+	private static void count(ConcurrentHashMap<Short, LongAdder> map, short id) {
+		LongAdder counter = map.get(id);
+		if (counter == null) {
+			counter = new LongAdder();
+			LongAdder existing = map.putIfAbsent(id, counter);
+			if (existing != null)
+				counter = existing;
+		}
+		counter.increment();
+	}
+
+	private static Map<Short, Long> sum(ConcurrentHashMap<Short, LongAdder> map) {
+		TreeMap<Short, Long> result = new TreeMap<Short, Long>();
+		for (Map.Entry<Short, LongAdder> entry : map.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return result;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	public ConnectionMetrics getParent() {
+		return parent;
+	}
+
+	@Override
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	@Override
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getUnknownPackets() {
+		return unknownPackets.sum();
+	}
+
+	/**
+	 * @return The number of (non critical) packets dropped because they could not be parsed.
+	 */
+	@Override
+	public long getDecodeFailures() {
+		return decodeFailures.sum();
+	}
+
+	/**
+	 * @return The number of packets rejected by <code>sendPacket()</code>, because the memory budget was exhausted.
+	 */
+	@Override
+	public long getRejectedPackets() {
+		return rejectedPackets.sum();
+	}
+
+	@Override
+	public long getFlushes() {
+		return flushes.sum();
+	}
+
+	/**
+	 * @return How often sending stopped to wait for flow control credit of the other side.
+	 */
+	@Override
+	public long getCreditBlocks() {
+		return creditBlocks.sum();
+	}
+
+	/**
+	 * @return How often packets were delayed or dropped because they exceeded a rate limit.
+	 */
+	@Override
+	public long getRateLimited() {
+		return rateLimited.sum();
+	}
+
+	/**
+	 * @return The number of packets currently waiting in the sending queue.
+	 */
+	@Override
+	public long getQueuedPackets() {
+		return queuedPackets.sum();
+	}
+
+	/**
+	 * @return The number of received packets per packet id.
+	 */
+	@Override
+	public Map<Short, Long> getPacketsReceivedById() {
+		return sum(receivedById);
+	}
+
+	/**
+	 * @return The number of sent packets per packet id.
+	 */
+	@Override
+	public Map<Short, Long> getPacketsSentById() {
+		return sum(sentById);
+	}
+
+	/**
+	 * @return All counters (without the per id counts) by name. The sums are not an atomic snapshot, counters may change while they are read.
+	 */
+	public Map<String, Long> snapshot() {
+		LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+		values.put("packets_received", getPacketsReceived());
+		values.put("packets_sent", getPacketsSent());
+		values.put("bytes_received", getBytesReceived());
+		values.put("bytes_sent", getBytesSent());
+		values.put("unknown_packets", getUnknownPackets());
+		values.put("decode_failures", getDecodeFailures());
+		values.put("rejected_packets", getRejectedPackets());
+		values.put("flushes", getFlushes());
+		values.put("credit_blocks", getCreditBlocks());
+		values.put("rate_limited", getRateLimited());
+		values.put("queued_packets", getQueuedPackets());
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionMetrics[" + name + " " + snapshot() + "]";
+	}
+
+}
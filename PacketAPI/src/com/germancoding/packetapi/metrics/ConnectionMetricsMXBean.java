@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ConnectionMetrics}. Registered by the {@link MetricsRegistry} if JMX is enabled.
+ */
+public interface ConnectionMetricsMXBean {
+
+	public String getName();
+
+	public long getPacketsReceived();
+
+	public long getPacketsSent();
+
+	public long getBytesReceived();
+
+	public long getBytesSent();
+
+	public long getUnknownPackets();
+
+	public long getDecodeFailures();
+
+	public long getRejectedPackets();
+
+	public long getFlushes();
+
+	public long getCreditBlocks();
+
+	public long getRateLimited();
+
+	public long getQueuedPackets();
+
+	public Map<Short, Long> getPacketsReceivedById();
+
+	public Map<Short, Long> getPacketsSentById();
+
+}
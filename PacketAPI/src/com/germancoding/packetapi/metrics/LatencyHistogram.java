@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations with a fixed memory footprint (about 4 KiB).<br>
+ * Values are counted in log-linear buckets: Every power of two is split into 16 buckets, so percentiles are accurate to about 6%. Durations up to
+ * {@link #MAX_VALUE} are tracked, longer ones are counted as <code>MAX_VALUE</code>.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Largest duration (in nanoseconds) that can be tracked, about 68 seconds **/
+	public static final long MAX_VALUE = (1L << 36) - 1;
+
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a duration.
+	 * 
+	 * @param nanos
+	 *            The duration in nanoseconds. Negative values are counted as 0.
+	 */
+	public void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * @return A copy of the current counts.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, sum.sum(), max.get());
+	}
+
+	/**
+	 * Returns the current counts and resets them. Values recorded concurrently are either part of the snapshot or remain in the histogram, but never get lost.
+	 */
+	public Snapshot snapshotAndReset() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.getAndSet(i, 0);
+		}
+		return new Snapshot(copy, sum.sumThenReset(), max.getThenReset());
+	}
+
+	public void reset() {
+		snapshotAndReset();
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + (shift << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) >>> SUB_BUCKET_BITS;
+		long lowest = (long) (SUB_BUCKETS + ((index - SUB_BUCKETS) & (SUB_BUCKETS - 1))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * An immutable copy of a {@link LatencyHistogram}.
+	 */
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long sum, long max) {
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * @return The number of recorded values.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The average in nanoseconds, 0 if empty.
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @return The largest recorded value in nanoseconds.
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param percentile
+		 *            The percentile, between 0 and 100 (e.g. 99.9).
+		 * @return The value (in nanoseconds) below or equal to which the given percentage of the recorded values fall. 0 if empty.
+		 */
+		public long getPercentile(double percentile) {
+			if (percentile < 0 || percentile > 100)
+				throw new IllegalArgumentException("percentile must be between 0 and 100");
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(highestValue(i), max);
+			}
+			return max;
+		}
+
+		/**
+		 * Adds the counts of another snapshot, e.g. to aggregate several connections.
+		 * 
+		 * @return A new snapshot containing the values of both.
+		 */
+		public Snapshot merge(Snapshot other) {
+			long[] merged = counts.clone();
+			for (int i = 0; i < merged.length; i++) {
+				merged[i] += other.counts[i];
+			}
+			return new Snapshot(merged, sum + other.sum, Math.max(max, other.max));
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + ", mean=" + (long) getMean() / 1000 + "us, p50=" + getPercentile(50) / 1000 + "us, p99=" + getPercentile(99) / 1000 + "us, p99.9="
+					+ getPercentile(99.9) / 1000 + "us, max=" + max / 1000 + "us";
+		}
+	}
+
+}
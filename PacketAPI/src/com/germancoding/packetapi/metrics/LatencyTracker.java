@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latency histograms for the stages a packet passes through. Only exists while latency tracking is enabled, see
+ * {@link com.germancoding.packetapi.PacketHandler#setLatencyTracking(boolean)}.
+ */
+public class LatencyTracker {
+
+	public enum Stage {
+		/** Time a packet waits in the sending queue **/
+		QUEUE,
+		/** Time spent in <code>Packet.encode()</code> or <code>Packet.prepare()</code> **/
+		ENCODE,
+		/** Time spent writing (and flushing) a packet to the OutputStream **/
+		WRITE,
+		/** Time spent in the listeners when a packet is processed **/
+		DISPATCH
+	}
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+	public LatencyTracker() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records the duration of a stage.
+	 * 
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void record(Stage stage, long nanos) {
+		histograms[stage.ordinal()].record(nanos);
+	}
+
+	public LatencyHistogram getHistogram(Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	/**
+	 * @return Snapshots of all stages.
+	 */
+	public Map<Stage, LatencyHistogram.Snapshot> snapshot() {
+		EnumMap<Stage, LatencyHistogram.Snapshot> snapshots = new EnumMap<Stage, LatencyHistogram.Snapshot>(Stage.class);
+		for (Stage stage : Stage.values()) {
+			snapshots.put(stage, getHistogram(stage).snapshot());
+		}
+		return snapshots;
+	}
+
+	/**
+	 * @return Snapshots of all stages. The histograms are reset.
+	 */
+	public Map<Stage, LatencyHistogram.Snapshot> snapshotAndReset() {
+		EnumMap<Stage, LatencyHistogram.Snapshot> snapshots = new EnumMap<Stage, LatencyHistogram.Snapshot>(Stage.class);
+		for (Stage stage : Stage.values()) {
+			snapshots.put(stage, getHistogram(stage).snapshotAndReset());
+		}
+		return snapshots;
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyTracker" + snapshot();
+	}
+
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps track of the metrics of all open connections, exports them through JMX and offers a pull API for scraping.<br>
+ * JMX export is disabled by default, call {@link #setJmxEnabled(boolean)} to register the {@link ConnectionMetrics#GLOBAL} metrics and one MXBean per
+ * connection (under the domain {@value #JMX_DOMAIN}).
+ */
+public final class MetricsRegistry {
+
+	/** JMX domain the MXBeans are registered under **/
+	public static final String JMX_DOMAIN = "com.germancoding.packetapi";
+
+	private static final Logger logger = Logger.getLogger("PacketHandler");
+	private static final ConcurrentHashMap<ConnectionMetrics, Long> connections = new ConcurrentHashMap<ConnectionMetrics, Long>();
+	private static final AtomicLong nextId = new AtomicLong();
+	private static boolean jmxEnabled;
+
+	private MetricsRegistry() {
+	}
+
+	/**
+	 * Adds the metrics of a new connection. Called by the <code>PacketHandler</code>.
+	 */
+	public static synchronized void register(ConnectionMetrics metrics) {
+		long id = nextId.incrementAndGet();
+		connections.put(metrics, id);
+		if (jmxEnabled)
+			registerMBean(metrics, id);
+	}
+
+	/**
+	 * Removes the metrics of a closed connection. Called by the <code>PacketHandler</code>.
+	 */
+	public static synchronized void unregister(ConnectionMetrics metrics) {
+		Long id = connections.remove(metrics);
+		if (id != null && jmxEnabled)
+			unregisterMBean(metrics, id);
+	}
+
+	/**
+	 * @return The metrics of all open connections.
+	 */
+	public static List<ConnectionMetrics> getConnections() {
+		return new ArrayList<ConnectionMetrics>(connections.keySet());
+	}
+
+	public static synchronized boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+
+	/**
+	 * Enables or disables the JMX export. Registering an MXBean per connection costs some time when connections are opened, so it is disabled by default.
+	 */
+	public static synchronized void setJmxEnabled(boolean enabled) {
+		if (enabled == jmxEnabled)
+			return;
+		jmxEnabled = enabled;
+		for (Map.Entry<ConnectionMetrics, Long> entry : connections.entrySet()) {
+			if (enabled)
+				registerMBean(entry.getKey(), entry.getValue());
+			else
+				unregisterMBean(entry.getKey(), entry.getValue());
+		}
+		if (enabled)
+			registerMBean(ConnectionMetrics.GLOBAL, 0);
+		else
+			unregisterMBean(ConnectionMetrics.GLOBAL, 0);
+	}
+
+	/**
+	 * Writes the global metrics and the metrics of all open connections in the Prometheus text format, like
+	 * <code>packetapi_packets_received{connection="name",id="1"} 42</code>. The global metrics have no id.
+	 * 
+	 * @param perConnection
+	 *            Whether to include every connection or only the global metrics. With many connections, the output gets large.
+	 */
+	public static String scrape(boolean perConnection) {
+		StringBuilder out = new StringBuilder();
+		write(out, ConnectionMetrics.GLOBAL, null);
+		if (perConnection) {
+			for (Map.Entry<ConnectionMetrics, Long> entry : connections.entrySet()) {
+				write(out, entry.getKey(), entry.getValue());
+			}
+		}
+		return out.toString();
+	}
+
+	private static void write(StringBuilder out, ConnectionMetrics metrics, Long id) {
+		String labels = "connection=\"" + escape(metrics.getName()) + "\"" + (id == null ? "" : ",id=\"" + id + "\"");
+		for (Map.Entry<String, Long> value : metrics.snapshot().entrySet()) {
+			out.append("packetapi_").append(value.getKey()).append('{').append(labels).append("} ").append(value.getValue()).append('\n');
+		}
+		for (Map.Entry<Short, Long> value : metrics.getPacketsReceivedById().entrySet()) {
+			out.append("packetapi_packets_received_by_id{").append(labels).append(",packet=\"").append(value.getKey()).append("\"} ").append(value.getValue()).append('\n');
+		}
+		for (Map.Entry<Short, Long> value : metrics.getPacketsSentById().entrySet()) {
+			out.append("packetapi_packets_sent_by_id{").append(labels).append(",packet=\"").append(value.getKey()).append("\"} ").append(value.getValue()).append('\n');
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static ObjectName getObjectName(ConnectionMetrics metrics, long id) throws JMException {
+		if (metrics == ConnectionMetrics.GLOBAL)
+			return new ObjectName(JMX_DOMAIN + ":type=Global");
+		return new ObjectName(JMX_DOMAIN + ":type=Connection,id=" + id + ",name=" + ObjectName.quote(metrics.getName()));
+	}
+
+	private static void registerMBean(ConnectionMetrics metrics, long id) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getObjectName(metrics, id);
+			if (!server.isRegistered(name))
+				server.registerMBean(metrics, name);
+		} catch (JMException e) {
+			logger.warning("Failed to register metrics of '" + metrics.getName() + "' in JMX! " + e);
+		}
+	}
+
+	private static void unregisterMBean(ConnectionMetrics metrics, long id) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getObjectName(metrics, id);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (JMException e) {
+			logger.warning("Failed to unregister metrics of '" + metrics.getName() + "' from JMX! " + e);
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.shm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One direction of a {@link SharedMemorySocket}: A single-producer/single-consumer ring buffer inside the shared mapping. The writer only changes the write
+ * position, the reader only the read position. Both are published with release semantics and read with acquire semantics, so the bytes copied before a
+ * position is published are visible to the other process once it sees the position.<br>
+ * <br>
+ * Layout of the control block (fields on separate cache lines, so writer and reader don't slow each other down): Write position, read position, writer
+ * closed flag, reader closed flag.
+ */
+final class RingBuffer {
+
+	/** Size of the control block of a ring in bytes **/
+	static final int CONTROL_SIZE = 256;
+
+	private static final int WRITE_POSITION = 0;
+	private static final int READ_POSITION = 64;
+	private static final int WRITER_CLOSED = 128;
+	private static final int READER_CLOSED = 192;
+
+	private static final int YIELDS = 100;
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final ByteBuffer mapping;
+	private final int control;
+	private final ByteBuffer data;
+	private final int capacity;
+	private final int mask;
+	private long position; // Own position (write position for the writer, read position for the reader)
+	private long cachedPosition; // Last seen position of the other side
+
+	/**
+	 * @param mapping
+	 *            The shared mapping.
+	 * @param control
+	 *            Offset of the control block in the mapping.
+	 * @param dataOffset
+	 *            Offset of the data in the mapping.
+	 * @param capacity
+	 *            Size of the data in bytes, a power of two.
+	 * @param writer
+	 *            Whether this side writes into the ring.
+	 */
+	RingBuffer(ByteBuffer mapping, int control, int dataOffset, int capacity, boolean writer) {
+		this.mapping = mapping;
+		this.control = control;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		ByteBuffer data = mapping.duplicate();
+		data.position(dataOffset);
+		data.limit(dataOffset + capacity);
+		this.data = data.slice();
+		this.position = writer ? get(WRITE_POSITION) : get(READ_POSITION);
+		this.cachedPosition = writer ? get(READ_POSITION) : get(WRITE_POSITION);
+	}
+
+	/**
+	 * Clears the control block. Called by the side creating the mapping.
+	 */
+	static void init(ByteBuffer mapping, int control) {
+		for (int offset = 0; offset < CONTROL_SIZE; offset += 8) {
+			LONGS.setRelease(mapping, control + offset, 0L);
+		}
+	}
+
+	private long get(int field) {
+		return (long) LONGS.getAcquire(mapping, control + field);
+	}
+
+	private void set(int field, long value) {
+		LONGS.setRelease(mapping, control + field, value);
+	}
+
+	/**
+	 * Copies all bytes into the ring, waiting for the reader to make room if necessary.
+	 * 
+	 * @param socket
+	 *            The socket, to stop waiting once it is closed.
+	 * @throws IOException
+	 *             If the reader or the socket was closed.
+	 */
+	void write(byte[] b, int off, int len, SharedMemorySocket socket) throws IOException {
+		while (len > 0) {
+			long free = capacity - (position - cachedPosition);
+			int round = 0;
+			while (free == 0) {
+				if (get(READER_CLOSED) != 0 || socket.isClosed())
+					throw new IOException("Pipe closed");
+				round = backoff(round);
+				cachedPosition = get(READ_POSITION);
+				free = capacity - (position - cachedPosition);
+			}
+			int count = (int) Math.min(len, free);
+			int index = (int) (position & mask);
+			int first = Math.min(count, capacity - index);
+			data.position(index);
+			data.put(b, off, first);
+			if (first < count) {
+				data.position(0);
+				data.put(b, off + first, count - first);
+			}
+			position += count;
+			off += count;
+			len -= count;
+			set(WRITE_POSITION, position); // Publishes the bytes
+		}
+	}
+
+	/**
+	 * Copies available bytes out of the ring, waiting for the writer if there are none.
+	 * 
+	 * @return The number of bytes read or -1 if the writer closed the ring and everything was read.
+	 * @throws IOException
+	 *             If the socket was closed.
+	 */
+	int read(byte[] b, int off, int len, SharedMemorySocket socket) throws IOException {
+		if (len == 0)
+			return 0;
+		long available = cachedPosition - position;
+		int round = 0;
+		while (available == 0) {
+			cachedPosition = get(WRITE_POSITION);
+			available = cachedPosition - position;
+			if (available > 0)
+				break;
+			if (get(WRITER_CLOSED) != 0) {
+				// The writer publishes its position before the flag, check once more
+				cachedPosition = get(WRITE_POSITION);
+				available = cachedPosition - position;
+				if (available == 0)
+					return -1;
+				break;
+			}
+			if (socket.isClosed())
+				throw new IOException("Pipe closed");
+			round = backoff(round);
+		}
+		int count = (int) Math.min(len, available);
+		int index = (int) (position & mask);
+		int first = Math.min(count, capacity - index);
+		data.position(index);
+		data.get(b, off, first);
+		if (first < count) {
+			data.position(0);
+			data.get(b, off + first, count - first);
+		}
+		position += count;
+		set(READ_POSITION, position); // Frees the space for the writer
+		return count;
+	}
+
+	/**
+	 * @return The number of bytes that can be read without waiting.
+	 */
+	int available() {
+		cachedPosition = get(WRITE_POSITION);
+		return (int) (cachedPosition - position);
+	}
+
+	void closeWriter() {
+		set(WRITER_CLOSED, 1);
+	}
+
+	void closeReader() {
+		set(READER_CLOSED, 1);
+	}
+
+	/**
+	 * Waits a little before checking the ring again: Spins first (the other process usually answers within microseconds), then yields to other threads and
+	 * finally parks for increasing times. The other process can't wake us up, so parking is limited to {@link SharedMemorySocket#MAX_PARK_NANOS}.
+	 * 
+	 * @param round
+	 *            How often we waited already, 0 at first.
+	 * @return The round for the next call.
+	 */
+	private static int backoff(int round) throws InterruptedIOException {
+		int spins = SharedMemorySocket.SPIN_ITERATIONS;
+		if (round < spins) {
+			Thread.onSpinWait();
+			return round + 1;
+		}
+		if (Thread.interrupted())
+			throw new InterruptedIOException("Interrupted while waiting for the other side");
+		if (round < spins + YIELDS) {
+			Thread.yield();
+			return round + 1;
+		}
+		int parks = Math.min(round - spins - YIELDS, 20);
+		LockSupport.parkNanos(Math.min(SharedMemorySocket.MAX_PARK_NANOS, 1000L << parks));
+		return spins + YIELDS + parks + 1;
+	}
+
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.shm;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads from a ring of a {@link SharedMemorySocket}. Closing it closes the socket.
+ */
+public class SharedMemoryInputStream extends InputStream {
+
+	private final SharedMemorySocket socket;
+	private final RingBuffer ring;
+	private final byte[] single = new byte[1];
+
+	SharedMemoryInputStream(SharedMemorySocket socket, RingBuffer ring) {
+		this.socket = socket;
+		this.ring = ring;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (socket.isClosed())
+			throw new IOException("Socket closed");
+		return ring.read(b, off, len, socket);
+	}
+
+	@Override
+	public int available() {
+		return socket.isClosed() ? 0 : ring.available();
+	}
+
+	@Override
+	public void close() {
+		socket.close();
+	}
+
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A connection between two processes on the same machine over a memory-mapped file, without the kernel copies and system calls of loopback TCP. The file
+ * contains one ring buffer per direction, every side writes into one and reads from the other. Waiting sides spin for a moment and then park for short
+ * times, so packets usually arrive within microseconds.<br>
+ * <br>
+ * One process creates the file, the other one opens it. Both use the streams for a <code>PacketHandler</code>:<br>
+ * <code>SharedMemorySocket socket = SharedMemorySocket.create(new File("/dev/shm/my-service"));<br>
+ * PacketHandler handler = new PacketHandler(socket.getInputStream(), socket.getOutputStream(), "Hello!", myListener);</code><br>
+ * <br>
+ * Put the file on a memory file system (like <code>/dev/shm</code> on Linux), otherwise the operating system writes the rings back to the disk. Use a new
+ * file for every connection. The other side can't notice if a process dies without closing the socket, enable keep-alives and a read timeout to detect
+ * this.
+ */
+public class SharedMemorySocket {
+
+	/** Default size (in bytes) of each ring buffer, a power of two. Default is 1 MiB **/
+	public static int RING_SIZE = 1024 * 1024;
+	/**
+	 * How often a waiting side checks the ring before it starts yielding and parking. Default is 10000 (roughly a few hundred microseconds), 0 on machines
+	 * with a single core, where spinning only delays the other side
+	 **/
+	public static int SPIN_ITERATIONS = Runtime.getRuntime().availableProcessors() > 1 ? 10000 : 0;
+	/** Maximum time (in nanoseconds) a waiting side parks between two checks. Default is 200 microseconds **/
+	public static long MAX_PARK_NANOS = 200 * 1000;
+
+	private static final long MAGIC = 0x504B54534D454D31L; // "PKTSMEM1"
+	private static final int HEADER_SIZE = 64; // Magic, ring size
+	private static final int MAGIC_OFFSET = 0;
+	private static final int RING_SIZE_OFFSET = 8;
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final File file;
+	private final boolean creator;
+	private final RingBuffer input;
+	private final RingBuffer output;
+	private final SharedMemoryInputStream in;
+	private final SharedMemoryOutputStream out;
+	private volatile boolean closed;
+
+	private SharedMemorySocket(File file, MappedByteBuffer mapping, int ringSize, boolean creator) {
+		this.file = file;
+		this.creator = creator;
+		int dataOffset = HEADER_SIZE + 2 * RingBuffer.CONTROL_SIZE;
+		// The creator writes into the first ring and reads from the second one, the other side the other way around
+		int outputRing = creator ? 0 : 1;
+		int inputRing = 1 - outputRing;
+		this.output = new RingBuffer(mapping, HEADER_SIZE + outputRing * RingBuffer.CONTROL_SIZE, dataOffset + outputRing * ringSize, ringSize, true);
+		this.input = new RingBuffer(mapping, HEADER_SIZE + inputRing * RingBuffer.CONTROL_SIZE, dataOffset + inputRing * ringSize, ringSize, false);
+		this.out = new SharedMemoryOutputStream(this, output);
+		this.in = new SharedMemoryInputStream(this, input);
+	}
+
+	/**
+	 * Creates a new file with rings of {@link #RING_SIZE} bytes.
+	 * 
+	 * @see #create(File, int)
+	 */
+	public static SharedMemorySocket create(File file) throws IOException {
+		return create(file, RING_SIZE);
+	}
+
+	/**
+	 * Creates (or replaces) the given file and maps it. The other process can {@link #open(File)} it afterwards.
+	 * 
+	 * @param file
+	 *            The file to create, preferably on a memory file system.
+	 * @param ringSize
+	 *            Size of each ring buffer in bytes, a power of two. Larger rings let the sender get further ahead of the receiver.
+	 * @throws IOException
+	 *             If the file can not be created or mapped.
+	 */
+	public static SharedMemorySocket create(File file, int ringSize) throws IOException {
+		if (ringSize < 4096 || Integer.bitCount(ringSize) != 1 || ringSize > (1 << 29))
+			throw new IllegalArgumentException("ringSize must be a power of two between 4096 and " + (1 << 29));
+		long size = HEADER_SIZE + 2L * RingBuffer.CONTROL_SIZE + 2L * ringSize;
+		MappedByteBuffer mapping;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		RingBuffer.init(mapping, HEADER_SIZE);
+		RingBuffer.init(mapping, HEADER_SIZE + RingBuffer.CONTROL_SIZE);
+		LONGS.setRelease(mapping, RING_SIZE_OFFSET, (long) ringSize);
+		LONGS.setRelease(mapping, MAGIC_OFFSET, MAGIC); // Written last, the other side can open the file now
+		return new SharedMemorySocket(file, mapping, ringSize, true);
+	}
+
+	/**
+	 * Opens a file created by the other process with {@link #create(File, int)}.
+	 * 
+	 * @param file
+	 *            The file created by the other process.
+	 * @throws IOException
+	 *             If the file can not be mapped, or is not (yet) a file created by {@link #create(File, int)}.
+	 */
+	public static SharedMemorySocket open(File file) throws IOException {
+		MappedByteBuffer mapping;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (channel.size() < HEADER_SIZE + 2 * RingBuffer.CONTROL_SIZE)
+				throw new IOException("Not a shared memory socket (or not created yet): " + file);
+			mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		}
+		if ((long) LONGS.getAcquire(mapping, MAGIC_OFFSET) != MAGIC)
+			throw new IOException("Not a shared memory socket (or not created yet): " + file);
+		long ringSize = (long) LONGS.getAcquire(mapping, RING_SIZE_OFFSET);
+		if (mapping.capacity() != HEADER_SIZE + 2 * RingBuffer.CONTROL_SIZE + 2 * ringSize)
+			throw new IOException("Corrupted shared memory socket: " + file);
+		return new SharedMemorySocket(file, mapping, (int) ringSize, false);
+	}
+
+	/**
+	 * Closes both directions: The other side reads the remaining bytes and then the end of the stream, writing fails. The side that created the file deletes
+	 * it (the mapping stays valid for the other side).
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		output.closeWriter();
+		input.closeReader();
+		if (creator)
+			file.delete();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return The file containing the rings.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return An OutputStream writing into the ring read by the other side. Every write is visible to the other side right away, flushing does nothing.
+	 */
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * @return An InputStream reading from the ring written by the other side.
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.tools;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketWriter;
+
+/**
+ * The packet sent by the {@link LoadTest}.
+ */
+public class LoadPacket extends Packet {
+
+	public static final short ID = 1000;
+
+	/** Sent by a client, the server echoes it and fans it out **/
+	public static final byte REQUEST = 0;
+	/** The server's answer to a request, sent back to the origin **/
+	public static final byte ECHO = 1;
+	/** A copy of a request, sent by the server to other clients **/
+	public static final byte FANOUT = 2;
+
+	byte type;
+	int origin;
+	long sendTime;
+	byte[] payload;
+
+	public LoadPacket() {
+	}
+
+	public LoadPacket(byte type, int origin, long sendTime, byte[] payload) {
+		this.type = type;
+		this.origin = origin;
+		this.sendTime = sendTime;
+		this.payload = payload;
+	}
+
+	@Override
+	public short getId() {
+		return ID;
+	}
+
+	@Override
+	public void handle(DataInputStream in) throws IOException {
+		type = in.readByte();
+		origin = in.readInt();
+		sendTime = in.readLong();
+		payload = new byte[in.readInt()];
+		in.readFully(payload);
+	}
+
+	@Override
+	public PacketWriter prepare() throws IOException {
+		PacketWriter writer = new PacketWriter(getId(), payload.length + 32);
+		writer.writeByte(type);
+		writer.writeInt(origin);
+		writer.writeLong(sendTime);
+		writer.writeInt(payload.length);
+		writer.write(payload);
+		return writer;
+	}
+
+	@Override
+	public void decode(ByteBuffer in) throws IOException {
+		type = in.get();
+		origin = in.getInt();
+		sendTime = in.getLong();
+		payload = new byte[in.getInt()];
+		in.get(payload);
+	}
+
+	@Override
+	public void encode(ByteBuffer out) throws IOException {
+		out.put(type);
+		out.putInt(origin);
+		out.putLong(sendTime);
+		out.putInt(payload.length);
+		out.put(payload);
+	}
+
+	@Override
+	public boolean isCritical() {
+		return true;
+	}
+
+}
@@ -0,0 +1,459 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.germancoding.packetapi.EncodedFrame;
+import com.germancoding.packetapi.FlushPolicy;
+import com.germancoding.packetapi.MemoryBudget;
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketHandler;
+import com.germancoding.packetapi.PacketListener;
+import com.germancoding.packetapi.capture.PacketCapture;
+import com.germancoding.packetapi.metrics.ConnectionMetrics;
+import com.germancoding.packetapi.metrics.LatencyHistogram;
+
+/**
+ * Load test and soak test tool. Starts a server and N clients in this JVM, connected over loopback TCP, and drives traffic through them:<br>
+ * Every client sends requests at a fixed rate with sizes drawn from a weighted distribution. The server echoes each request to its origin (the round trip
+ * time is recorded) and optionally fans it out to other clients. A fraction of the clients can be made slow consumers.<br>
+ * Throughput, latency percentiles, thread count, heap usage and GC activity are reported periodically.<br>
+ * <br>
+ * Usage: <code>LoadTest [key=value...]</code>, run with <code>help</code> to list the options. Every connection uses two threads on each side and two
+ * file descriptors, so raise <code>ulimit -n</code> (and maybe reduce the thread stack size with <code>-Xss256k</code>) for thousands of connections.
+ */
+public class LoadTest {
+
+	private final Map<String, String> options = new LinkedHashMap<String, String>();
+
+	// Options
+	private int connections;
+	private int duration;
+	private int warmup;
+	private int interval;
+	private double rate;
+	private int[] sizes;
+	private int[] cumulativeWeights;
+	private int fanout;
+	private double slowFraction;
+	private int slowDelay;
+	private int senderThreads;
+	private FlushPolicy flushPolicy;
+	private PacketCapture capture;
+
+	private final List<PacketHandler> clients = new ArrayList<PacketHandler>();
+	private final List<PacketHandler> serverConnections = new CopyOnWriteArrayList<PacketHandler>();
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder echoes = new LongAdder();
+	private final LongAdder fanoutReceived = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private volatile boolean running = true;
+
+	public LoadTest() {
+		options.put("connections", "100");
+		options.put("duration", "60");
+		options.put("warmup", "5");
+		options.put("interval", "5");
+		options.put("rate", "100");
+		options.put("sizes", "64:80,1024:15,16384:5");
+		options.put("fanout", "0");
+		options.put("slow", "0");
+		options.put("slowDelay", "10");
+		options.put("senders", "4");
+		options.put("flush", "always");
+		options.put("capture", "");
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0 || !test.options.containsKey(arg.substring(0, split))) {
+				printUsage();
+				System.exit(arg.equals("help") ? 0 : 1);
+			}
+			test.options.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		try {
+			test.parseOptions();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+		test.run();
+		// Non-zero exit code if connections failed, for scripts
+		System.exit(test.failures.sum() == 0 ? 0 : 2);
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage: LoadTest [key=value...]");
+		System.out.println("  connections=100   Number of client connections");
+		System.out.println("  duration=60       Measurement duration in seconds (after the warmup)");
+		System.out.println("  warmup=5          Warmup in seconds, not part of the results");
+		System.out.println("  interval=5        Seconds between reports");
+		System.out.println("  rate=100          Requests per second per connection");
+		System.out.println("  sizes=64:80,...   Payload sizes in bytes with their weights");
+		System.out.println("  fanout=0          Number of other clients the server forwards each request to");
+		System.out.println("  slow=0            Fraction (0-1) of clients that are slow consumers");
+		System.out.println("  slowDelay=10      Milliseconds a slow consumer spends per received packet");
+		System.out.println("  senders=4         Threads generating the client traffic");
+		System.out.println("  flush=always      Flush policy: always, idle, bytes:N, delay:MICROS or adaptive:MICROS:BYTES");
+		System.out.println("  capture=          Directory to capture the traffic of the first server connection to (as \"loadtest\"), for ReplayTool");
+	}
+
+	private void parseOptions() {
+		connections = positive("connections");
+		duration = positive("duration");
+		warmup = Integer.parseInt(options.get("warmup"));
+		interval = positive("interval");
+		rate = Double.parseDouble(options.get("rate"));
+		fanout = Integer.parseInt(options.get("fanout"));
+		slowFraction = Double.parseDouble(options.get("slow"));
+		slowDelay = Integer.parseInt(options.get("slowDelay"));
+		senderThreads = Math.min(positive("senders"), connections);
+		if (rate <= 0)
+			throw new IllegalArgumentException("rate must be positive");
+		if (fanout < 0 || fanout >= connections)
+			throw new IllegalArgumentException("fanout must be between 0 and connections - 1");
+		if (slowFraction < 0 || slowFraction > 1)
+			throw new IllegalArgumentException("slow must be between 0 and 1");
+
+		String[] entries = options.get("sizes").split(",");
+		sizes = new int[entries.length];
+		cumulativeWeights = new int[entries.length];
+		int total = 0;
+		for (int i = 0; i < entries.length; i++) {
+			String[] entry = entries[i].split(":");
+			sizes[i] = Integer.parseInt(entry[0].trim());
+			total += entry.length > 1 ? Integer.parseInt(entry[1].trim()) : 1;
+			cumulativeWeights[i] = total;
+			if (sizes[i] < 0)
+				throw new IllegalArgumentException("sizes must not be negative");
+		}
+		if (total <= 0)
+			throw new IllegalArgumentException("The weights of the sizes must be positive");
+
+		String[] flush = options.get("flush").split(":");
+		if (flush[0].equals("always") && flush.length == 1)
+			flushPolicy = FlushPolicy.always();
+		else if (flush[0].equals("idle") && flush.length == 1)
+			flushPolicy = FlushPolicy.whenIdle();
+		else if (flush[0].equals("bytes") && flush.length == 2)
+			flushPolicy = FlushPolicy.afterBytes(Integer.parseInt(flush[1]));
+		else if (flush[0].equals("delay") && flush.length == 2)
+			flushPolicy = FlushPolicy.maxDelay(Long.parseLong(flush[1]));
+		else if (flush[0].equals("adaptive") && flush.length == 3)
+			flushPolicy = FlushPolicy.adaptive(Long.parseLong(flush[1]), Integer.parseInt(flush[2]));
+		else
+			throw new IllegalArgumentException("Unknown flush policy: " + options.get("flush"));
+	}
+
+	private int positive(String key) {
+		int value = Integer.parseInt(options.get(key));
+		if (value <= 0)
+			throw new IllegalArgumentException(key + " must be positive");
+		return value;
+	}
+
+	private void run() throws Exception {
+		if (!options.get("capture").isEmpty())
+			capture = new PacketCapture(new File(options.get("capture")), "loadtest");
+		System.out.println("Options: " + options);
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		final ServerSocket serverSocket = new ServerSocket(0, 1024, loopback);
+		Thread acceptor = new Thread("LoadTest acceptor") {
+
+			@Override
+			public void run() {
+				acceptConnections(serverSocket);
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		long connectStart = System.nanoTime();
+		int slowClients = (int) Math.round(connections * slowFraction);
+		for (int i = 0; i < connections; i++) {
+			Socket socket = new Socket(loopback, serverSocket.getLocalPort());
+			socket.setTcpNoDelay(true);
+			PacketHandler client = new PacketHandler(socket.getInputStream(), socket.getOutputStream(), "client-" + i, new ClientListener(i, i < slowClients));
+			client.registerPacket(LoadPacket.class);
+			client.setFlushPolicy(flushPolicy);
+			clients.add(client);
+		}
+		while (serverConnections.size() < connections) {
+			Thread.sleep(10);
+		}
+		System.out.println(connections + " connections established in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart) + " ms");
+
+		for (int i = 0; i < senderThreads; i++) {
+			Thread sender = new Thread(new TrafficGenerator(i), "LoadTest sender " + i);
+			sender.setDaemon(true);
+			sender.start();
+		}
+
+		if (warmup > 0) {
+			System.out.println("Warming up for " + warmup + " s");
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+		}
+		Totals start = new Totals();
+		roundTrip.reset();
+		Totals last = start;
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+		LatencyHistogram.Snapshot all = null;
+		while (System.nanoTime() < end) {
+			Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(interval), Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+			Totals now = new Totals();
+			LatencyHistogram.Snapshot latency = roundTrip.snapshotAndReset();
+			all = all == null ? latency : all.merge(latency);
+			report("[" + String.format("%5d", TimeUnit.NANOSECONDS.toSeconds(now.time - start.time)) + "s]", last, now, latency);
+			last = now;
+		}
+		running = false;
+		System.out.println();
+		report("Total:", start, last, all);
+		System.out.println("Failed connections: " + failures.sum());
+		long closeStart = System.nanoTime();
+		PacketHandler.closeAll(clients).join();
+		System.out.println("Closed " + clients.size() + " connections in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - closeStart) + " ms");
+		if (capture != null) {
+			capture.close();
+			System.out.println("Captured " + capture.getRecords() + " frames in " + capture.getSegments() + " segments to " + capture.getDirectory());
+		}
+	}
+
+	private void acceptConnections(ServerSocket serverSocket) {
+		try {
+			while (running) {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				PacketHandler connection = new PacketHandler(socket.getInputStream(), socket.getOutputStream(), "server-" + serverConnections.size(), new ServerListener());
+				connection.registerPacket(LoadPacket.class);
+				connection.setFlushPolicy(flushPolicy);
+				if (serverConnections.isEmpty())
+					connection.setCapture(capture);
+				serverConnections.add(connection);
+			}
+		} catch (Exception e) {
+			if (running)
+				System.err.println("Accepting connections failed: " + e);
+		}
+	}
+
+	private byte[] randomPayload() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < sizes.length; i++) {
+			if (pick < cumulativeWeights[i])
+				return new byte[sizes[i]];
+		}
+		return new byte[sizes[sizes.length - 1]];
+	}
+
+	private void report(String prefix, Totals from, Totals to, LatencyHistogram.Snapshot latency) {
+		double seconds = Math.max(1e-9, (to.time - from.time) / 1e9);
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		System.out.println(String.format("%s sent %.0f/s, echoes %.0f/s, fanout %.0f/s, rejected %d, %.1f MiB/s out | rtt p50 %s p99 %s p99.9 %s max %s", prefix,
+				(to.sent - from.sent) / seconds, (to.echoes - from.echoes) / seconds, (to.fanout - from.fanout) / seconds, to.rejected - from.rejected,
+				(to.bytesSent - from.bytesSent) / seconds / (1024 * 1024), millis(latency.getPercentile(50)), millis(latency.getPercentile(99)),
+				millis(latency.getPercentile(99.9)), millis(latency.getMax())));
+		System.out.println(String.format("%s threads %d, heap %d/%d MiB, gc %d (%d ms), queued %d, budget %d KiB", prefix.replaceAll(".", " "),
+				ManagementFactory.getThreadMXBean().getThreadCount(), heap.getUsed() >> 20, heap.getMax() >> 20, to.gcCount - from.gcCount, to.gcTime - from.gcTime,
+				ConnectionMetrics.GLOBAL.getQueuedPackets(), MemoryBudget.GLOBAL.getReserved() >> 10));
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2fms", nanos / 1e6);
+	}
+
+	/**
+	 * Counter values at one point in time.
+	 */
+	private class Totals {
+
+		final long time = System.nanoTime();
+		final long sent = LoadTest.this.sent.sum();
+		final long rejected = LoadTest.this.rejected.sum();
+		final long echoes = LoadTest.this.echoes.sum();
+		final long fanout = fanoutReceived.sum();
+		final long bytesSent = ConnectionMetrics.GLOBAL.getBytesSent();
+		final long gcCount;
+		final long gcTime;
+
+		Totals() {
+			long count = 0;
+			long time = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				count += Math.max(0, gc.getCollectionCount());
+				time += Math.max(0, gc.getCollectionTime());
+			}
+			gcCount = count;
+			gcTime = time;
+		}
+	}
+
+	/**
+	 * Sends requests for every n-th client at the configured rate.
+	 */
+	private class TrafficGenerator implements Runnable {
+
+		private final int index;
+
+		TrafficGenerator(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			List<Integer> mine = new ArrayList<Integer>();
+			for (int i = index; i < connections; i += senderThreads) {
+				mine.add(i);
+			}
+			double perSecond = rate * mine.size();
+			long start = System.nanoTime();
+			long count = 0;
+			int next = 0;
+			while (running) {
+				long due = (long) ((System.nanoTime() - start) / 1e9 * perSecond);
+				if (count >= due) {
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+				int client = mine.get(next);
+				next = (next + 1) % mine.size();
+				count++;
+				LoadPacket packet = new LoadPacket(LoadPacket.REQUEST, client, System.nanoTime(), randomPayload());
+				if (clients.get(client).sendPacket(packet))
+					sent.increment();
+				else
+					rejected.increment();
+			}
+		}
+	}
+
+	private class ClientListener extends Listener {
+
+		private final int id;
+		private final boolean slow;
+
+		ClientListener(int id, boolean slow) {
+			this.id = id;
+			this.slow = slow;
+		}
+
+		@Override
+		public void onPacketReceived(PacketHandler handler, Packet packet) {
+			LoadPacket load = (LoadPacket) packet;
+			if (load.type == LoadPacket.ECHO && load.origin == id) {
+				roundTrip.record(System.nanoTime() - load.sendTime);
+				echoes.increment();
+			} else if (load.type == LoadPacket.FANOUT) {
+				fanoutReceived.increment();
+			}
+			if (slow) {
+				try {
+					Thread.sleep(slowDelay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private class ServerListener extends Listener {
+
+		@Override
+		public void onPacketReceived(PacketHandler handler, Packet packet) {
+			LoadPacket request = (LoadPacket) packet;
+			if (request.type != LoadPacket.REQUEST)
+				return;
+			handler.sendPacket(new LoadPacket(LoadPacket.ECHO, request.origin, request.sendTime, request.payload));
+			if (fanout > 0) {
+				// Encoded once, all receivers write the same frame
+				EncodedFrame frame;
+				try {
+					frame = EncodedFrame.encode(new LoadPacket(LoadPacket.FANOUT, request.origin, request.sendTime, request.payload));
+				} catch (IOException e) {
+					return;
+				}
+				try {
+					List<PacketHandler> targets = serverConnections;
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					for (int i = 0; i < fanout; i++) {
+						PacketHandler target = targets.get(random.nextInt(targets.size()));
+						if (target != handler)
+							target.sendFrame(frame);
+					}
+				} finally {
+					frame.release();
+				}
+			}
+		}
+	}
+
+	private abstract class Listener implements PacketListener {
+
+		@Override
+		public void onUnknownPacketReceived(PacketHandler handler, short id) {
+		}
+
+		@Override
+		public void onConnectionClosed(PacketHandler handler, String message, boolean expected) {
+			if (running)
+				failures.increment();
+		}
+
+		@Override
+		public void onConnectionFailed(PacketHandler handler, Throwable exception) {
+			if (running) {
+				failures.increment();
+				System.err.println("Connection " + handler.getConnectionName() + " failed: " + exception);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Maximilian Froehling alias Nummer378/GermanCoding
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package com.germancoding.packetapi.tools;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import com.germancoding.packetapi.Packet;
+import com.germancoding.packetapi.PacketHandler;
+import com.germancoding.packetapi.PacketListener;
+import com.germancoding.packetapi.capture.CaptureReader;
+import com.germancoding.packetapi.capture.CapturedFrame;
+import com.germancoding.packetapi.capture.PacketCapture;
+import com.germancoding.packetapi.capture.ReplayInputStream;
+
+/**
+ * Prints or replays a capture written by {@link PacketCapture}. Replaying feeds the captured frames of one direction into a new
+ * <code>PacketHandler</code> (with the {@link LoadPacket} registered, other user packets are counted as unknown) at original or maximum speed and
+ * reports the throughput, which makes a capture of real traffic a benchmark input.<br>
+ * <br>
+ * Usage: <code>ReplayTool &lt;directory&gt; &lt;name&gt; [dump | replay [speed] [sent]]</code>
+ */
+public class ReplayTool {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			printUsage();
+			System.exit(1);
+		}
+		File directory = new File(args[0]);
+		String name = args[1];
+		String mode = args.length > 2 ? args[2] : "replay";
+		if (mode.equals("dump")) {
+			dump(directory, name);
+		} else if (mode.equals("replay")) {
+			double speed = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+			byte direction = args.length > 4 && args[4].equals("sent") ? PacketCapture.SENT : PacketCapture.RECEIVED;
+			replay(directory, name, speed, direction);
+		} else {
+			printUsage();
+			System.exit(1);
+		}
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage: ReplayTool <directory> <name> [dump | replay [speed] [sent]]");
+		System.out.println("  dump              Print every frame of the capture");
+		System.out.println("  replay            Feed the captured frames into a PacketHandler and report the throughput (default)");
+		System.out.println("    speed=0         1.0 for the original timing, 2.0 for twice as fast, 0 for maximum speed");
+		System.out.println("    sent            Replay the sent instead of the received frames");
+	}
+
+	private static void dump(File directory, String name) throws Exception {
+		try (CaptureReader reader = new CaptureReader(directory, name)) {
+			CapturedFrame frame;
+			long count = 0;
+			while ((frame = reader.next()) != null) {
+				System.out.println(String.format("%12.3f ms  %s  id %6d  %8d bytes", frame.getTimestamp() / 1e6,
+						frame.getDirection() == PacketCapture.RECEIVED ? "<-" : "->", frame.getId(), frame.getLength()));
+				count++;
+			}
+			System.out.println(count + " frames in " + (reader.getSegment() + 1) + " segments");
+		}
+	}
+
+	private static void replay(File directory, String name, double speed, byte direction) throws Exception {
+		final Map<Short, Long> received = new TreeMap<Short, Long>();
+		final CountDownLatch done = new CountDownLatch(1);
+		final CountDownLatch registered = new CountDownLatch(1);
+		ReplayInputStream in = new ReplayInputStream(new CaptureReader(directory, name), direction, speed);
+		// Don't let the reader start before the packets are registered
+		InputStream gate = new FilterInputStream(in) {
+
+			@Override
+			public int read() throws IOException {
+				awaitRegistered();
+				return super.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				awaitRegistered();
+				return super.read(b, off, len);
+			}
+
+			private void awaitRegistered() throws InterruptedIOException {
+				try {
+					registered.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		};
+		PacketHandler handler = new PacketHandler(gate, OutputStream.nullOutputStream(), "replay", new PacketListener() {
+
+			@Override
+			public void onPacketReceived(PacketHandler handler, Packet packet) {
+				count(packet.getId());
+			}
+
+			@Override
+			public void onUnknownPacketReceived(PacketHandler handler, short id) {
+				count(id);
+			}
+
+			private void count(short id) {
+				synchronized (received) {
+					Long count = received.get(id);
+					received.put(id, count == null ? 1 : count + 1);
+				}
+			}
+
+			@Override
+			public void onConnectionFailed(PacketHandler handler, Throwable exception) {
+				System.err.println("Replay failed: " + exception);
+				done.countDown();
+			}
+
+			@Override
+			public void onConnectionClosed(PacketHandler handler, String message, boolean expected) {
+				done.countDown(); // End of the capture
+			}
+		});
+		handler.registerPacket(LoadPacket.class);
+		handler.notifyOnDefaultPackets(true);
+		long start = System.nanoTime();
+		registered.countDown();
+		done.await();
+		double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+		long bytes = handler.getMetrics().getBytesReceived();
+		System.out.println(String.format("Replayed %d frames (%d bytes) in %.3f s: %.0f frames/s, %.1f MiB/s", in.getFrames(), bytes, seconds,
+				in.getFrames() / seconds, bytes / seconds / (1024 * 1024)));
+		synchronized (received) {
+			for (Map.Entry<Short, Long> entry : received.entrySet()) {
+				System.out.println("  id " + entry.getKey() + ": " + entry.getValue());
+			}
+		}
+	}
+
+}